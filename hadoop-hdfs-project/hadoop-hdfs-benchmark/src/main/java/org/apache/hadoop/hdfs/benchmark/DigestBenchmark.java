@@ -0,0 +1,112 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.hdfs.server.nimble.NimbleUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * NimbleUtils#checksum over a whole array against the streaming digests
+ * the DataNode uses: MessageDigest updates of bounded size, a stream read
+ * through a bounded buffer, and mmap windows of a file.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class DigestBenchmark {
+  @Param({"65536", "1048576", "16777216"})
+  private int size;
+
+  @Param({"65536", "4194304"})
+  private int window;
+
+  private byte[] data;
+  private File dir;
+  private RandomAccessFile file;
+
+  @Setup
+  public void setUp() throws IOException {
+    data = new byte[size];
+    new Random(0).nextBytes(data);
+    dir = File.createTempFile("DigestBenchmark", "");
+    if (!dir.delete() || !dir.mkdir()) {
+      throw new IOException("Cannot create " + dir);
+    }
+    File f = new File(dir, "data");
+    try (FileOutputStream out = new FileOutputStream(f)) {
+      out.write(data);
+    }
+    file = new RandomAccessFile(f, "r");
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    file.close();
+    FileUtil.fullyDelete(dir);
+  }
+
+  @Benchmark
+  public byte[] array() throws IOException {
+    return NimbleUtils.checksum(data);
+  }
+
+  @Benchmark
+  public byte[] updates() throws IOException {
+    MessageDigest md = NimbleUtils._checksum();
+    for (int off = 0; off < size; off += window) {
+      md.update(data, off, Math.min(window, size - off));
+    }
+    return md.digest();
+  }
+
+  @Benchmark
+  public byte[] stream() throws IOException {
+    return NimbleUtils.checksum(new ByteArrayInputStream(data), size, window);
+  }
+
+  @Benchmark
+  public byte[] mappedFile() throws IOException {
+    FileChannel ch = file.getChannel();
+    return NimbleUtils.checksum(ch, size, window);
+  }
+}
@@ -0,0 +1,106 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hdfs.server.nimble.BlockMerkleTree;
+import org.apache.hadoop.hdfs.server.nimble.NimbleUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The per-packet hashing BlockReceiver#receivePacket does on the write
+ * pipeline: the data of each packet is fed to the flat digest or to the
+ * Merkle tree builder of the replica, and the digest is taken once the
+ * block is complete.
+ *
+ * BlockReceiver itself needs a running DataNode; this replays its hashing
+ * on packets of the configured size, one packet per invocation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Thread)
+public class PacketDigestBenchmark {
+  private static final long BLOCK_SIZE = 128L * 1024 * 1024;
+
+  /** 64KB is dfs.client-write-packet-size. */
+  @Param({"65536", "1048576"})
+  private int packetSize;
+
+  @Param({"flat", "merkle"})
+  private String digest;
+
+  private ByteBuffer dataBuf;
+  private MessageDigest memChecksum;
+  private BlockMerkleTree.Builder memTree;
+  private long received;
+
+  @Setup
+  public void setUp() throws IOException {
+    byte[] data = new byte[packetSize];
+    new Random(0).nextBytes(data);
+    dataBuf = ByteBuffer.wrap(data);
+    newBlock();
+  }
+
+  private void newBlock() throws IOException {
+    received = 0;
+    if (digest.equals("merkle")) {
+      memTree = new BlockMerkleTree.Builder(
+          NimbleUtils.Conf.MERKLE_CHUNK_SIZE_DEFAULT);
+    } else {
+      memChecksum = NimbleUtils._checksum();
+    }
+  }
+
+  @Benchmark
+  public byte[] receivePacket() throws IOException {
+    if (memTree != null) {
+      memTree.update(dataBuf.array(), dataBuf.arrayOffset(), packetSize);
+    } else {
+      memChecksum.update(dataBuf.array(), dataBuf.arrayOffset(), packetSize);
+    }
+    received += packetSize;
+    if (received < BLOCK_SIZE) {
+      return null;
+    }
+
+    // Block complete
+    byte[] d = (memTree != null) ? memTree.build().getDigest()
+        : memChecksum.digest();
+    newBlock();
+    return d;
+  }
+}
@@ -0,0 +1,97 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.server.namenode.EditLogOpMix;
+import org.apache.hadoop.hdfs.server.namenode.FSEditLogOp;
+import org.apache.hadoop.hdfs.server.nimble.MockNimbleLedger;
+import org.apache.hadoop.hdfs.server.nimble.NimbleUtils;
+import org.apache.hadoop.hdfs.server.nimble.TMCS;
+import org.apache.hadoop.hdfs.server.nimble.TMCSEditLog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of TMCSEditLog#add per edit log op, including its share of sealing,
+ * signing and queueing batches for MockNimbleLedger.
+ *
+ * With framed ops, the batch copies the bytes the op was written to the edit
+ * log as, as on the live path. Otherwise each op is encoded again.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class TMCSEditLogBenchmark {
+  private static final int NUM_OPS = 1 << 14;
+
+  @Param({"2", "64", "1024"})
+  private int batchSize;
+
+  @Param({"true", "false"})
+  private boolean framed;
+
+  private MockNimbleLedger ledger;
+  private TMCSEditLog editLog;
+  private FSEditLogOp[] ops;
+  private int next;
+
+  @Setup
+  public void setUp() throws Exception {
+    ledger = new MockNimbleLedger();
+    Configuration conf = new Configuration();
+    conf.set(NimbleUtils.Conf.NIMBLE_LEDGER_URI_KEY, ledger.getURI().toString());
+    conf.setLong(NimbleUtils.Conf.BATCH_SIZE_KEY, batchSize);
+    TMCS.format(conf);
+
+    ops = EditLogOpMix.generate(NUM_OPS, 0);
+    if (framed) {
+      EditLogOpMix.write(ops); // ops keep referencing their frames
+    }
+    editLog = new TMCSEditLog(conf, true,
+        new NimbleUtils.NimbleFSImageInfo(0, new byte[32], new byte[0]));
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    editLog.flush();
+    TMCS.getInstance().close();
+    ledger.close();
+  }
+
+  @Benchmark
+  public void add() throws IOException {
+    editLog.add(ops[next++ & (NUM_OPS - 1)]);
+  }
+}
@@ -0,0 +1,119 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.Signature;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.server.nimble.MockNimbleLedger;
+import org.apache.hadoop.hdfs.server.nimble.NimbleAPI;
+import org.apache.hadoop.hdfs.server.nimble.NimbleServiceID;
+import org.apache.hadoop.hdfs.server.nimble.NimbleUtils;
+import org.apache.hadoop.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the streams that bind NameNode metadata to the ledger:
+ * signing and verifying a sealed TMCS batch with the NameNode's key, and
+ * digesting an FSImage as FSImageFormatProtobuf writes it.
+ *
+ * There is no signing output stream in the tree, batches are fed to a
+ * Signature as a whole; the batch sizes cover the fixed and adaptive
+ * batch sizes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class TagBenchmark {
+  @Param({"256", "16384", "1048576"})
+  private int batchBytes;
+
+  private NimbleServiceID id;
+  private byte[] batch;
+  private byte[] tag;
+  private byte[] image;
+
+  @Setup
+  public void setUp() throws Exception {
+    // Only needed for a service identity; signing is local
+    try (MockNimbleLedger ledger = new MockNimbleLedger()) {
+      Configuration conf = new Configuration();
+      conf.set(NimbleUtils.Conf.NIMBLE_LEDGER_URI_KEY,
+          ledger.getURI().toString());
+      try (NimbleAPI api = new NimbleAPI(conf)) {
+        id = api.getServiceID();
+      }
+    }
+    id.generateSigningKeys();
+
+    Random r = new Random(0);
+    batch = new byte[batchBytes];
+    r.nextBytes(batch);
+    tag = sign();
+    image = new byte[64 * 1024];
+    r.nextBytes(image);
+  }
+
+  @Benchmark
+  public byte[] sign() throws GeneralSecurityException, IOException {
+    Signature s = id.getSignature();
+    s.update(batch);
+    return s.sign();
+  }
+
+  @Benchmark
+  public boolean verify() throws GeneralSecurityException, IOException {
+    Signature v = id.verifySignature();
+    v.update(batch);
+    return v.verify(tag);
+  }
+
+  /** Digest batchBytes of FSImage in 64KB writes. */
+  @Benchmark
+  public byte[] imageDigestStream() throws IOException {
+    DigestOutputStream out = new DigestOutputStream(
+        new IOUtils.NullOutputStream(), NimbleUtils._checksum());
+    writeImage(out);
+    return out.getMessageDigest().digest();
+  }
+
+  private void writeImage(OutputStream out) throws IOException {
+    for (int left = batchBytes; left > 0; left -= image.length) {
+      out.write(image, 0, Math.min(left, image.length));
+    }
+  }
+}
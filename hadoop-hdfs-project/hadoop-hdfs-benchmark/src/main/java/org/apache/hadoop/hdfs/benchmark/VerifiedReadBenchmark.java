@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.hdfs.server.datanode.FinalizedReplica;
+import org.apache.hadoop.hdfs.server.datanode.ReplicaInfo;
+import org.apache.hadoop.hdfs.server.nimble.BlockMerkleTree;
+import org.apache.hadoop.hdfs.server.nimble.NimbleUtils;
+import org.apache.hadoop.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ReplicaInfo#getVerifiedDataInputStream on a finalized replica, with the
+ * flat digest or a Merkle digest and its sidecar, either reading the whole
+ * block or a single 64KB range from its middle as a positional read does.
+ *
+ * The block file is written once per trial and stays in the page cache, so
+ * this measures hashing and verification rather than the disk.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class VerifiedReadBenchmark {
+  private static final int RANGE = 64 * 1024;
+
+  @Param({"1048576", "16777216", "134217728"})
+  private int blockSize;
+
+  @Param({"flat", "merkle"})
+  private String digest;
+
+  private File dir;
+  private ReplicaInfo replica;
+  private int merkleChunkSize;
+  private final byte[] buf = new byte[RANGE];
+
+  @Setup
+  public void setUp() throws IOException {
+    dir = File.createTempFile("VerifiedReadBenchmark", "");
+    if (!dir.delete() || !dir.mkdir()) {
+      throw new IOException("Cannot create " + dir);
+    }
+    long blockId = 1073741825L;
+    File blockFile = new File(dir, "blk_" + blockId);
+
+    Random r = new Random(0);
+    byte[] chunk = new byte[1024 * 1024];
+    MessageDigest flat = NimbleUtils._checksum();
+    BlockMerkleTree.Builder tree = new BlockMerkleTree.Builder(
+        NimbleUtils.Conf.MERKLE_CHUNK_SIZE_DEFAULT);
+    try (FileOutputStream out = new FileOutputStream(blockFile)) {
+      for (int left = blockSize; left > 0; left -= chunk.length) {
+        int n = Math.min(left, chunk.length);
+        r.nextBytes(chunk);
+        out.write(chunk, 0, n);
+        flat.update(chunk, 0, n);
+        tree.update(chunk, 0, n);
+      }
+    }
+
+    byte[] checksum;
+    if (digest.equals("merkle")) {
+      BlockMerkleTree built = tree.build();
+      built.save(BlockMerkleTree.sidecarFile(blockFile));
+      checksum = built.getDigest();
+      merkleChunkSize = built.getChunkSize();
+    } else {
+      checksum = flat.digest();
+      merkleChunkSize = 0;
+    }
+    replica = new FinalizedReplica(blockId, blockSize, 1001, checksum,
+        null, dir);
+  }
+
+  @TearDown
+  public void tearDown() {
+    FileUtil.fullyDelete(dir);
+  }
+
+  @Benchmark
+  public long readBlock() throws IOException {
+    long total = 0;
+    try (InputStream in = replica.getVerifiedDataInputStream(0,
+        NimbleUtils.Conf.VERIFY_WINDOW_DEFAULT, merkleChunkSize)) {
+      int n;
+      while ((n = in.read(buf)) > 0) {
+        total += n;
+      }
+    }
+    return total;
+  }
+
+  @Benchmark
+  public byte[] readRange() throws IOException {
+    long offset = Math.max(0, blockSize / 2 - RANGE / 2);
+    try (InputStream in = replica.getVerifiedDataInputStream(offset,
+        NimbleUtils.Conf.VERIFY_WINDOW_DEFAULT, merkleChunkSize)) {
+      IOUtils.readFully(in, buf, 0, (int) Math.min(RANGE, blockSize - offset));
+    }
+    return buf;
+  }
+}
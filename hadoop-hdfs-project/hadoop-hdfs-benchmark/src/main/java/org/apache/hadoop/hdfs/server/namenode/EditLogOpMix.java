@@ -0,0 +1,163 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.fs.Options.Rename;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.fs.permission.PermissionStatus;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.server.namenode.FSEditLogOp.AddBlockOp;
+import org.apache.hadoop.hdfs.server.namenode.FSEditLogOp.AddOp;
+import org.apache.hadoop.hdfs.server.namenode.FSEditLogOp.AllocateBlockIdOp;
+import org.apache.hadoop.hdfs.server.namenode.FSEditLogOp.CloseOp;
+import org.apache.hadoop.hdfs.server.namenode.FSEditLogOp.DeleteOp;
+import org.apache.hadoop.hdfs.server.namenode.FSEditLogOp.MkdirOp;
+import org.apache.hadoop.hdfs.server.namenode.FSEditLogOp.OpInstanceCache;
+import org.apache.hadoop.hdfs.server.namenode.FSEditLogOp.RenameOp;
+import org.apache.hadoop.hdfs.server.namenode.FSEditLogOp.SetGenstampV2Op;
+import org.apache.hadoop.hdfs.server.namenode.FSEditLogOp.TimesOp;
+import org.apache.hadoop.io.DataOutputBuffer;
+
+/**
+ * Generates edit log ops in the proportions a NameNode logs them under a
+ * create-heavy client workload, for the Nimble benchmarks.
+ *
+ * Every file is created, gets a block id, a generation stamp and a block,
+ * and is closed, as FSNamesystem logs it. Around those, a fraction of the
+ * files is renamed, deleted or touched and new directories are made from
+ * time to time. The ops are generated from a seed, so the same seed always
+ * yields the same bytes.
+ */
+public final class EditLogOpMix {
+  private static final PermissionStatus PERMISSIONS = new PermissionStatus(
+      "hdfs", "supergroup", new FsPermission((short) 0644));
+  private static final short REPLICATION = 3;
+  private static final long BLOCK_SIZE = 128L * 1024 * 1024;
+
+  private EditLogOpMix() {
+  }
+
+  /**
+   * @param numOps number of ops to generate
+   * @param seed seed of the paths, sizes and op choices
+   * @return ops with transaction ids 1 to numOps
+   */
+  public static FSEditLogOp[] generate(int numOps, long seed) {
+    OpInstanceCache cache = new OpInstanceCache();
+    cache.disableCache();
+    Random r = new Random(seed);
+    List<FSEditLogOp> ops = new ArrayList<>(numOps + 8);
+
+    long inodeId = 16386;
+    long blockId = 1073741825;
+    long genStamp = 1001;
+    String dir = "/bench/d0";
+    int dirs = 0;
+    while (ops.size() < numOps) {
+      long now = 1600000000000L + ops.size();
+      if (r.nextInt(16) == 0) {
+        dir = "/bench/d" + (++dirs);
+        ops.add(MkdirOp.getInstance(cache)
+            .setInodeId(inodeId++)
+            .setPath(dir)
+            .setTimestamp(now)
+            .setPermissionStatus(PERMISSIONS));
+      }
+
+      String path = dir + "/part-" + String.format("%05d", r.nextInt(100000));
+      byte[] checksum = new byte[Block.CHECKSUM_LENGTH];
+      r.nextBytes(checksum);
+      Block block = new Block(blockId, BLOCK_SIZE - r.nextInt(1 << 20),
+          ++genStamp, checksum);
+
+      AddOp add = AddOp.getInstance(cache)
+          .setInodeId(inodeId++)
+          .setPath(path)
+          .setReplication(REPLICATION)
+          .setModificationTime(now)
+          .setAccessTime(now)
+          .setBlockSize(BLOCK_SIZE)
+          .setBlocks(new Block[0])
+          .setPermissionStatus(PERMISSIONS)
+          .setClientName("DFSClient_NONMAPREDUCE_" + r.nextInt(1 << 30))
+          .setClientMachine("10.0.0." + r.nextInt(256))
+          .setOverwrite(false)
+          .setStoragePolicyId((byte) 0)
+          .setErasureCodingPolicyId((byte) 0);
+      byte[] clientId = new byte[16];
+      r.nextBytes(clientId);
+      add.setRpcClientId(clientId);
+      add.setRpcCallId(r.nextInt(1 << 20));
+      ops.add(add);
+      ops.add(AllocateBlockIdOp.getInstance(cache).setBlockId(blockId++));
+      ops.add(SetGenstampV2Op.getInstance(cache).setGenerationStamp(genStamp));
+      ops.add(AddBlockOp.getInstance(cache).setPath(path)
+          .setPenultimateBlock(null).setLastBlock(block));
+      ops.add(CloseOp.getInstance(cache)
+          .setPath(path)
+          .setReplication(REPLICATION)
+          .setModificationTime(now)
+          .setAccessTime(now)
+          .setBlockSize(BLOCK_SIZE)
+          .setBlocks(new Block[] {block})
+          .setPermissionStatus(PERMISSIONS));
+
+      int dice = r.nextInt(8);
+      if (dice == 0) {
+        ops.add(RenameOp.getInstance(cache)
+            .setSource(path)
+            .setDestination(path + ".done")
+            .setTimestamp(now)
+            .setOptions(new Rename[] {Rename.NONE}));
+      } else if (dice == 1) {
+        ops.add(DeleteOp.getInstance(cache)
+            .setPath(path)
+            .setTimestamp(now));
+      } else if (dice < 4) {
+        ops.add(TimesOp.getInstance(cache)
+            .setPath(path)
+            .setModificationTime(-1)
+            .setAccessTime(now));
+      }
+    }
+
+    FSEditLogOp[] result = ops.subList(0, numOps).toArray(new FSEditLogOp[0]);
+    for (int i = 0; i < result.length; i++) {
+      result[i].setTransactionId(i + 1);
+    }
+    return result;
+  }
+
+  /**
+   * Write the ops as FSEditLog does, so that each carries the frame it was
+   * written as. The frames stay valid as long as the returned buffer does.
+   */
+  public static DataOutputBuffer write(FSEditLogOp[] ops) throws IOException {
+    DataOutputBuffer buf = new DataOutputBuffer(ops.length * 128);
+    FSEditLogOp.Writer writer = new FSEditLogOp.Writer(buf);
+    for (FSEditLogOp op : ops) {
+      writer.writeOp(op, NameNodeLayoutVersion.CURRENT_LAYOUT_VERSION);
+    }
+    return buf;
+  }
+}
@@ -0,0 +1,89 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.nimble;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Verification of ledger receipts, which the NameNode does for every
+ * NewCounter, IncrementCounter and ReadLatest. Receipts are obtained from
+ * MockNimbleLedger once; only NimbleOp#verify is measured. It lives in
+ * the package of NimbleOp, which is not public.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class NimbleOpBenchmark {
+  private NimbleOp newCounter;
+  private NimbleOp increment;
+  private NimbleOp readLatest;
+
+  @Setup
+  public void setUp() throws Exception {
+    try (MockNimbleLedger ledger = new MockNimbleLedger()) {
+      Configuration conf = new Configuration();
+      conf.set(NimbleUtils.Conf.NIMBLE_LEDGER_URI_KEY,
+          ledger.getURI().toString());
+      try (NimbleAPI api = new NimbleAPI(conf)) {
+        NimbleServiceID id = api.getServiceID();
+        id.handle = NimbleUtils.getNonce();
+        newCounter = api.newCounter(id, NimbleUtils.getNonce());
+        increment = api.incrementCounter(id, NimbleUtils.getNonce(), 1);
+        readLatest = api.readLatest(id);
+      }
+    }
+  }
+
+  @Benchmark
+  public boolean verifyNewCounter() throws NimbleError {
+    return newCounter.verify();
+  }
+
+  @Benchmark
+  public boolean verifyIncrement() throws NimbleError {
+    return increment.verify();
+  }
+
+  @Benchmark
+  public boolean verifyReadLatest() throws NimbleError {
+    return readLatest.verify();
+  }
+
+  /** Receipts verified concurrently, as by TMCSCommitter and RPC handlers. */
+  @Benchmark
+  @Threads(4)
+  public boolean verifyIncrementConcurrent() throws NimbleError {
+    return increment.verify();
+  }
+}
@@ -357,6 +357,11 @@ private synchronized int fillBuffer(ByteBuffer buf, boolean canSkipChecksum)
       dataPos += nRead;
       total += nRead;
     }
+    if (replica.isVerificationRevoked()) {
+      // The DataNode found the replica does not match its Nimble digest.
+      throw new IOException("Nimble verification of " + replica.getKey() +
+          " was revoked by the DataNode");
+    }
     if (canSkipChecksum) {
       freeChecksumBufIfExists();
       return total;
@@ -18,6 +18,7 @@
 package org.apache.hadoop.hdfs.protocol;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.regex.Matcher;
@@ -52,6 +53,8 @@ public class Block implements Writable, Comparable<Block> {
   public static final String METADATA_EXTENSION = ".meta";
   public static final String NO_CHECKSUM = "nochecksum";
   public static final int CHECKSUM_LENGTH = 32;
+  /** Length of a digest prefixed with the id of its algorithm. */
+  public static final int TAGGED_CHECKSUM_LENGTH = CHECKSUM_LENGTH + 1;
   static {                                      // register a ctor
     WritableFactories.setFactory(Block.class, new WritableFactory() {
       @Override
@@ -124,7 +127,9 @@ public Block(final long blkid) {
   }
 
   public Block(Block blk) {
-    this(blk.blockId, blk.numBytes, blk.generationStamp, blk.checksum);
+    this(blk.blockId, blk.numBytes, blk.generationStamp);
+    // Subclasses may keep the digest outside of the checksum field
+    this.checksum = blk.getChecksum();
   }
 
   /**
@@ -220,8 +225,7 @@ public static String toString(final Block b) {
         .append(b.generationStamp);
 
     // Add checksum
-    byte[] ck = b.getChecksum();
-    if (ck != null)
+    if (b.hasChecksum())
       sb.append("--").append(b.getChecksumAsString());
 
     return sb.toString();
@@ -284,16 +288,20 @@ final void writeHelper(DataOutput out) throws IOException {
     out.writeLong(blockId);
     out.writeLong(numBytes);
     out.writeLong(generationStamp);
-    if (checksum == null) {
+    ByteBuffer ck = getChecksumBuffer();
+    if (ck == null) {
       out.writeInt(0);
-      LOG.info("Serialize Checksum: len=0");
+      LOG.debug("Serialize Checksum: len=0");
     }
     else {
-      out.writeInt(checksum.length);
-      for (int b: checksum) {
-        out.writeByte(b);
+      out.writeInt(ck.remaining());
+      while (ck.hasRemaining()) {
+        out.writeByte(ck.get());
+      }
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Serialize Checksum: len=" + ck.limit() + " value="
+            + getChecksumAsString());
       }
-      LOG.info("Serialize Checksum: len=" + checksum.length + " value=" + getChecksumAsString());
     }
   }
 
@@ -309,7 +317,10 @@ final void readHelper(DataInput in) throws IOException {
       this.checksum = new byte[checksumLength];
       in.readFully(this.checksum, 0, checksumLength);
     }
-    LOG.info("Deserialize Checksum: len=" + checksumLength + " value=" + getChecksumAsString());
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Deserialize Checksum: len=" + checksumLength + " value="
+          + getChecksumAsString());
+    }
   }
 
   // write only the identifier part of the block
@@ -399,6 +410,20 @@ public byte[] getChecksum() {
     return (checksum != null) ? checksum.clone() : null;
   }
 
+  public boolean hasChecksum() {
+    return checksum != null;
+  }
+
+  /**
+   * Read-only view of the digest, for serializing it without a copy.
+   *
+   * @return the view, positioned at the start of the digest, or null
+   */
+  public ByteBuffer getChecksumBuffer() {
+    return (checksum != null) ?
+        ByteBuffer.wrap(checksum).asReadOnlyBuffer() : null;
+  }
+
   public String getChecksumAsString() {
     return (checksum != null) ?
         Block.encodeChecksumBytes(checksum) :
@@ -416,7 +441,7 @@ public void setChecksum(String checksum) {
   }
 
   public void setChecksum(File f) {
-    this.checksum = computeChecksum(f);
+    setChecksum(computeChecksum(f));
   }
 
   public static String encodeChecksumBytes(byte[] c) {
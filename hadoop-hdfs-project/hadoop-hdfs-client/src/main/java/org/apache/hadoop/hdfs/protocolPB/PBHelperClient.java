@@ -20,6 +20,7 @@
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
@@ -2148,9 +2149,9 @@ public static BlockProto convert(Block b) {
     BlockProto.Builder builder = BlockProto.newBuilder().setBlockId(b.getBlockId())
         .setGenStamp(b.getGenerationStamp()).setNumBytes(b.getNumBytes());
 
-    byte[] c = b.getChecksum();
+    ByteBuffer c = b.getChecksumBuffer();
     builder.setChecksum(
-        ByteString.copyFrom((c != null) ? c : new byte[0])
+        (c != null) ? ByteString.copyFrom(c) : ByteString.EMPTY
     );
 
     return builder.build();
@@ -2158,7 +2159,8 @@ public static BlockProto convert(Block b) {
 
   public static Block convert(BlockProto b) {
     byte[] checksum = b.getChecksum().toByteArray();
-    if (checksum.length != Block.CHECKSUM_LENGTH)
+    if (checksum.length != Block.CHECKSUM_LENGTH
+        && checksum.length != Block.TAGGED_CHECKSUM_LENGTH)
       checksum = null;
     return new Block(b.getBlockId(), b.getNumBytes(), b.getGenStamp(), checksum);
   }
@@ -87,6 +87,12 @@ public class ShortCircuitReplica {
    */
   private final Slot slot;
 
+  /**
+   * Generation stamp the DataNode had verified the replica for when it passed
+   * the file descriptors, or -1 if it did not verify it.
+   */
+  private final long verifiedGenStamp;
+
   /**
    * Current mmap state.
    *
@@ -134,6 +140,7 @@ public ShortCircuitReplica(ExtendedBlockId key,
     this.cache = cache;
     this.creationTimeMs = creationTimeMs;
     this.slot = slot;
+    this.verifiedGenStamp = (slot != null) ? slot.getVerifiedGenStamp() : -1;
   }
 
   /**
@@ -152,7 +159,7 @@ boolean isStale() {
     if (slot != null) {
       // Check staleness by looking at the shared memory area we use to
       // communicate with the DataNode.
-      boolean stale = !slot.isValid();
+      boolean stale = !slot.isValid() || isVerificationRevoked();
       LOG.trace("{}: checked shared memory segment.  isStale={}", this, stale);
       return stale;
     } else {
@@ -171,6 +178,18 @@ boolean isStale() {
     }
   }
 
+  /**
+   * Check whether the DataNode revoked the Nimble verification of the
+   * replica since passing its file descriptors. Replicas of DataNodes that
+   * do not verify them are never revoked.
+   *
+   * This method does not require any synchronization.
+   */
+  public boolean isVerificationRevoked() {
+    return verifiedGenStamp >= 0
+        && slot.getVerifiedGenStamp() != verifiedGenStamp;
+  }
+
   /**
    * Try to add a no-checksum anchor to our shared memory slot.
    *
@@ -233,7 +233,10 @@ public void remove() {
    * word 0
    *   bit 0:32   Slot flags (see below).
    *   bit 33:63  Anchor count.
-   * word 1:7
+   * word 1
+   *   Generation stamp the replica's Nimble digest was verified for, valid
+   *   while the verified flag is set.
+   * word 2:7
    *   Reserved for future use, such as statistics.
    *   Padding is also useful for avoiding false sharing.
    *
@@ -258,6 +261,15 @@ public class Slot {
      */
     private static final long ANCHORABLE_FLAG =     1L<<62;
 
+    /**
+     * Flag indicating that the DataNode verified the replica against its
+     * Nimble digest, for the generation stamp in word 1.
+     *
+     * The DataNode sets this flag before passing the file descriptors of a
+     * verified replica, and clears it if the replica later fails to match.
+     */
+    private static final long VERIFIED_FLAG =       1L<<61;
+
     /**
      * The slot address in memory.
      */
@@ -315,6 +327,7 @@ public int getSlotIdx() {
      */
     void clear() {
       unsafe.putLongVolatile(null, this.slotAddress, 0);
+      unsafe.putLongVolatile(null, this.slotAddress + 8, 0);
     }
 
     private boolean isSet(long flag) {
@@ -368,6 +381,27 @@ public void makeUnanchorable() {
       clearFlag(ANCHORABLE_FLAG);
     }
 
+    /**
+     * @return      The generation stamp the replica was verified for, or -1
+     *              if the DataNode did not verify it or revoked it.
+     */
+    public long getVerifiedGenStamp() {
+      if (!isSet(VERIFIED_FLAG)) {
+        return -1;
+      }
+      return unsafe.getLongVolatile(null, this.slotAddress + 8);
+    }
+
+    public void makeVerified(long genStamp) {
+      clearFlag(VERIFIED_FLAG);
+      unsafe.putLongVolatile(null, this.slotAddress + 8, genStamp);
+      setFlag(VERIFIED_FLAG);
+    }
+
+    public void makeUnverified() {
+      clearFlag(VERIFIED_FLAG);
+    }
+
     public boolean isAnchored() {
       long prev = unsafe.getLongVolatile(null, this.slotAddress);
       // Slot is no longer valid.
@@ -106,4 +106,41 @@ public void testAllocateSlots() throws Exception {
     stream.close();
     FileUtil.fullyDelete(path);
   }
+
+  @Test(timeout=60000)
+  public void testVerifiedSlot() throws Exception {
+    File path = new File(TEST_BASE, "testVerifiedSlot");
+    path.mkdirs();
+    SharedFileDescriptorFactory factory =
+        SharedFileDescriptorFactory.create("shm_",
+            new String[] { path.getAbsolutePath() });
+    FileInputStream stream =
+        factory.createDescriptor("testVerifiedSlot", 4096);
+    ShortCircuitShm shm = new ShortCircuitShm(ShmId.createRandom(), stream);
+    ExtendedBlockId key = new ExtendedBlockId(123L, "test_bp1");
+    Slot slot = shm.allocAndRegisterSlot(key);
+    Assert.assertEquals(-1, slot.getVerifiedGenStamp());
+
+    // Verification does not disturb the anchors, nor they it
+    slot.makeAnchorable();
+    Assert.assertTrue(slot.addAnchor());
+    slot.makeVerified(1001L);
+    Assert.assertEquals(1001L, slot.getVerifiedGenStamp());
+    Assert.assertTrue(slot.isAnchored());
+    slot.makeVerified(1002L);
+    Assert.assertEquals(1002L, slot.getVerifiedGenStamp());
+    slot.makeUnverified();
+    Assert.assertEquals(-1, slot.getVerifiedGenStamp());
+    Assert.assertTrue(slot.isAnchored());
+    slot.removeAnchor();
+
+    // A reused slot starts out unverified
+    shm.unregisterSlot(slot.getSlotIdx());
+    slot.makeVerified(1003L);
+    slot = shm.allocAndRegisterSlot(key);
+    Assert.assertEquals(-1, slot.getVerifiedGenStamp());
+    shm.free();
+    stream.close();
+    FileUtil.fullyDelete(path);
+  }
 }
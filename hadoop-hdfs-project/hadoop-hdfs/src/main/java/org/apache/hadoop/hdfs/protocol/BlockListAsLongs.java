@@ -22,7 +22,9 @@
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
@@ -46,6 +48,15 @@ public abstract class BlockListAsLongs implements Iterable<BlockReportReplica> {
   private final static int CHUNK_SIZE = 64*1024; // 64K
   private static long[] EMPTY_LONGS = new long[]{0, 0};
 
+  // Nimble digests of the replicas, see getBlocksBuffer.  The flag is above
+  // the bits of the replica state, which older decoders mask off; the last
+  // byte of the magic is not a valid last byte of a varint, so the footer
+  // cannot be mistaken for the end of a report without digests.
+  private static final long DIGEST_FLAG = 1L << 4;
+  private static final int DIGESTS_MAGIC = 0xD16E57A5;
+  private static final int DIGESTS_HASH_LONGS = 4;
+  private static final int FOOTER_LENGTH = 8 * DIGESTS_HASH_LONGS + 4 + 4;
+
   public static BlockListAsLongs EMPTY = new BlockListAsLongs() {
     @Override
     public int getNumberOfBlocks() {
@@ -207,11 +218,50 @@ public static Builder builder(int maxDataLength) {
    * The structure of the buffer is as follows:
    * - each replica is represented by 4 longs:
    *   blockId, block length, genstamp, replica state
+   * - if any replica has a Nimble digest, followed by:
+   *   - the digests of the replicas whose state has DIGEST_FLAG set, in
+   *     order, each as a varint length and the digest bytes
+   *   - a fixed-size footer: the 4 little-endian longs of the digests hash,
+   *     the offset of the first digest, and DIGESTS_MAGIC
+   *
+   * Decoders that predate digests read the replicas and ignore the rest.
    *
    * @return ByteString encoded block report
    */
   abstract public ByteString getBlocksBuffer();
 
+  /**
+   * Hash of the Nimble digests in the report, with the ids and generation
+   * stamps of their replicas, independent of the order of the replicas.
+   * Two reports of a storage with the same hash carry the same digests.
+   * It detects changes and is not meant to resist forgery; the DataNode is
+   * trusted to report the digests anyway.
+   *
+   * @return the hash, or null if the report has no digests
+   */
+  public byte[] getDigestsHash() {
+    return null;
+  }
+
+  /**
+   * @return true if the digests of the replicas are in the report, and not
+   *         only their hash
+   */
+  public boolean hasDigests() {
+    return false;
+  }
+
+  /**
+   * The report without the digests of its replicas, but with their hash.
+   * Used to skip digests the receiver already has.  Does not copy the
+   * replicas.
+   *
+   * @return BlockListAsLongs
+   */
+  public BlockListAsLongs withoutDigests() {
+    return this;
+  }
+
   /**
    * List of ByteStrings that encode this block report
    *
@@ -265,6 +315,10 @@ public static class Builder {
     private int numBlocks = 0;
     private int numFinalized = 0;
     private final int maxDataLength;
+    // digests are written to their own column, appended by build()
+    private ByteString.Output digestsOut;
+    private CodedOutputStream digestsCos;
+    private final long[] digestsHash = new long[DIGESTS_HASH_LONGS];
 
     Builder(int maxDataLength) {
       out = ByteString.newOutput(64*1024);
@@ -279,9 +333,15 @@ public void add(Replica replica) {
         cos.writeUInt64NoTag(replica.getBytesOnDisk());
         cos.writeUInt64NoTag(replica.getGenerationStamp());
         ReplicaState state = replica.getState();
+        byte[] digest = replica.getChecksum();
         // although state is not a 64-bit value, using a long varint to
         // allow for future use of the upper bits
-        cos.writeUInt64NoTag(state.getValue());
+        if (digest != null) {
+          cos.writeUInt64NoTag(state.getValue() | DIGEST_FLAG);
+          addDigest(replica, digest);
+        } else {
+          cos.writeUInt64NoTag(state.getValue());
+        }
         if (state == ReplicaState.FINALIZED) {
           numFinalized++;
         }
@@ -292,6 +352,35 @@ public void add(Replica replica) {
       }
     }
 
+    private void addDigest(Replica replica, byte[] digest) throws IOException {
+      if (digestsOut == null) {
+        digestsOut = ByteString.newOutput(64*1024);
+        digestsCos = CodedOutputStream.newInstance(digestsOut);
+      }
+      digestsCos.writeByteArrayNoTag(digest);
+
+      // Sums are independent of the order of the replicas
+      long key = mix(replica.getBlockId() * 0x9E3779B97F4A7C15L
+          + replica.getGenerationStamp()) + digest.length;
+      for (int i = 0; i < DIGESTS_HASH_LONGS; i++) {
+        long w = 0;
+        for (int j = i; j < digest.length; j += DIGESTS_HASH_LONGS) {
+          w = Long.rotateLeft(w, 8) ^ (digest[j] & 0xff);
+        }
+        digestsHash[i] += mix(w ^ Long.rotateLeft(key, 16 * i));
+      }
+    }
+
+    // finalizer of MurmurHash3
+    private static long mix(long h) {
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      h *= 0xc4ceb9fe1a85ec53L;
+      h ^= h >>> 33;
+      return h;
+    }
+
     public int getNumberOfBlocks() {
       return numBlocks;
     }
@@ -299,6 +388,17 @@ public int getNumberOfBlocks() {
     public BlockListAsLongs build() {
       try {
         cos.flush();
+        if (digestsOut != null) {
+          int digestsOffset = out.size();
+          digestsCos.flush();
+          digestsOut.writeTo(out);
+          for (long h : digestsHash) {
+            cos.writeFixed64NoTag(h);
+          }
+          cos.writeFixed32NoTag(digestsOffset);
+          cos.writeFixed32NoTag(DIGESTS_MAGIC);
+          cos.flush();
+        }
       } catch (IOException ioe) {
         // shouldn't happen, ByteString.Output doesn't throw IOE
         throw new IllegalStateException(ioe);
@@ -320,6 +420,9 @@ private static class BufferDecoder extends BlockListAsLongs {
     private final int numBlocks;
     private int numFinalized;
     private final int maxDataLength;
+    // bounds of the digests in the buffer, -1 if there is no footer
+    private int digestsOffset = -1;
+    private int digestsEnd = -1;
 
     BufferDecoder(final int numBlocks, final ByteString buf,
         final int maxDataLength) {
@@ -332,6 +435,50 @@ private static class BufferDecoder extends BlockListAsLongs {
       this.numFinalized = numFinalized;
       this.buffer = buf;
       this.maxDataLength = maxDataLength;
+      readFooter();
+    }
+
+    private void readFooter() {
+      int size = buffer.size();
+      if (size < FOOTER_LENGTH) {
+        return;
+      }
+      try {
+        CodedInputStream cis = buffer.substring(size - 8).newCodedInput();
+        int offset = cis.readRawLittleEndian32();
+        if (cis.readRawLittleEndian32() != DIGESTS_MAGIC
+            || offset < 0 || offset > size - FOOTER_LENGTH) {
+          return;
+        }
+        digestsOffset = offset;
+        digestsEnd = size - FOOTER_LENGTH;
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    @Override
+    public byte[] getDigestsHash() {
+      if (digestsOffset < 0) {
+        return null;
+      }
+      return buffer.substring(digestsEnd, buffer.size() - 8).toByteArray();
+    }
+
+    @Override
+    public boolean hasDigests() {
+      return digestsOffset >= 0 && digestsEnd > digestsOffset;
+    }
+
+    @Override
+    public BlockListAsLongs withoutDigests() {
+      if (!hasDigests()) {
+        return this;
+      }
+      // The footer still points past the replicas, at no digests
+      ByteString buf = buffer.substring(0, digestsOffset).concat(
+          buffer.substring(digestsEnd));
+      return new BufferDecoder(numBlocks, numFinalized, buf, maxDataLength);
     }
 
     @Override
@@ -396,11 +543,16 @@ public Iterator<BlockReportReplica> iterator() {
       return new Iterator<BlockReportReplica>() {
         final BlockReportReplica block = new BlockReportReplica();
         final CodedInputStream cis = buffer.newCodedInput();
+        final CodedInputStream digestsIn = hasDigests() ?
+            buffer.substring(digestsOffset, digestsEnd).newCodedInput() : null;
         private int currentBlockIndex = 0;
 
         {
           if (maxDataLength != IPC_MAXIMUM_DATA_LENGTH_DEFAULT) {
             cis.setSizeLimit(maxDataLength);
+            if (digestsIn != null) {
+              digestsIn.setSizeLimit(maxDataLength);
+            }
           }
         }
 
@@ -418,8 +570,14 @@ public BlockReportReplica next() {
             block.setBlockId(cis.readSInt64());
             block.setNumBytes(cis.readRawVarint64() & NUM_BYTES_MASK);
             block.setGenerationStamp(cis.readRawVarint64());
-            long state = cis.readRawVarint64() & REPLICA_STATE_MASK;
-            block.setState(ReplicaState.getState((int)state));
+            long state = cis.readRawVarint64();
+            block.setState(ReplicaState.getState(
+                (int)(state & REPLICA_STATE_MASK)));
+            if ((state & DIGEST_FLAG) != 0 && digestsIn != null) {
+              block.readDigest(digestsIn);
+            } else {
+              block.clearDigest();
+            }
           } catch (IOException e) {
             throw new IllegalStateException(e);
           }
@@ -523,6 +681,11 @@ public void remove() {
   @InterfaceAudience.Private
   public static class BlockReportReplica extends Block implements Replica {
     private ReplicaState state;
+    // Digest decoded from a report, reused for every replica of the report
+    private byte[] digest;
+    private int digestLength;
+    private ByteBuffer digestView;
+
     private BlockReportReplica() {
     }
     public BlockReportReplica(Block block) {
@@ -536,6 +699,62 @@ public BlockReportReplica(Block block) {
     public void setState(ReplicaState state) {
       this.state = state;
     }
+
+    private void readDigest(CodedInputStream in) throws IOException {
+      int len = in.readRawVarint32();
+      if (digest == null) {
+        digest = new byte[Block.TAGGED_CHECKSUM_LENGTH];
+        digestView = ByteBuffer.wrap(digest).asReadOnlyBuffer();
+      }
+      if (len <= 0 || len > digest.length) {
+        throw new IOException("Invalid digest length " + len);
+      }
+      for (int i = 0; i < len; i++) {
+        digest[i] = in.readRawByte();
+      }
+      digestLength = len;
+    }
+
+    private void clearDigest() {
+      digestLength = 0;
+    }
+
+    @Override
+    public byte[] getChecksum() {
+      return (digestLength > 0) ?
+          Arrays.copyOf(digest, digestLength) : super.getChecksum();
+    }
+
+    @Override
+    public boolean hasChecksum() {
+      return digestLength > 0 || super.hasChecksum();
+    }
+
+    /**
+     * A digest decoded from a report is returned without copying it, and is
+     * only valid until the next replica of the report is decoded.
+     */
+    @Override
+    public ByteBuffer getChecksumBuffer() {
+      if (digestLength > 0) {
+        digestView.limit(digestLength).position(0);
+        return digestView;
+      }
+      return super.getChecksumBuffer();
+    }
+
+    @Override
+    public String getChecksumAsString() {
+      return (digestLength > 0) ?
+          Block.encodeChecksumBytes(getChecksum()) :
+          super.getChecksumAsString();
+    }
+
+    @Override
+    public void setChecksum(byte[] checksum) {
+      digestLength = 0;
+      super.setChecksum(checksum);
+    }
     @Override
     public ReplicaState getState() {
       return state;
@@ -0,0 +1,217 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.blockmanagement;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.hdfs.protocol.Block;
+
+/**
+ * Off-heap storage for the Nimble digests of the blocks in the BlocksMap.
+ *
+ * Digests are kept in fixed-size slots of direct memory slabs, allocated as
+ * the table grows, so that a stored {@link BlockInfo} only carries an int
+ * slot number instead of a 32 byte array, its header and a reference.
+ * Released slots are reused before the table grows.
+ *
+ * A slot holds either kind of digest: its first byte is the algorithm id of
+ * a tagged digest, or 0 for an untagged one, followed by the 32 byte digest.
+ *
+ * Slots are allocated and released under the table's monitor. Reads and
+ * writes of a slot are not synchronized: like the rest of BlockInfo, they
+ * are guarded by the namesystem lock.
+ */
+@InterfaceAudience.Private
+final class BlockDigestTable {
+  static final int DIGEST_LENGTH = Block.CHECKSUM_LENGTH;
+  static final int SLOT_LENGTH = Block.TAGGED_CHECKSUM_LENGTH;
+  private static final byte UNTAGGED = 0;
+
+  private final int slotsPerSlab;
+  private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+
+  /** Released slots, reused last in first out. */
+  private int[] free = new int[16];
+  private int numFree;
+  /** Slots below this have been handed out at least once. */
+  private int high;
+
+  BlockDigestTable(int slotsPerSlab) {
+    if (slotsPerSlab <= 0) {
+      throw new IllegalArgumentException(
+          "slotsPerSlab must be positive: " + slotsPerSlab);
+    }
+    this.slotsPerSlab = slotsPerSlab;
+  }
+
+  /**
+   * @return a slot for one digest; its contents are undefined until put()
+   */
+  synchronized int allocate() {
+    if (numFree > 0) {
+      return free[--numFree];
+    }
+    if (high == Integer.MAX_VALUE) {
+      throw new IllegalStateException("Block digest table is full");
+    }
+    int slot = high++;
+    int slab = slot / slotsPerSlab;
+    if (slab == slabs.length) {
+      ByteBuffer[] grown = Arrays.copyOf(slabs, slab + 1);
+      grown[slab] = ByteBuffer.allocateDirect(slotsPerSlab * SLOT_LENGTH);
+      slabs = grown;
+    }
+    return slot;
+  }
+
+  synchronized void release(int slot) {
+    if (numFree == free.length) {
+      free = Arrays.copyOf(free, free.length * 2);
+    }
+    free[numFree++] = slot;
+  }
+
+  /**
+   * @return whether the digest can be stored in a slot
+   */
+  static boolean fits(byte[] digest) {
+    return digest.length == DIGEST_LENGTH
+        || (digest.length == SLOT_LENGTH && digest[0] != UNTAGGED);
+  }
+
+  static boolean fits(ByteBuffer digest) {
+    int pos = digest.position();
+    return digest.remaining() == DIGEST_LENGTH
+        || (digest.remaining() == SLOT_LENGTH && digest.get(pos) != UNTAGGED);
+  }
+
+  /**
+   * Copy the remaining bytes of a buffer into the slot, without changing
+   * the buffer's position.
+   */
+  void put(int slot, ByteBuffer digest) {
+    ByteBuffer slab = slabs[slot / slotsPerSlab];
+    int off = (slot % slotsPerSlab) * SLOT_LENGTH;
+    int pos = digest.position();
+    int len = digest.remaining();
+    if (len == DIGEST_LENGTH) {
+      slab.put(off++, UNTAGGED);
+    }
+    for (int i = 0; i < len; i++) {
+      slab.put(off + i, digest.get(pos + i));
+    }
+  }
+
+  void put(int slot, byte[] digest) {
+    ByteBuffer slab = slabs[slot / slotsPerSlab];
+    int off = (slot % slotsPerSlab) * SLOT_LENGTH;
+    if (digest.length == DIGEST_LENGTH) {
+      slab.put(off++, UNTAGGED);
+    }
+    for (int i = 0; i < digest.length; i++) {
+      slab.put(off + i, digest[i]);
+    }
+  }
+
+  byte[] get(int slot) {
+    ByteBuffer slab = slabs[slot / slotsPerSlab];
+    int off = (slot % slotsPerSlab) * SLOT_LENGTH;
+    int end = off + SLOT_LENGTH;
+    if (slab.get(off) == UNTAGGED) {
+      off++;
+    }
+    byte[] digest = new byte[end - off];
+    for (int i = 0; i < digest.length; i++) {
+      digest[i] = slab.get(off + i);
+    }
+    return digest;
+  }
+
+  /**
+   * @return whether the slot holds exactly the remaining bytes of a buffer,
+   * compared without copying either
+   */
+  boolean matches(int slot, ByteBuffer digest) {
+    ByteBuffer slab = slabs[slot / slotsPerSlab];
+    int off = (slot % slotsPerSlab) * SLOT_LENGTH;
+    int pos = digest.position();
+    int len = digest.remaining();
+    if (len == DIGEST_LENGTH) {
+      if (slab.get(off++) != UNTAGGED) {
+        return false;
+      }
+    } else if (len != SLOT_LENGTH) {
+      return false;
+    }
+    for (int i = 0; i < len; i++) {
+      if (slab.get(off + i) != digest.get(pos + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Compare the slot with the remaining bytes of a buffer, without copying
+   * either. Only tagged digests of the same algorithm are comparable: an
+   * untagged digest may have been made with either algorithm.
+   *
+   * @return whether both are tagged with the same algorithm but differ
+   */
+  boolean conflicts(int slot, ByteBuffer digest) {
+    ByteBuffer slab = slabs[slot / slotsPerSlab];
+    int off = (slot % slotsPerSlab) * SLOT_LENGTH;
+    int pos = digest.position();
+    if (digest.remaining() != SLOT_LENGTH || slab.get(off) == UNTAGGED
+        || slab.get(off) != digest.get(pos)) {
+      return false;
+    }
+    for (int i = 1; i < SLOT_LENGTH; i++) {
+      if (slab.get(off + i) != digest.get(pos + i)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return a read-only view of the slot, without copying the digest
+   */
+  ByteBuffer view(int slot) {
+    ByteBuffer view = slabs[slot / slotsPerSlab].asReadOnlyBuffer();
+    int off = (slot % slotsPerSlab) * SLOT_LENGTH;
+    int end = off + SLOT_LENGTH;
+    if (view.get(off) == UNTAGGED) {
+      off++;
+    }
+    view.limit(end).position(off);
+    return view.slice();
+  }
+
+  /** @return the number of slots in use */
+  synchronized int size() {
+    return high - numFree;
+  }
+
+  /** @return the bytes of direct memory held by the table */
+  long getCapacityBytes() {
+    return (long) slabs.length * slotsPerSlab * SLOT_LENGTH;
+  }
+}
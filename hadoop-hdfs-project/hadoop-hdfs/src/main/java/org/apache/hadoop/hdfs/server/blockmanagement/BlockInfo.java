@@ -18,6 +18,7 @@
 package org.apache.hadoop.hdfs.server.blockmanagement;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -44,6 +45,9 @@ public abstract class BlockInfo extends Block
 
   public static final BlockInfo[] EMPTY_ARRAY = {};
 
+  /** Nimble digests of the blocks stored in a BlocksMap, 2 MB per slab. */
+  static final BlockDigestTable DIGESTS = new BlockDigestTable(1 << 16);
+
   /**
    * Replication factor.
    */
@@ -73,6 +77,12 @@ public abstract class BlockInfo extends Block
 
   private BlockUnderConstructionFeature uc;
 
+  /**
+   * 1 + the slot of the Nimble digest in {@link #DIGESTS} while the block is
+   * in the BlocksMap, or 0 while Block keeps the digest on the heap.
+   */
+  private int digestSlot;
+
   /**
    * Construct an entry for blocksmap
    * @param size the block's replication factor, or the total number of blocks
@@ -354,6 +364,116 @@ public boolean equals(Object obj) {
     return (this == obj) || super.equals(obj);
   }
 
+  /* Nimble digest */
+
+  /**
+   * Move the digest into {@link #DIGESTS}. Called when the block is added to
+   * the BlocksMap.
+   */
+  void pinDigest() {
+    if (digestSlot != 0 || !super.hasChecksum()) {
+      return;
+    }
+    byte[] digest = super.getChecksum();
+    if (!BlockDigestTable.fits(digest)) {
+      return;
+    }
+    int slot = DIGESTS.allocate();
+    DIGESTS.put(slot, digest);
+    digestSlot = slot + 1;
+    super.setChecksum((byte[]) null);
+  }
+
+  /**
+   * Move the digest back onto the heap and release its slot. Called when the
+   * block is removed from the BlocksMap, which may not be the last use of it.
+   */
+  void unpinDigest() {
+    if (digestSlot == 0) {
+      return;
+    }
+    byte[] digest = DIGESTS.get(digestSlot - 1);
+    DIGESTS.release(digestSlot - 1);
+    digestSlot = 0;
+    super.setChecksum(digest);
+  }
+
+  @Override
+  public void set(long blkid, long len, long genStamp, byte[] checksum) {
+    super.set(blkid, len, genStamp, checksum);
+    // Runs from Block's constructors too, when digestSlot is still 0
+    if (digestSlot != 0) {
+      DIGESTS.release(digestSlot - 1);
+      digestSlot = 0;
+      pinDigest();
+    }
+  }
+
+  @Override
+  public byte[] getChecksum() {
+    return (digestSlot != 0) ?
+        DIGESTS.get(digestSlot - 1) : super.getChecksum();
+  }
+
+  @Override
+  public boolean hasChecksum() {
+    return digestSlot != 0 || super.hasChecksum();
+  }
+
+  @Override
+  public ByteBuffer getChecksumBuffer() {
+    return (digestSlot != 0) ?
+        DIGESTS.view(digestSlot - 1) : super.getChecksumBuffer();
+  }
+
+  @Override
+  public String getChecksumAsString() {
+    return (digestSlot != 0) ?
+        Block.encodeChecksumBytes(getChecksum()) : super.getChecksumAsString();
+  }
+
+  @Override
+  public void setChecksum(byte[] checksum) {
+    if (digestSlot != 0) {
+      if (checksum != null && BlockDigestTable.fits(checksum)) {
+        DIGESTS.put(digestSlot - 1, checksum);
+        return;
+      }
+      DIGESTS.release(digestSlot - 1);
+      digestSlot = 0;
+    }
+    super.setChecksum(checksum);
+  }
+
+  /**
+   * Set the digest from a buffer, such as the digest of a block report
+   * replica. A block in the BlocksMap copies it into its slot, without
+   * allocating.
+   */
+  public void setChecksum(ByteBuffer checksum) {
+    if (digestSlot != 0 && checksum != null
+        && BlockDigestTable.fits(checksum)) {
+      DIGESTS.put(digestSlot - 1, checksum);
+      return;
+    }
+    byte[] digest = null;
+    if (checksum != null) {
+      digest = new byte[checksum.remaining()];
+      checksum.duplicate().get(digest);
+    }
+    setChecksum(digest);
+  }
+
+  /**
+   * @return whether the block has a digest other than the given one
+   */
+  boolean hasOtherChecksum(ByteBuffer checksum) {
+    if (digestSlot != 0) {
+      return !DIGESTS.matches(digestSlot - 1, checksum);
+    }
+    return super.hasChecksum() && !super.getChecksumBuffer().equals(checksum);
+  }
+
   @Override
   public LightWeightGSet.LinkedElement getNext() {
     return nextLinkedElement;
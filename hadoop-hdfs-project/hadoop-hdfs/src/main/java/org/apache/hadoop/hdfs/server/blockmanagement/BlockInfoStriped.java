@@ -26,6 +26,7 @@
 import org.apache.hadoop.hdfs.util.StripedBlockUtil;
 import org.apache.hadoop.hdfs.protocol.ErasureCodingPolicy;
 
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
@@ -41,6 +42,12 @@
  * However, it is possible that some block is over-replicated. Thus the triplet
  * array's size can be larger than (m+k). Thus currently we use an extra byte
  * array to record the block index for each triplet.
+ *
+ * The Nimble digest of each internal block is kept by block index, in
+ * {@link BlockInfo#DIGESTS} like the digest of a contiguous block. The
+ * DataNodes that write or reconstruct an internal block digest it as they
+ * receive it, so a reconstructed internal block is checked against the digest
+ * of the one it replaces when it is reported.
  */
 @InterfaceAudience.Private
 public class BlockInfoStriped extends BlockInfo {
@@ -51,6 +58,12 @@ public class BlockInfoStriped extends BlockInfo {
    * be further optimized to save memory usage.
    */
   private byte[] indices;
+  /**
+   * 1 + the slot in {@link BlockInfo#DIGESTS} of the digest of each internal
+   * block, by block index, or 0 if none was reported. Null until the first
+   * digest is reported.
+   */
+  private int[] internalDigestSlots;
 
   public BlockInfoStriped(Block blk, ErasureCodingPolicy ecPolicy) {
     super(blk, (short) (ecPolicy.getNumDataUnits() + ecPolicy.getNumParityUnits()));
@@ -211,6 +224,101 @@ private void ensureCapacity(int totalSize, boolean keepOld) {
     }
   }
 
+  /* Nimble digests of the internal blocks */
+
+  /**
+   * Record the digest of the internal block with the given index. Digests
+   * that do not fit in a slot are not kept.
+   */
+  void setInternalChecksum(int blockIndex, ByteBuffer checksum) {
+    if (checksum == null || !BlockDigestTable.fits(checksum)) {
+      return;
+    }
+    if (internalDigestSlots == null) {
+      internalDigestSlots = new int[getTotalBlockNum()];
+    }
+    if (internalDigestSlots[blockIndex] == 0) {
+      internalDigestSlots[blockIndex] = DIGESTS.allocate() + 1;
+    }
+    DIGESTS.put(internalDigestSlots[blockIndex] - 1, checksum);
+  }
+
+  /**
+   * @return the digest of the internal block with the given index, or null
+   * if none was reported
+   */
+  public byte[] getInternalChecksum(int blockIndex) {
+    int slot = getInternalDigestSlot(blockIndex);
+    return (slot != 0) ? DIGESTS.get(slot - 1) : null;
+  }
+
+  /**
+   * @return whether a reported digest of the internal block with the given
+   * index differs from the recorded one, made with the same algorithm
+   */
+  boolean conflictsWithInternalChecksum(int blockIndex, ByteBuffer checksum) {
+    int slot = getInternalDigestSlot(blockIndex);
+    return slot != 0 && checksum != null
+        && DIGESTS.conflicts(slot - 1, checksum);
+  }
+
+  /**
+   * @return whether the internal block with the given index has a digest
+   * other than the given one
+   */
+  boolean hasOtherInternalChecksum(int blockIndex, ByteBuffer checksum) {
+    int slot = getInternalDigestSlot(blockIndex);
+    return slot != 0 && !DIGESTS.matches(slot - 1, checksum);
+  }
+
+  private int getInternalDigestSlot(int blockIndex) {
+    return (internalDigestSlots != null
+        && blockIndex >= 0 && blockIndex < internalDigestSlots.length) ?
+        internalDigestSlots[blockIndex] : 0;
+  }
+
+  /**
+   * Release the digests of all internal blocks. They are reported again by
+   * the DataNodes.
+   */
+  void clearInternalChecksums() {
+    if (internalDigestSlots == null) {
+      return;
+    }
+    for (int slot : internalDigestSlots) {
+      if (slot != 0) {
+        DIGESTS.release(slot - 1);
+      }
+    }
+    internalDigestSlots = null;
+  }
+
+  @Override
+  void unpinDigest() {
+    super.unpinDigest();
+    clearInternalChecksums();
+  }
+
+  /**
+   * Internal blocks of a new generation stamp, such as after block recovery
+   * truncated them to a safe length, are digested anew.
+   */
+  @Override
+  public void setGenerationStamp(long stamp) {
+    if (stamp != getGenerationStamp()) {
+      clearInternalChecksums();
+    }
+    super.setGenerationStamp(stamp);
+  }
+
+  @Override
+  public void set(long blkid, long len, long genStamp, byte[] checksum) {
+    if (genStamp != getGenerationStamp()) {
+      clearInternalChecksums();
+    }
+    super.set(blkid, len, genStamp, checksum);
+  }
+
   public long spaceConsumed() {
     // In case striped blocks, total usage by this striped blocks should
     // be the total of data blocks and parity blocks because
@@ -25,6 +25,7 @@
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
@@ -1631,6 +1632,19 @@ public boolean isSufficientlyReplicated(BlockInfo b) {
   public BlocksWithLocations getBlocksWithLocations(final DatanodeID datanode,
       final long size, final long minBlockSize) throws
       UnregisteredNodeException {
+    return getBlocksWithLocations(datanode, size, minBlockSize, false);
+  }
+
+  /**
+   * Get all blocks with location information from a datanode.
+   *
+   * @param internalBlocks whether to list the internal blocks the datanode
+   *        stores of a block group, each with its own Nimble digest, instead
+   *        of the block group
+   */
+  public BlocksWithLocations getBlocksWithLocations(final DatanodeID datanode,
+      final long size, final long minBlockSize, final boolean internalBlocks)
+      throws UnregisteredNodeException {
     final DatanodeDescriptor node = getDatanodeManager().getDatanode(datanode);
     if (node == null) {
       blockLog.warn("BLOCK* getBlocks: Asking for blocks from an" +
@@ -1658,7 +1672,8 @@ public BlocksWithLocations getBlocksWithLocations(final DatanodeID datanode,
       if (curBlock.getNumBytes() < minBlockSize) {
         continue;
       }
-      totalSize += addBlock(curBlock, results);
+      totalSize += addBlock(curBlock, results,
+            internalBlocks ? node : null);
       if (NimbleUtils.debug())
         LOG.info("Found: " + getStoredBlock(curBlock));
     }
@@ -1670,7 +1685,8 @@ public BlocksWithLocations getBlocksWithLocations(final DatanodeID datanode,
         if (curBlock.getNumBytes() < minBlockSize) {
           continue;
         }
-        totalSize += addBlock(curBlock, results);
+        totalSize += addBlock(curBlock, results,
+            internalBlocks ? node : null);
         if (NimbleUtils.debug())
           LOG.info("Found: " + getStoredBlock(curBlock));
       }
@@ -2768,6 +2784,28 @@ public boolean processReport(final DatanodeID nodeID,
         return !node.hasStaleStorages();
       }
 
+      // Skip decoding the Nimble digests of the report if they are the ones
+      // the storage reported last time.
+      BlockListAsLongs report = newReport;
+      byte[] digestsHash = (report != null) ? report.getDigestsHash() : null;
+      if (digestsHash != null
+          && Arrays.equals(digestsHash, storageInfo.getDigestsHash())) {
+        LOG.debug("Digests of storage {} on {} are unchanged",
+            storageInfo.getStorageID(), nodeID);
+        report = report.withoutDigests();
+        digestsHash = null;
+      } else if (digestsHash != null && !report.hasDigests()) {
+        // The DataNode left out digests it believes we hold, but an earlier
+        // report was discarded, or another replica changed them since.
+        // Registering again makes it send them with its next report.
+        blockLog.info("BLOCK* processReport 0x{} with lease ID 0x{}: "
+            + "digests of storage {} on {} are missing, asking it to "
+            + "register again", strBlockReportId, fullBrLeaseId,
+            storageInfo.getStorageID(), nodeID);
+        node.setForceRegistration(true);
+        digestsHash = null;
+      }
+
       if (storageInfo.getBlockReportCount() == 0) {
         // The first block report can be processed a lot more efficiently than
         // ordinary block reports.  This shortens restart times.
@@ -2776,15 +2814,18 @@ public boolean processReport(final DatanodeID nodeID,
             strBlockReportId, fullBrLeaseId,
             storageInfo.getStorageID(),
             nodeID);
-        processFirstBlockReport(storageInfo, newReport);
+        processFirstBlockReport(storageInfo, report);
       } else {
         // Block reports for provided storage are not
         // maintained by DN heartbeats
         if (!StorageType.PROVIDED.equals(storageInfo.getStorageType())) {
-          invalidatedBlocks = processReport(storageInfo, newReport);
+          invalidatedBlocks = processReport(storageInfo, report);
         }
       }
       storageInfo.receivedBlockReport();
+      if (digestsHash != null) {
+        storageInfo.setDigestsHash(digestsHash);
+      }
     } finally {
       endTime = Time.monotonicNow();
       namesystem.writeUnlock();
@@ -3018,6 +3059,7 @@ void processFirstBlockReport(
         }
         continue;
       }
+      setReportedChecksum(storedBlock, iblk);
       
       // If block is under construction, add this replica to its list
       if (isBlockUnderConstruction(storedBlock, ucState, reportedState)) {
@@ -3149,12 +3191,6 @@ private BlockInfo processReportedBlock(
       toInvalidate.add(new Block(block));
       return null;
     }
-    // Ensure the timestamp is correct!
-    // Only set checksum if it's set. Avoids empty checksums during startup.
-    // This assumption is legal since codebase of the DataNode is trusted.
-    if (block.getChecksum() != null) {
-      storedBlock.setChecksum(block.getChecksum());
-    }
     BlockUCState ucState = storedBlock.getBlockUCState();
 
     // Block is on the NN
@@ -3183,6 +3219,7 @@ private BlockInfo processReportedBlock(
       }
       return storedBlock;
     }
+    setReportedChecksum(storedBlock, block);
 
     if (isBlockUnderConstruction(storedBlock, ucState, reportedState)) {
       toUC.add(new StatefulBlockInfo(storedBlock,
@@ -3200,6 +3237,42 @@ private BlockInfo processReportedBlock(
     return storedBlock;
   }
 
+  /**
+   * Record the Nimble digest of a reported replica that is not corrupt.
+   * Only set it if the replica carries one, which avoids empty checksums
+   * during startup; this is legal since the codebase of the DataNode is
+   * trusted. A striped group keeps the digest of each internal block by its
+   * index, instead of the digest of whichever internal block was reported
+   * last.
+   *
+   * A replica that changes the recorded digest also changes what the other
+   * storages of the block last reported, so their digests hashes no longer
+   * describe the digests the NameNode holds, and are forgotten.
+   */
+  private static void setReportedChecksum(BlockInfo storedBlock,
+      Block reported) {
+    if (!reported.hasChecksum()) {
+      return;
+    }
+    final ByteBuffer checksum = reported.getChecksumBuffer();
+    final boolean changed;
+    if (storedBlock.isStriped()) {
+      BlockInfoStriped striped = (BlockInfoStriped) storedBlock;
+      int blockIndex = BlockIdManager.getBlockIndex(reported);
+      changed = striped.hasOtherInternalChecksum(blockIndex, checksum);
+      striped.setInternalChecksum(blockIndex, checksum);
+    } else {
+      changed = storedBlock.hasOtherChecksum(checksum);
+      storedBlock.setChecksum(checksum);
+    }
+    if (changed) {
+      Iterator<DatanodeStorageInfo> storages = storedBlock.getStorageInfos();
+      while (storages.hasNext()) {
+        storages.next().setDigestsHash(null);
+      }
+    }
+  }
+
   /**
    * Queue the given reported block for later processing in the
    * standby node. @see PendingDataNodeMessages.
@@ -3318,6 +3391,14 @@ private BlockToMarkCorrupt checkReplicaCorrupt(
               reported.getNumBytes() + " does not match " +
               "length in block map " + blockMapSize,
               Reason.SIZE_MISMATCH);
+        } else if (storedBlock.isStriped() && reported.hasChecksum()
+            && ((BlockInfoStriped) storedBlock).conflictsWithInternalChecksum(
+                BlockIdManager.getBlockIndex(reported),
+                reported.getChecksumBuffer())) {
+          return new BlockToMarkCorrupt(new Block(reported), storedBlock,
+              "block is " + ucState + " and reported digest does not match "
+              + "the digest of the internal block in block map",
+              Reason.DIGEST_MISMATCH);
         } else {
           return null; // not corrupt
         }
@@ -4124,8 +4205,11 @@ private void removeStaleReplicas(List<ReplicaUnderConstruction> staleReplicas,
    * Get all valid locations of the block & add the block to results
    * @return the length of the added block; 0 if the block is not added. If the
    * added block is a block group, return its approximate internal block size
+   * @param internalBlocksOf if not null, add the internal blocks of a block
+   *        group stored on this datanode instead of the group
    */
-  private long addBlock(BlockInfo block, List<BlockWithLocations> results) {
+  private long addBlock(BlockInfo block, List<BlockWithLocations> results,
+      DatanodeDescriptor internalBlocksOf) {
     final List<DatanodeStorageInfo> locations = getValidLocations(block);
     if(locations.size() == 0) {
       return 0;
@@ -4141,7 +4225,10 @@ private long addBlock(BlockInfo block, List<BlockWithLocations> results) {
       }
       BlockWithLocations blkWithLocs = new BlockWithLocations(block,
           datanodeUuids, storageIDs, storageTypes);
-      if(block.isStriped()) {
+      if(block.isStriped() && internalBlocksOf != null) {
+        return addInternalBlocks((BlockInfoStriped) block, locations,
+            internalBlocksOf, results);
+      } else if(block.isStriped()) {
         BlockInfoStriped blockStriped = (BlockInfoStriped) block;
         byte[] indices = new byte[locations.size()];
         for (int i = 0; i < locations.size(); i++) {
@@ -4159,6 +4246,38 @@ private long addBlock(BlockInfo block, List<BlockWithLocations> results) {
     }
   }
 
+  /**
+   * Add the internal blocks of a block group stored on a datanode, each
+   * with the Nimble digest reported for its index. Internal blocks without
+   * a digest are not added.
+   * @return the total length of the added internal blocks
+   */
+  private long addInternalBlocks(BlockInfoStriped block,
+      List<DatanodeStorageInfo> locations, DatanodeDescriptor node,
+      List<BlockWithLocations> results) {
+    long added = 0;
+    for (DatanodeStorageInfo s : locations) {
+      if (!s.getDatanodeDescriptor().equals(node)) {
+        continue;
+      }
+      int blockIndex = block.getStorageBlockIndex(s);
+      byte[] checksum = block.getInternalChecksum(blockIndex);
+      if (checksum == null) {
+        continue;
+      }
+      long length = getInternalBlockLength(block.getNumBytes(),
+          block.getCellSize(), block.getDataBlockNum(), blockIndex);
+      Block internal = new Block(block.getBlockId() + blockIndex, length,
+          block.getGenerationStamp(), checksum);
+      results.add(new BlockWithLocations(internal,
+          new String[] {node.getDatanodeUuid()},
+          new String[] {s.getStorageID()},
+          new StorageType[] {s.getStorageType()}));
+      added += length;
+    }
+    return added;
+  }
+
   /**
    * The given node is reporting that it received a certain block.
    */
@@ -4308,12 +4427,16 @@ private void processIncrementalBlockReport(final DatanodeDescriptor node,
         deleted++;
         break;
       case RECEIVED_BLOCK:
-        LOG.info("Received block: " + rdbi.getBlock() + " hash=" + rdbi.getBlock().getChecksumAsString());
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Received block: " + rdbi.getBlock() + " hash=" + rdbi.getBlock().getChecksumAsString());
+        }
         addBlock(storageInfo, rdbi.getBlock(), rdbi.getDelHints());
         received++;
         break;
       case RECEIVING_BLOCK:
-        LOG.info("Receiving block: " + rdbi.getBlock() + " hash=" + rdbi.getBlock().getChecksumAsString());
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Receiving block: " + rdbi.getBlock() + " hash=" + rdbi.getBlock().getChecksumAsString());
+        }
         receiving++;
         processAndHandleReportedBlock(storageInfo, rdbi.getBlock(),
                                       ReplicaState.RBW, null);
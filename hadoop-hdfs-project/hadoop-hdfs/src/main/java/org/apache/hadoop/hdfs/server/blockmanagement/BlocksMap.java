@@ -98,6 +98,9 @@ void close() {
   
   void clear() {
     if (blocks != null) {
+      for (BlockInfo b : blocks) {
+        b.unpinDigest();
+      }
       blocks.clear();
       totalReplicatedBlocks.reset();
       totalECBlockGroups.reset();
@@ -111,7 +114,11 @@ BlockInfo addBlockCollection(BlockInfo b, BlockCollection bc) {
     BlockInfo info = blocks.get(b);
     if (info != b) {
       info = b;
-      blocks.put(info);
+      BlockInfo replaced = blocks.put(info);
+      if (replaced != null) {
+        replaced.unpinDigest();
+      }
+      info.pinDigest();
       incrementBlockStat(info);
     }
     info.setBlockCollectionId(bc.getId());
@@ -128,6 +135,7 @@ void removeBlock(BlockInfo block) {
     if (blockInfo == null) {
       return;
     }
+    blockInfo.unpinDigest();
     decrementBlockStat(block);
 
     assert blockInfo.getBlockCollectionId() == INodeId.INVALID_INODE_ID;
@@ -189,6 +197,7 @@ boolean removeNode(Block b, DatanodeDescriptor node) {
     if (info.hasNoStorage()    // no datanodes left
         && info.isDeleted()) { // does not belong to a file
       blocks.remove(b);  // remove block from the map
+      info.unpinDigest();
       decrementBlockStat(info);
     }
     return removed;
@@ -128,6 +128,16 @@ public void remove() {
   /** The number of block reports received */
   private int blockReportCount = 0;
 
+  /**
+   * Hash of the Nimble digests in the last full block report of the storage
+   * that carried them, so that unchanged digests need not be applied again.
+   * Digests are kept per block, not per replica: the hash is forgotten when
+   * another replica changes the digest of one of the storage's blocks, so
+   * that a report with the same hash still matches what the NameNode holds.
+   * It survives a failover, as the standby applied the same reports.
+   */
+  private byte[] digestsHash;
+
   /**
    * Set to false on any NN failover, and reset to true
    * whenever a block report is received.
@@ -162,6 +172,15 @@ public int getBlockReportCount() {
 
   void setBlockReportCount(int blockReportCount) {
     this.blockReportCount = blockReportCount;
+    this.digestsHash = null;
+  }
+
+  byte[] getDigestsHash() {
+    return digestsHash;
+  }
+
+  void setDigestsHash(byte[] digestsHash) {
+    this.digestsHash = digestsHash;
   }
 
   public boolean areBlockContentsStale() {
@@ -25,6 +25,7 @@
 import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -33,6 +34,7 @@
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadLocalRandom;
@@ -96,6 +98,15 @@ enum RunningState {
   private long fullBlockReportLeaseId;
   private final SortedSet<Integer> blockReportSizes =
       Collections.synchronizedSortedSet(new TreeSet<>());
+  /**
+   * Hash of the Nimble digests last sent to the NN in a full block report,
+   * by storage ID.  Reports whose digests are unchanged carry only the hash.
+   * Forgotten when registering, as the NN may have restarted.  The NN does
+   * not acknowledge the digests it applied: when it gets only the hash of
+   * digests it does not hold, it asks the DN to register again.
+   */
+  private final Map<String, byte[]> sentDigestsHashes =
+      new ConcurrentHashMap<>();
   private final int maxDataLength;
 
   private final IncrementalBlockReportManager ibrManager;
@@ -365,8 +376,17 @@ List<DatanodeCommand> blockReport(long fullBrLeaseId) throws IOException {
     StorageBlockReport reports[] =
         new StorageBlockReport[perVolumeBlockLists.size()];
 
+    Map<String, byte[]> digestsHashes = new HashMap<>();
     for(Map.Entry<DatanodeStorage, BlockListAsLongs> kvPair : perVolumeBlockLists.entrySet()) {
       BlockListAsLongs blockList = kvPair.getValue();
+      String storageId = kvPair.getKey().getStorageID();
+      byte[] digestsHash = blockList.getDigestsHash();
+      if (digestsHash != null) {
+        if (Arrays.equals(digestsHash, sentDigestsHashes.get(storageId))) {
+          blockList = blockList.withoutDigests();
+        }
+        digestsHashes.put(storageId, digestsHash);
+      }
       reports[i++] = new StorageBlockReport(kvPair.getKey(), blockList);
       totalBlockCount += blockList.getNumberOfBlocks();
     }
@@ -412,6 +432,8 @@ List<DatanodeCommand> blockReport(long fullBrLeaseId) throws IOException {
         }
       }
       success = true;
+      sentDigestsHashes.clear();
+      sentDigestsHashes.putAll(digestsHashes);
     } finally {
       // Log the block report processing stats from Datanode perspective
       long brSendCost = monotonicNow() - brSendStartTime;
@@ -777,6 +799,7 @@ void register(NamespaceInfo nsInfo) throws IOException {
         newBpRegistration = bpNamenode.registerDatanode(newBpRegistration);
         newBpRegistration.setNamespaceInfo(nsInfo);
         bpRegistration = newBpRegistration;
+        sentDigestsHashes.clear();
         break;
       } catch(EOFException e) {  // namenode might have just restarted
         LOG.info("Problem connecting to server: " + nnAddr + " :"
@@ -842,6 +865,10 @@ private void fetchBlockChecksums(String bpid, DataNode dn) throws IOException {
     LOG.info("BlocksWithLocations: " + bls.getBlocks().length + " " + bls);
     for (BlocksWithLocations.BlockWithLocations bl: bls.getBlocks()) {
       Replica replica = dn.data.getReplica(bpid, bl.getBlock().getBlockId());
+      if (replica == null) {
+        LOG.info("No replica of {} to set the checksum of", bl.getBlock());
+        continue;
+      }
       replica.setChecksum(bl.getBlock().getChecksum());
       LOG.info("BlockWithLocations: " + bl);
     }
@@ -0,0 +1,240 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.hadoop.hdfs.server.datanode.fsdataset.FsVolumeSpi;
+import org.apache.hadoop.hdfs.server.datanode.metrics.DataNodeMetrics;
+import org.apache.hadoop.hdfs.server.nimble.BlockMerkleTree;
+import org.apache.hadoop.hdfs.server.nimble.NimbleError;
+import org.slf4j.Logger;
+
+/**
+ * Hashing stage of a {@link BlockReceiver}: feeds the bytes written to the
+ * replica into its Nimble digest, flat or Merkle.
+ *
+ * With maxPending > 0, packets are copied into a bounded ring of buffers and
+ * hashed on the hash pool of the replica's volume, so that the receiver can
+ * mirror and ack the next packet meanwhile. The receiver blocks once
+ * maxPending packets wait to be hashed. The pool is shared by every receiver
+ * of the volume: each hasher has at most one task on it, which hashes up to
+ * maxPending packets in order and then queues itself again behind the tasks
+ * of other receivers. With 0, or without a pool, packets are hashed on the
+ * receiver's thread.
+ *
+ * {@link #finish()} waits until every queued packet is hashed, after which
+ * the digest or tree given to the constructor is complete. A hashing failure
+ * is sticky and fails the next update or finish.
+ */
+class BlockHasher implements Closeable {
+  static final Logger LOG = DataNode.LOG;
+
+  private final MessageDigest md; // null when building a Merkle tree
+  private final BlockMerkleTree.Builder tree;
+  private final int maxPending;
+  private final DataNodeMetrics metrics;
+  private final FsVolumeSpi volume;
+  private final String name;
+  private final Executor executor; // null to hash inline
+
+  // Guarded by "this". The head of the queue is being hashed.
+  private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+  private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+  private IOException failure;
+  private boolean closed;
+  private boolean draining; // a task hashes the pending packets
+
+  BlockHasher(MessageDigest md, BlockMerkleTree.Builder tree, int maxPending,
+      DataNodeMetrics metrics, FsVolumeSpi volume, String name) {
+    this.md = md;
+    this.tree = tree;
+    this.maxPending = Math.max(0, maxPending);
+    this.metrics = metrics;
+    this.volume = volume;
+    this.name = name;
+    this.executor = (volume != null && this.maxPending > 0) ?
+        volume.getNimbleHashPool() : null;
+  }
+
+  /**
+   * Hash the given bytes after everything passed before. The bytes are
+   * copied, so the caller may reuse the array when this returns.
+   */
+  void update(byte[] b, int off, int len) throws IOException {
+    if (executor == null) {
+      hash(b, off, len);
+      metrics.incrNimbleBytesHashed(volume, len);
+      return;
+    }
+
+    ByteBuffer buf;
+    synchronized (this) {
+      checkFailure();
+      if (closed) {
+        throw new IOException("Hasher of " + name + " is closed");
+      }
+      if (pending.size() >= maxPending) {
+        long start = System.nanoTime();
+        try {
+          while (pending.size() >= maxPending && failure == null) {
+            wait();
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException(
+              "Interrupted while queueing a packet of " + name + " to hash");
+        } finally {
+          metrics.addNimbleHashQueueFullNanos(System.nanoTime() - start);
+        }
+        checkFailure();
+      }
+      buf = free.pollFirst();
+    }
+
+    // The receiver is the only producer, so the copy needs no lock
+    if (buf == null || buf.capacity() < len) {
+      buf = ByteBuffer.allocate(len);
+    }
+    buf.clear();
+    buf.put(b, off, len).flip();
+
+    boolean schedule;
+    synchronized (this) {
+      pending.addLast(buf);
+      schedule = !draining;
+      draining = true;
+    }
+    metrics.incrNimbleHashPendingBytes(len);
+    if (schedule) {
+      schedule();
+    }
+  }
+
+  private void schedule() {
+    try {
+      executor.execute(this::drain);
+    } catch (RejectedExecutionException e) {
+      // The volume is shutting down: hash what is left here
+      drain();
+    }
+  }
+
+  /**
+   * Wait until every queued packet is hashed.
+   */
+  synchronized void finish() throws IOException {
+    if (!pending.isEmpty()) {
+      long start = System.nanoTime();
+      try {
+        while (failure == null && !pending.isEmpty()) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException(
+            "Interrupted while waiting for the digest of " + name);
+      } finally {
+        metrics.addNimbleHashJoinNanos(System.nanoTime() - start);
+      }
+    }
+    checkFailure();
+  }
+
+  private void checkFailure() throws IOException {
+    if (failure != null) {
+      throw new NimbleError("Hashing " + name + " failed earlier: "
+          + failure.getMessage());
+    }
+  }
+
+  private void hash(byte[] b, int off, int len) {
+    if (tree != null) {
+      tree.update(b, off, len);
+    } else {
+      md.update(b, off, len);
+    }
+  }
+
+  /**
+   * Hash up to maxPending packets, then queue another task if more are
+   * pending, so that a fast receiver does not hold a thread of the pool.
+   */
+  private void drain() {
+    for (int n = 0; ; n++) {
+      ByteBuffer buf;
+      synchronized (this) {
+        if (pending.isEmpty()) {
+          draining = false;
+          return;
+        }
+        if (n == maxPending) {
+          break;
+        }
+        buf = pending.peekFirst();
+      }
+
+      int len = buf.remaining();
+      try {
+        hash(buf.array(), buf.arrayOffset() + buf.position(), len);
+      } catch (RuntimeException e) {
+        LOG.error("Cannot hash a packet of " + name, e);
+        long dropped = 0;
+        synchronized (this) {
+          failure = new IOException(e);
+          for (ByteBuffer b : pending) {
+            dropped += b.remaining();
+          }
+          pending.clear();
+          draining = false;
+          notifyAll();
+        }
+        metrics.incrNimbleHashPendingBytes(-dropped);
+        return;
+      }
+
+      synchronized (this) {
+        pending.removeFirst();
+        if (free.size() < maxPending) {
+          free.addLast(buf);
+        }
+        notifyAll();
+      }
+      metrics.incrNimbleHashPendingBytes(-len);
+      metrics.incrNimbleBytesHashed(volume, len);
+    }
+    schedule();
+  }
+
+  /**
+   * Stop taking packets. Packets queued so far are still hashed, so that
+   * finish() can complete the digest.
+   */
+  @Override
+  public synchronized void close() {
+    closed = true;
+    notifyAll();
+  }
+}
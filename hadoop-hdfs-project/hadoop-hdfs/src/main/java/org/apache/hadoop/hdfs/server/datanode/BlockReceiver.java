@@ -21,6 +21,7 @@
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.util.ArrayDeque;
 import java.util.Arrays;
@@ -34,6 +35,7 @@
 import org.apache.hadoop.fs.StorageType;
 import org.apache.hadoop.hdfs.DFSUtilClient;
 import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocol.BlockLocalPathInfo;
 import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
 import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
 import org.apache.hadoop.hdfs.protocol.datatransfer.BlockConstructionStage;
@@ -42,9 +44,12 @@
 import org.apache.hadoop.hdfs.protocol.datatransfer.PipelineAck;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.BlockOpResponseProto;
 import org.apache.hadoop.hdfs.protocol.proto.DataTransferProtos.Status;
+import org.apache.hadoop.hdfs.server.datanode.fsdataset.FsVolumeSpi;
 import org.apache.hadoop.hdfs.server.datanode.fsdataset.ReplicaInputStreams;
 import org.apache.hadoop.hdfs.server.datanode.fsdataset.ReplicaOutputStreams;
 import org.apache.hadoop.hdfs.server.datanode.metrics.DataNodePeerMetrics;
+import org.apache.hadoop.hdfs.server.nimble.BlockDigest;
+import org.apache.hadoop.hdfs.server.nimble.BlockMerkleTree;
 import org.apache.hadoop.hdfs.server.nimble.NimbleError;
 import org.apache.hadoop.hdfs.server.nimble.NimbleUtils;
 import org.apache.hadoop.hdfs.server.protocol.DatanodeRegistration;
@@ -80,6 +85,12 @@ class BlockReceiver implements Closeable {
 
   /* Block's Checksum */
   private MessageDigest memChecksum;
+  /* Block's Merkle tree, used instead of memChecksum if enabled */
+  private BlockMerkleTree.Builder memTree;
+  private BlockMerkleTree finalTree;
+  private byte[] finalChecksum;
+  /* Feeds memChecksum or memTree, created with the first packet */
+  private BlockHasher hasher;
 
   /**
    * In the case that the client is writing with a different
@@ -164,7 +175,12 @@ class BlockReceiver implements Closeable {
       this.myAddr = myAddr;
       this.srcDataNode = srcDataNode;
       this.datanode = datanode;
-      this.memChecksum = NimbleUtils._checksum();
+      int merkleChunkSize = datanode.getDnConf().getNimbleMerkleChunkSize();
+      if (merkleChunkSize > 0) {
+        this.memTree = new BlockMerkleTree.Builder(merkleChunkSize);
+      } else {
+        this.memChecksum = NimbleUtils._checksum();
+      }
 
       this.clientname = clientname;
       this.isDatanode = clientname.length() == 0;
@@ -227,7 +243,7 @@ class BlockReceiver implements Closeable {
           block.setGenerationStamp(newGs);
           break;
         case PIPELINE_SETUP_APPEND:
-          this.memChecksum = digestToAppend(block); // verify checksum & open for appending
+          digestToAppend(block); // verify checksum & open for appending
           replicaHandler = datanode.data.append(block, newGs, minBytesRcvd);
           block.setGenerationStamp(newGs);
           datanode.notifyNamenodeReceivingBlock(
@@ -301,51 +317,176 @@ class BlockReceiver implements Closeable {
     }
   }
 
-  private MessageDigest digestOfDiskData(ExtendedBlock b) throws IOException {
-    MessageDigest md = NimbleUtils._checksum();
-    InputStream is     = datanode.data.getBlockInputStream(b, 0);
+  /**
+   * Block file of a replica, read directly: the callers below verify the
+   * data themselves, so going through getBlockInputStream() would hash the
+   * replica twice.
+   */
+  private File blockFileOf(ExtendedBlock b) throws IOException {
+    return new File(datanode.data.getBlockLocalPathInfo(b).getBlockPath());
+  }
+
+  private void digestOfDiskData(ExtendedBlock b, MessageDigest md,
+      BlockMerkleTree.Builder tree) throws IOException {
+    try (InputStream is = new FileInputStream(blockFileOf(b))) {
+      // Compute checksum of on-disk data
+      byte[] buffer = new byte[64 * 1024];
+      int count;
+      long hashed = 0;
+      while ((count = is.read(buffer)) > 0) {
+        md.update(buffer, 0, count);
+        if (tree != null) {
+          tree.update(buffer, 0, count);
+        }
+        hashed += count;
+      }
+      datanode.metrics.incrNimbleBytesHashed(datanode.data.getVolume(b),
+          hashed);
+    }
+  }
+
+  /**
+   * Continue the Merkle tree of a replica from its sidecar. Only the last
+   * chunk is read back, and it is checked against the tree, whose root was
+   * checked against the in-memory digest.
+   *
+   * @return a builder positioned at the end of the replica, or null if the
+   *         replica has no usable sidecar
+   */
+  private BlockMerkleTree.Builder resumeMerkleTree(ExtendedBlock b,
+      Block memBlock) throws IOException {
+    File blockFile = blockFileOf(b);
+    BlockMerkleTree tree =
+        BlockMerkleTree.load(BlockMerkleTree.sidecarFile(blockFile));
+    if (tree == null
+        || !tree.matches(memBlock.getChecksum(), memBlock.getNumBytes())) {
+      return null;
+    }
+    return continueMerkleTree(blockFile, tree);
+  }
 
-    // Compute checksum of on-disk data
-    byte[]      buffer = new byte[8192];
-    int count;
-    while ((count = is.read(buffer)) > 0) {
-      md.update(buffer, 0, count);
+  /**
+   * @return a builder of the verified tree, positioned at the end of the
+   *         replica after rereading and checking its last chunk
+   */
+  private BlockMerkleTree.Builder continueMerkleTree(File blockFile,
+      BlockMerkleTree tree) throws IOException {
+    int last = tree.getNumChunks() - 1;
+    long start = (long) last * tree.getChunkSize();
+    ByteBuffer tail = ByteBuffer.allocate((int) (tree.getLength() - start));
+    try (FileInputStream in = new FileInputStream(blockFile)) {
+      FileChannel ch = in.getChannel();
+      while (tail.hasRemaining()) {
+        if (ch.read(tail, start + tail.position()) < 0) {
+          throw new EOFException("Block file " + blockFile + " is shorter "
+              + "than " + tree.getLength() + " bytes");
+        }
+      }
     }
-    return md;
+    tail.flip();
+    tree.verifyChunk(last, tail.duplicate());
+
+    BlockMerkleTree.Builder builder = tree.resume();
+    tail.position((int) (builder.getLength() - start));
+    builder.update(tail);
+    return builder;
   }
 
   /**
-   * Verify in-memory checksum matches checksum of data on-disk.
+   * Verify in-memory checksum matches checksum of data on-disk, and set up
+   * memChecksum or memTree to continue from the end of the replica. A replica
+   * keeps the digest format it was written with.
+   *
+   * Replicas with a Merkle sidecar resume from it and only reread their last
+   * chunk. Other replicas are read in full once: in parallel if their digest
+   * is tagged as Merkle, otherwise for the format of a tagged digest, or for
+   * both formats if the digest is untagged.
    *
    * @param b   Block
-   * @return MessageDigest to append
    * @throws IOException
    */
-  public MessageDigest digestToAppend(ExtendedBlock b) throws IOException {
-    // Compute checksum of on-disk data
-    MessageDigest md = digestOfDiskData(b);
-    byte[] diskChecksum;
+  private void digestToAppend(ExtendedBlock b) throws IOException {
+    int merkleChunkSize = datanode.getDnConf().getNimbleMerkleChunkSize();
+
+    // Get checksum stored in-memory
+    Block memBlock = datanode.data.getStoredBlock(b.getBlockPoolId(), b.getBlockId());
+    byte[] memChecksum = memBlock.getChecksum();
+
+    // A tagged digest names its format, whatever this DataNode writes
+    BlockDigest.Algorithm algorithm = BlockDigest.algorithmOf(memChecksum);
+    if (algorithm == BlockDigest.Algorithm.SHA256) {
+      merkleChunkSize = 0;
+    } else if (algorithm == BlockDigest.Algorithm.MERKLE
+        && merkleChunkSize == 0) {
+      merkleChunkSize = BlockDigest.getMerkleChunkSize(datanode.getConf());
+    }
+
+    if (merkleChunkSize > 0) {
+      BlockMerkleTree.Builder resumed = resumeMerkleTree(b, memBlock);
+      if (resumed != null) {
+        this.memTree = resumed;
+        this.memChecksum = null;
+        return;
+      }
+    }
 
+    if (algorithm == BlockDigest.Algorithm.MERKLE) {
+      File blockFile = blockFileOf(b);
+      FsVolumeSpi volume = datanode.data.getVolume(b);
+      BlockMerkleTree tree;
+      try (FileInputStream in = new FileInputStream(blockFile)) {
+        tree = BlockDigest.merkleTree(in.getChannel(), memBlock.getNumBytes(),
+            merkleChunkSize, datanode.getConf().getInt(
+                NimbleUtils.Conf.VERIFY_WINDOW_KEY,
+                NimbleUtils.Conf.VERIFY_WINDOW_DEFAULT),
+            volume != null ? volume.getNimbleHashPool() : null);
+      }
+      datanode.metrics.incrNimbleBytesHashed(volume, memBlock.getNumBytes());
+      if (!tree.matches(memChecksum, memBlock.getNumBytes())) {
+        throw digestMismatch(memChecksum, tree.getDigest());
+      }
+      this.memTree = continueMerkleTree(blockFile, tree);
+      this.memChecksum = null;
+      return;
+    }
+
+    MessageDigest md = NimbleUtils._checksum();
+    BlockMerkleTree.Builder tree = (merkleChunkSize > 0)
+        ? new BlockMerkleTree.Builder(merkleChunkSize) : null;
+    digestOfDiskData(b, md, tree);
+
+    if (tree != null && tree.build().matches(memChecksum,
+        memBlock.getNumBytes())) {
+      this.memTree = tree;
+      this.memChecksum = null;
+      return;
+    }
+
+    byte[] diskChecksum;
     try {
       MessageDigest md2 = (MessageDigest) md.clone();
       diskChecksum = md2.digest();
     } catch (CloneNotSupportedException e) {
       LOG.info("Cloning MessageDigest not supported");
       diskChecksum = md.digest();
-      md = digestOfDiskData(b);
+      md = NimbleUtils._checksum();
+      digestOfDiskData(b, md, null);
     }
 
-    // Get checksum stored in-memory
-    Block memBlock = datanode.data.getStoredBlock(b.getBlockPoolId(), b.getBlockId());
-    byte[] memChecksum = memBlock.getChecksum();
-
     // Verify in-memory checksum is same as on-disk checksum
-    if (!Arrays.equals(memChecksum, diskChecksum)) {
-      LOG.error("Checksum mismatch: expected={} got={}",
-          NimbleUtils.URLEncode(memChecksum), NimbleUtils.URLEncode(diskChecksum));
-      throw new NimbleError("on-disk checksum does not match");
+    if (!BlockDigest.matches(memChecksum, BlockDigest.Algorithm.SHA256,
+        diskChecksum)) {
+      throw digestMismatch(memChecksum, diskChecksum);
     }
-    return md;
+    this.memChecksum = md;
+    this.memTree = null;
+  }
+
+  private NimbleError digestMismatch(byte[] expected, byte[] got) {
+    datanode.metrics.incrNimbleDigestMismatches();
+    LOG.error("Checksum mismatch: expected={} got={}",
+        NimbleUtils.URLEncode(expected), NimbleUtils.URLEncode(got));
+    return new NimbleError("on-disk checksum does not match");
   }
 
 
@@ -356,8 +497,42 @@ Replica getReplica() {
     return replicaInfo;
   }
 
-  byte[] getMemChecksum() {
-    return memChecksum.digest();
+  /**
+   * Digest of everything received, flat or Merkle, tagged with its
+   * algorithm. Can be called repeatedly.
+   */
+  byte[] getMemChecksum() throws IOException {
+    if (finalChecksum == null) {
+      if (hasher != null) {
+        hasher.finish();
+      }
+      if (memTree != null) {
+        finalTree = memTree.build();
+        finalChecksum = BlockDigest.tag(BlockDigest.Algorithm.MERKLE,
+            finalTree.getDigest());
+      } else {
+        finalChecksum = BlockDigest.tag(BlockDigest.Algorithm.SHA256,
+            memChecksum.digest());
+      }
+    }
+    return finalChecksum;
+  }
+
+  /**
+   * Store the Merkle tree of a finalized replica next to its block file.
+   * Failing to do so is not fatal, the tree is rebuilt on first read.
+   */
+  private void saveMerkleTree() {
+    if (memTree == null) {
+      return;
+    }
+    try {
+      getMemChecksum();
+      BlockLocalPathInfo path = datanode.data.getBlockLocalPathInfo(block);
+      finalTree.save(BlockMerkleTree.sidecarFile(new File(path.getBlockPath())));
+    } catch (IOException e) {
+      LOG.warn("Could not save Merkle tree of " + block, e);
+    }
   }
 
   /**
@@ -371,6 +546,9 @@ public void close() throws IOException {
             Long.toString(maxWriteToDiskMs));
     }
     packetReceiver.close();
+    if (hasher != null) {
+      hasher.close();
+    }
 
     IOException ioe = null;
     if (syncOnClose && (streams.getDataOut() != null || checksumOut != null)) {
@@ -801,8 +979,14 @@ private int receivePacket() throws IOException {
             maxWriteToDiskMs = duration;
           }
 
-          // Checksum for Nimble
-          memChecksum.update(dataBuf.array(), startByteToDisk, numBytesToDisk);
+          // Checksum for Nimble, hashed off this thread unless disabled
+          if (hasher == null) {
+            hasher = new BlockHasher(memChecksum, memTree,
+                datanode.getDnConf().getNimbleHashMaxPending(),
+                datanode.metrics, replicaInfo.getReplicaInfo().getVolume(),
+                block.toString());
+          }
+          hasher.update(dataBuf.array(), startByteToDisk, numBytesToDisk);
 
           final byte[] lastCrc;
           if (shouldNotWriteChecksum) {
@@ -1059,6 +1243,7 @@ void receiveBlock(
             // for isDatnode or TRANSFER_FINALIZED
             // Finalize the block.
             datanode.data.finalizeBlock(block, dirSyncOnFinalize);
+            saveMerkleTree();
           }
         }
         datanode.metrics.incrBlocksWritten();
@@ -1581,6 +1766,7 @@ private void finalizeBlock(long startTime) throws IOException {
         block.setNumBytes(replicaInfo.getNumBytes());
         block.setChecksum(getMemChecksum());
         datanode.data.finalizeBlock(block, dirSyncOnFinalize);
+        saveMerkleTree();
       }
 
       if (pinning) {
@@ -41,6 +41,7 @@
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hdfs.server.datanode.fsdataset.FsVolumeReference;
 import org.apache.hadoop.hdfs.server.datanode.fsdataset.FsVolumeSpi;
+import org.apache.hadoop.hdfs.server.nimble.NimbleUtils;
 import org.apache.hadoop.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -123,6 +124,7 @@ static class Conf {
     final long scanPeriodMs;
     final long cursorSaveMs;
     final boolean skipRecentAccessed;
+    final boolean nimbleScan;
     final Class<? extends ScanResultHandler> resultHandler;
 
     private static long getUnitTestLong(Configuration conf, String key,
@@ -177,6 +179,8 @@ private static long getConfiguredScanPeriodMs(Configuration conf) {
       this.skipRecentAccessed = conf.getBoolean(
           DFS_BLOCK_SCANNER_SKIP_RECENT_ACCESSED,
           DFS_BLOCK_SCANNER_SKIP_RECENT_ACCESSED_DEFAULT);
+      this.nimbleScan = conf.getBoolean(NimbleUtils.Conf.SCAN_ENABLED_KEY,
+          NimbleUtils.Conf.SCAN_ENABLED_DEFAULT);
       if (allowUnitTestSettings) {
         this.resultHandler = (Class<? extends ScanResultHandler>)
             conf.getClass(INTERNAL_VOLUME_SCANNER_SCAN_RESULT_HANDLER,
@@ -73,6 +73,8 @@
 import org.apache.hadoop.hdfs.protocol.datatransfer.TrustedChannelResolver;
 import org.apache.hadoop.hdfs.protocol.datatransfer.sasl.DataTransferSaslUtil;
 import org.apache.hadoop.hdfs.server.common.Util;
+import org.apache.hadoop.hdfs.server.nimble.BlockMerkleTree;
+import org.apache.hadoop.hdfs.server.nimble.NimbleUtils;
 import org.apache.hadoop.security.SaslPropertiesResolver;
 
 import java.util.concurrent.TimeUnit;
@@ -125,6 +127,8 @@ public class DNConf {
   final long restartReplicaExpiry;
 
   private final long processCommandsThresholdMs;
+  private final int nimbleMerkleChunkSize;
+  private final int nimbleHashMaxPending;
 
   final long maxLockedMemory;
   private final String[] pmemDirs;
@@ -308,6 +312,11 @@ public DNConf(final Configurable dn) {
         DFS_DATANODE_PROCESS_COMMANDS_THRESHOLD_DEFAULT,
         TimeUnit.MILLISECONDS
     );
+
+    this.nimbleMerkleChunkSize = BlockMerkleTree.getChunkSize(getConf());
+    this.nimbleHashMaxPending = getConf().getInt(
+        NimbleUtils.Conf.HASH_MAX_PENDING_KEY,
+        NimbleUtils.Conf.HASH_MAX_PENDING_DEFAULT);
   }
 
   // We get minimumNameNodeVersion via a method so it can be mocked out in tests.
@@ -474,4 +483,19 @@ public boolean getPmemCacheRecoveryEnabled() {
   public long getProcessCommandsThresholdMs() {
     return processCommandsThresholdMs;
   }
+
+  /**
+   * @return chunk size of Merkle digests for new replicas, 0 if disabled
+   */
+  public int getNimbleMerkleChunkSize() {
+    return nimbleMerkleChunkSize;
+  }
+
+  /**
+   * @return packets a block receiver may queue for hashing, 0 to hash them
+   * on the receiving thread
+   */
+  public int getNimbleHashMaxPending() {
+    return nimbleHashMaxPending;
+  }
 }
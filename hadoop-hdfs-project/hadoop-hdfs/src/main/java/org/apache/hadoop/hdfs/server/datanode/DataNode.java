@@ -180,6 +180,7 @@
 import org.apache.hadoop.hdfs.server.datanode.web.DatanodeHttpServer;
 import org.apache.hadoop.hdfs.server.diskbalancer.DiskBalancerConstants;
 import org.apache.hadoop.hdfs.server.diskbalancer.DiskBalancerException;
+import org.apache.hadoop.hdfs.server.nimble.NimbleError;
 import org.apache.hadoop.hdfs.server.protocol.BlockRecoveryCommand.RecoveringBlock;
 import org.apache.hadoop.hdfs.server.protocol.DatanodeProtocol;
 import org.apache.hadoop.hdfs.server.protocol.DatanodeRegistration;
@@ -1972,7 +1973,7 @@ FileInputStream[] requestShortCircuitFdsForRead(final ExtendedBlock blk,
     
     try {
       Preconditions.checkNotNull(data, "Storage not yet initialized");
-      fis[0] = (FileInputStream)data.getBlockInputStream(blk, 0);
+      fis[0] = (FileInputStream)data.getShortCircuitInputStream(blk);
       fis[1] = DatanodeUtil.getMetaDataInputStream(blk, data);
     } catch (ClassCastException e) {
       LOG.debug("requestShortCircuitFdsForRead failed", e);
@@ -3471,7 +3472,8 @@ private void handleVolumeFailures(Set<FsVolumeSpi> unhealthyVolumes) {
    * report it to NameNode directly. Otherwise if we judge it as a bad block
    * according to exception type, then we try to add the bad block to
    * blockScanner suspect queue if blockScanner is enabled, or report to
-   * NameNode directly otherwise.
+   * NameNode directly otherwise. A replica that does not match its Nimble
+   * digest is a bad block.
    *
    * @param block The suspicious block
    * @param e The exception encountered when accessing the block
@@ -3481,7 +3483,8 @@ private void handleVolumeFailures(Set<FsVolumeSpi> unhealthyVolumes) {
   void handleBadBlock(ExtendedBlock block, IOException e, boolean fromScanner) {
 
     boolean isBadBlock = fromScanner || (e instanceof DiskFileCorruptException
-        || e instanceof CorruptMetaHeaderException);
+        || e instanceof CorruptMetaHeaderException
+        || e instanceof NimbleError);
 
     if (!isBadBlock) {
       return;
@@ -375,6 +375,13 @@ public void requestShortCircuitFds(final ExtendedBlock blk,
         }
         fis = datanode.requestShortCircuitFdsForRead(blk, token, maxVersion);
         Preconditions.checkState(fis != null);
+        if (registeredSlotId != null) {
+          // The replica was checked against its Nimble digest before its
+          // descriptors were handed out; tell the client through the slot.
+          datanode.shortCircuitRegistry.processBlockVerified(
+              ExtendedBlockId.fromExtendedBlock(blk),
+              blk.getGenerationStamp());
+        }
         bld.setStatus(SUCCESS);
         bld.setShortCircuitAccessVersion(DataNode.CURRENT_BLOCK_FORMAT_VERSION);
       } catch (ShortCircuitFdsVersionException e) {
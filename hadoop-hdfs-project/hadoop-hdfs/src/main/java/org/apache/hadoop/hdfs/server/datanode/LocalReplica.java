@@ -19,8 +19,8 @@
 
 import java.io.*;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -32,6 +32,8 @@
 import org.apache.hadoop.hdfs.server.datanode.fsdataset.FsVolumeSpi;
 import org.apache.hadoop.hdfs.server.datanode.fsdataset.FsVolumeSpi.ScanInfo;
 import org.apache.hadoop.hdfs.server.datanode.fsdataset.LengthInputStream;
+import org.apache.hadoop.hdfs.server.nimble.BlockDigest;
+import org.apache.hadoop.hdfs.server.nimble.BlockMerkleTree;
 import org.apache.hadoop.hdfs.server.nimble.NimbleError;
 import org.apache.hadoop.hdfs.server.nimble.NimbleUtils;
 import org.apache.hadoop.io.IOUtils;
@@ -272,9 +274,23 @@ public boolean blockDataExists() {
 
   @Override
   public boolean deleteBlockData() {
+    File sidecar = BlockMerkleTree.sidecarFile(getBlockFile());
+    if (sidecar.exists() && !sidecar.delete()) {
+      LOG.warn("Could not delete Merkle sidecar {}", sidecar);
+    }
     return getFileIoProvider().fullyDelete(getVolume(), getBlockFile());
   }
 
+  @Override
+  public BlockMerkleTree loadMerkleTree() {
+    return BlockMerkleTree.load(BlockMerkleTree.sidecarFile(getBlockFile()));
+  }
+
+  @Override
+  public void saveMerkleTree(BlockMerkleTree tree) throws IOException {
+    tree.save(BlockMerkleTree.sidecarFile(getBlockFile()));
+  }
+
   @Override
   public long getBlockDataLength() {
     return getBlockFile().length();
@@ -389,7 +405,8 @@ public void bumpReplicaGS(long newGS) throws IOException {
   @Override
   public void truncateBlock(long newLength) throws IOException {
     byte[] newChecksum = truncateBlock(getVolume(), getBlockFile(), getMetaFile(),
-        getNumBytes(), newLength, getChecksum(), getFileIoProvider());
+        getNumBytes(), newLength, getChecksum(), loadMerkleTree(),
+        getFileIoProvider());
     setChecksum(newChecksum);
   }
 
@@ -466,9 +483,14 @@ public void setPinning(LocalFileSystem localFS, Path path) throws
   }
 
 
+  /**
+   * Compute the digest of the first tillLen bytes of a replica, after
+   * checking the whole replica against expectChecksum. Both digests are
+   * computed in one pass through a bounded buffer.
+   */
   public static byte[] getBlockChecksumTill(RandomAccessFile file, byte[] expectChecksum, long tillLen) throws IOException {
     MessageDigest md  = _checksum();
-    byte[] fullChecksum, paritalChecksum;
+    byte[] fullChecksum, paritalChecksum = null;
 
     // Sanity checks
     if (expectChecksum == null) {
@@ -476,24 +498,32 @@ public static byte[] getBlockChecksumTill(RandomAccessFile file, byte[] expectCh
       throw new NimbleError("Truncating block without a known checksum");
     }
 
-    // Calculate partial checksum
-    byte content[] = new byte[(int) file.length()];
-    file.readFully(content);
-    md.update(content, 0, (int) tillLen);
-
-    try {
-      MessageDigest md2 = (MessageDigest) md.clone();
-      paritalChecksum = md2.digest();
-    } catch (CloneNotSupportedException e) {
-      LOG.info("Cloning MessageDigest not supported");
-      throw new NimbleError("Cloning checksum is not supported. Cannot reliably truncate block.");
+    long fileLen = file.length();
+    if (tillLen < 0 || tillLen > fileLen) {
+      throw new IOException("Cannot truncate block of " + fileLen + " bytes to " + tillLen);
+    }
+    byte[] buffer = new byte[(int) Math.max(1, Math.min(fileLen, 64 * 1024))];
+    file.seek(0);
+    for (long pos = 0; pos < fileLen; ) {
+      // Stop reading at tillLen once, to take the partial checksum
+      long limit = (pos < tillLen) ? tillLen : fileLen;
+      int count = file.read(buffer, 0, (int) Math.min(buffer.length, limit - pos));
+      if (count < 0) {
+        throw new EOFException("Block file ended at " + pos + " of " + fileLen);
+      }
+      md.update(buffer, 0, count);
+      pos += count;
+      if (pos == tillLen) {
+        paritalChecksum = partialDigest(md);
+      }
+    }
+    if (tillLen == 0) {
+      paritalChecksum = _checksum().digest();
     }
-
-    // Remaining checksum
-    md.update(content, (int) tillLen, (int)file.length() - (int)tillLen);
     fullChecksum = md.digest();
 
-    if (!Arrays.equals(expectChecksum, fullChecksum)) {
+    if (!BlockDigest.matches(expectChecksum, BlockDigest.Algorithm.SHA256,
+        fullChecksum)) {
       LOG.error("Existing block's checksum mismatch when truncating. {} (exp.) != {} (calc.)",
               NimbleUtils.URLEncode(expectChecksum), NimbleUtils.URLEncode(fullChecksum));
       throw new NimbleError("Incorrect checksum while truncating file");
@@ -503,9 +533,50 @@ public static byte[] getBlockChecksumTill(RandomAccessFile file, byte[] expectCh
     return paritalChecksum;
   }
 
+  private static byte[] partialDigest(MessageDigest md) throws NimbleError {
+    try {
+      return ((MessageDigest) md.clone()).digest();
+    } catch (CloneNotSupportedException e) {
+      LOG.info("Cloning MessageDigest not supported");
+      throw new NimbleError("Cloning checksum is not supported. Cannot reliably truncate block.");
+    }
+  }
+
+  /**
+   * Merkle tree of the first tillLen bytes of a replica. Leaves of the
+   * chunks that are kept whole are taken from the tree, whose root was
+   * checked by the caller. Only the chunk that is cut is reread, and it is
+   * verified against the tree before being rehashed.
+   */
+  private static BlockMerkleTree truncateMerkleTree(RandomAccessFile file,
+      BlockMerkleTree tree, long tillLen) throws IOException {
+    int chunkSize = tree.getChunkSize();
+    int index = (int) (tillLen / chunkSize);
+    BlockMerkleTree.Builder builder = tree.resume(index);
+    int keep = (int) (tillLen - (long) index * chunkSize);
+    if (keep > 0) {
+      byte[] chunk = new byte[(int) Math.min(chunkSize,
+          tree.getLength() - (long) index * chunkSize)];
+      file.seek((long) index * chunkSize);
+      file.readFully(chunk);
+      tree.verifyChunk(index, ByteBuffer.wrap(chunk));
+      builder.update(chunk, 0, keep);
+    }
+    return builder.build();
+  }
+
+  /**
+   * Truncate a replica and compute the digest of what is left, tagged with
+   * its algorithm.
+   *
+   * @param tree Merkle tree of the replica, or null. If it matches
+   *             expectChecksum, the new digest is derived from it and saved
+   *             next to blockFile, without rehashing the kept data.
+   */
   public static byte[] truncateBlock(
       FsVolumeSpi volume, File blockFile, File metaFile,
-      long oldlen, long newlen, byte[] expectChecksum, FileIoProvider fileIoProvider)
+      long oldlen, long newlen, byte[] expectChecksum, BlockMerkleTree tree,
+      FileIoProvider fileIoProvider)
       throws IOException {
     LOG.info("truncateBlock: blockFile=" + blockFile
         + ", metaFile=" + metaFile
@@ -532,10 +603,18 @@ public static byte[] truncateBlock(
     int lastchunksize = (int)(newlen - lastchunkoffset);
     byte[] b = new byte[Math.max(lastchunksize, checksumsize)];
     byte[] newChecksum; // for Nimble
+    BlockMerkleTree newTree = null;
 
     try (RandomAccessFile blockRAF = fileIoProvider.getRandomAccessFile(
         volume, blockFile, "rw")) {
-      newChecksum = getBlockChecksumTill(blockRAF, expectChecksum, newlen);
+      if (tree != null && tree.matches(expectChecksum, oldlen)) {
+        newTree = truncateMerkleTree(blockRAF, tree, newlen);
+        newChecksum = BlockDigest.tag(BlockDigest.Algorithm.MERKLE,
+            newTree.getDigest());
+      } else {
+        newChecksum = BlockDigest.tag(BlockDigest.Algorithm.SHA256,
+            getBlockChecksumTill(blockRAF, expectChecksum, newlen));
+      }
 
       //truncate blockFile
       blockRAF.setLength(newlen);
@@ -557,6 +636,9 @@ public static byte[] truncateBlock(
       metaRAF.write(b, 0, checksumsize);
     }
 
+    if (newTree != null) {
+      newTree.save(BlockMerkleTree.sidecarFile(blockFile));
+    }
     return newChecksum;
   }
 
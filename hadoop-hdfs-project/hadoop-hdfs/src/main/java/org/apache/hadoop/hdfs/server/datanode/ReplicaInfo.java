@@ -17,12 +17,18 @@
  */
 package org.apache.hadoop.hdfs.server.datanode;
 
-import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
-import java.util.Arrays;
+import java.nio.channels.FileChannel;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.fs.LocalFileSystem;
@@ -30,9 +36,13 @@
 import org.apache.hadoop.hdfs.server.datanode.fsdataset.FsVolumeSpi;
 import org.apache.hadoop.hdfs.server.datanode.fsdataset.FsVolumeSpi.ScanInfo;
 import org.apache.hadoop.hdfs.server.datanode.fsdataset.LengthInputStream;
+import org.apache.hadoop.hdfs.server.nimble.BlockDigest;
+import org.apache.hadoop.hdfs.server.nimble.BlockMerkleTree;
+import org.apache.hadoop.hdfs.server.nimble.MerkleVerifyingInputStream;
 import org.apache.hadoop.hdfs.server.nimble.NimbleError;
 import org.apache.hadoop.hdfs.server.nimble.NimbleUtils;
 import org.apache.hadoop.hdfs.server.protocol.ReplicaRecoveryInfo;
+import org.apache.hadoop.hdfs.util.DataTransferThrottler;
 import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.util.LightWeightResizableGSet;
 
@@ -50,6 +60,9 @@ abstract public class ReplicaInfo extends Block
   /** volume where the replica belongs. */
   private FsVolumeSpi volume;
 
+  /** Last full Nimble verification by the volume scanner, or null. */
+  private volatile NimbleScan nimbleScan;
+
   /** This is used by some tests and FsDatasetUtil#computeChecksum. */
   private static final FileIoProvider DEFAULT_FILE_IO_PROVIDER =
       new FileIoProvider(null, null);
@@ -102,29 +115,328 @@ public FileIoProvider getFileIoProvider() {
         : DEFAULT_FILE_IO_PROVIDER;
   }
 
+  /**
+   * Pool of the volume that hashes Merkle digests in parallel, or null if
+   * the volume is unknown, to hash on the calling thread.
+   */
+  private ForkJoinPool getNimbleHashPool() {
+    return (volume != null) ? volume.getNimbleHashPool() : null;
+  }
+
   public InputStream getVerifiedDataInputStream(long seekOffset)
           throws IOException {
-    // Load block to memory
+    return getVerifiedDataInputStream(seekOffset,
+        NimbleUtils.Conf.VERIFY_WINDOW_DEFAULT, 0);
+  }
+
+  /**
+   * Check the replica against its Nimble digest and open it at seekOffset.
+   *
+   * File-backed replicas are hashed through mmap windows of windowSize bytes
+   * and then served from the same file stream, so the block is never copied
+   * into the heap and BlockSender can still use transferTo(). Other replicas
+   * are hashed through a bounded buffer and reopened.
+   *
+   * With merkleChunkSize > 0, a replica whose digest is a
+   * {@link BlockMerkleTree} root is served through a
+   * {@link MerkleVerifyingInputStream}, which only hashes the chunks that
+   * are actually read. If its sidecar is missing or stale, the replica is
+   * hashed in full once and the sidecar rewritten. A digest tagged with its
+   * {@link BlockDigest.Algorithm} is only hashed in that format, and a
+   * Merkle one in parallel; an untagged digest is hashed in both formats.
+   * Tagged Merkle digests are checked even if this DataNode writes flat
+   * ones, with the chunk size of their sidecar or else the default.
+   */
+  public InputStream getVerifiedDataInputStream(long seekOffset,
+      int windowSize, int merkleChunkSize) throws IOException {
+    BlockDigest.Algorithm algorithm =
+        BlockDigest.algorithmOf(getChecksum());
+    merkleChunkSize = getMerkleChunkSize(algorithm, merkleChunkSize);
+
+    if (merkleChunkSize > 0) {
+      BlockMerkleTree tree = loadMerkleTree();
+      if (tree != null && tree.matches(getChecksum(), getNumBytes())) {
+        InputStream ins = getDataInputStream(0);
+        if (ins instanceof FileInputStream) {
+          LOG.debug("Verifying {} by chunk", this);
+          return new MerkleVerifyingInputStream((FileInputStream) ins, tree,
+              seekOffset);
+        }
+        IOUtils.closeStream(ins);
+      }
+    }
+
     InputStream ins = getDataInputStream(0);
-    byte[] data = new byte[(int) this.getNumBytes()];
-    IOUtils.readFully(ins, data, 0, data.length);
+    boolean verified = false;
+    try {
+      byte[] ck;
+      if (algorithm == BlockDigest.Algorithm.MERKLE
+          && ins instanceof FileInputStream) {
+        ck = rebuildMerkleTree(((FileInputStream) ins).getChannel(),
+            merkleChunkSize, windowSize);
+      } else if (merkleChunkSize > 0) {
+        ck = rebuildMerkleTree(ins, merkleChunkSize);
+      } else if (ins instanceof FileInputStream) {
+        ck = NimbleUtils.checksum(((FileInputStream) ins).getChannel(),
+            getNumBytes(), windowSize);
+      } else {
+        ck = NimbleUtils.checksum(ins, getNumBytes(), windowSize);
+      }
+      if (ins instanceof FileInputStream) {
+        ((FileInputStream) ins).getChannel().position(seekOffset);
+      } else {
+        ins.close();
+        ins = getDataInputStream(seekOffset);
+      }
+
+      checkDigest(ck, merkleChunkSize);
+      verified = true;
+      return ins;
+    } finally {
+      if (!verified) {
+        IOUtils.closeStream(ins);
+      }
+    }
+  }
+
+  /**
+   * Check the whole replica against its Nimble digest for the volume
+   * scanner, reading it through the given throttler.
+   *
+   * Merkle digests are always checked by rehashing every chunk: the sidecar
+   * is not trusted here, as this pass is what vouches for the replica to
+   * later reads.
+   */
+  public void verifyNimbleDigest(DataTransferThrottler throttler,
+      int merkleChunkSize) throws IOException {
+    BlockDigest.Algorithm algorithm =
+        BlockDigest.algorithmOf(getChecksum());
+    merkleChunkSize = getMerkleChunkSize(algorithm, merkleChunkSize);
+    byte[] ck;
+    try (InputStream ins =
+        new ThrottledInputStream(getDataInputStream(0), throttler)) {
+      if (merkleChunkSize > 0) {
+        ck = rebuildMerkleTree(ins, merkleChunkSize);
+      } else {
+        ck = NimbleUtils.checksum(ins, getNumBytes(),
+            NimbleUtils.Conf.VERIFY_WINDOW_DEFAULT);
+      }
+    }
+    checkDigest(ck, merkleChunkSize);
+  }
+
+  /**
+   * Check a copy of the replica that the DataNode serves reads from, such as
+   * its cached copy, against its Nimble digest. The copy is hashed through
+   * mmap windows of windowSize bytes, or in parallel for Merkle digests.
+   */
+  public void verifyNimbleDigest(FileChannel ch, int windowSize,
+      int merkleChunkSize) throws IOException {
+    BlockDigest.Algorithm algorithm =
+        BlockDigest.algorithmOf(getChecksum());
+    merkleChunkSize = getMerkleChunkSize(algorithm, merkleChunkSize);
+    byte[] ck;
+    if (merkleChunkSize > 0) {
+      BlockMerkleTree tree = BlockDigest.merkleTree(ch, getNumBytes(),
+          merkleChunkSize, windowSize, getNimbleHashPool());
+      ck = tree.getDigest();
+      if (algorithm == null && !tree.matches(getChecksum(), getNumBytes())) {
+        // An untagged digest may be a flat one
+        ck = NimbleUtils.checksum(ch, getNumBytes(), windowSize);
+        merkleChunkSize = 0;
+      }
+    } else {
+      ck = NimbleUtils.checksum(ch, getNumBytes(), windowSize);
+    }
+    checkDigest(ck, merkleChunkSize);
+  }
 
-    // Verify checksums match
-    byte[] ck = NimbleUtils.checksum(data);
-    if (!Arrays.equals(ck, this.getChecksum())) {
-      String msg = String.format("On disk checksum != in-memory checksum: {} != {} ",
+  /**
+   * Chunk size to check a digest of the given algorithm with: none for flat
+   * digests, and for tagged Merkle digests the chunk size of their sidecar,
+   * or else the default, if this DataNode does not write Merkle digests.
+   */
+  private int getMerkleChunkSize(BlockDigest.Algorithm algorithm,
+      int merkleChunkSize) {
+    if (algorithm == BlockDigest.Algorithm.SHA256) {
+      return 0;
+    } else if (algorithm == BlockDigest.Algorithm.MERKLE
+        && merkleChunkSize == 0) {
+      BlockMerkleTree sidecar = loadMerkleTree();
+      return (sidecar != null) ? sidecar.getChunkSize()
+          : NimbleUtils.Conf.MERKLE_CHUNK_SIZE_DEFAULT;
+    }
+    return merkleChunkSize;
+  }
+
+  private void checkDigest(byte[] ck, int merkleChunkSize)
+      throws NimbleError {
+    BlockDigest.Algorithm computed = (merkleChunkSize > 0)
+        ? BlockDigest.Algorithm.MERKLE : BlockDigest.Algorithm.SHA256;
+    if (!BlockDigest.matches(getChecksum(), computed, ck)) {
+      String msg = String.format("On disk checksum != in-memory checksum: %s != %s ",
               NimbleUtils.URLEncode(ck), this.getChecksumAsString());
       LOG.error(msg);
       throw new NimbleError(msg);
     }
-    LOG.info("Verified checksum of " + this);
+    LOG.debug("Verified checksum of {}", this);
+  }
+
+  /**
+   * State of a replica and its block file when its Nimble digest was last
+   * verified in full in the background, by the volume scanner or when the
+   * replica was cached. Reads may skip rehashing the replica while it still
+   * has this state and the record has not expired.
+   */
+  public static final class NimbleScan {
+    private final long genStamp;
+    private final long numBytes;
+    private final long fileSize;
+    private final long fileMtime;
+    private final Object fileKey;
+    private final long expiry;
+
+    public NimbleScan(ReplicaInfo replica, BasicFileAttributes attrs,
+        long expiry) {
+      this.genStamp = replica.getGenerationStamp();
+      this.numBytes = replica.getNumBytes();
+      this.fileSize = attrs.size();
+      this.fileMtime = attrs.lastModifiedTime().toMillis();
+      this.fileKey = attrs.fileKey();
+      this.expiry = expiry;
+    }
+
+    public long getGenerationStamp() {
+      return genStamp;
+    }
 
-    // Wrap & return
-    InputStream ret = new ByteArrayInputStream(data);
-    ret.skip(seekOffset);
-    return ret;
+    public long getExpiry() {
+      return expiry;
+    }
+
+    /**
+     * @return true if the replica and its file are as they were when
+     *         scanned, and the record is still valid at the given time
+     */
+    public boolean matches(ReplicaInfo replica, BasicFileAttributes attrs,
+        long now) {
+      return now < expiry
+          && genStamp == replica.getGenerationStamp()
+          && numBytes == replica.getNumBytes()
+          && fileSize == attrs.size()
+          && fileMtime == attrs.lastModifiedTime().toMillis()
+          && Objects.equals(fileKey, attrs.fileKey());
+    }
+  }
+
+  public NimbleScan getNimbleScan() {
+    return nimbleScan;
+  }
+
+  public void setNimbleScan(NimbleScan scan) {
+    this.nimbleScan = scan;
+  }
+
+  /** Reads a stream through a throttler, for background verification. */
+  private static final class ThrottledInputStream extends FilterInputStream {
+    private final DataTransferThrottler throttler;
+
+    ThrottledInputStream(InputStream in, DataTransferThrottler throttler) {
+      super(in);
+      this.throttler = throttler;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0 && throttler != null) {
+        throttler.throttle(1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int count = super.read(b, off, len);
+      if (count > 0 && throttler != null) {
+        throttler.throttle(count);
+      }
+      return count;
+    }
+  }
+
+  /**
+   * Rebuild the Merkle tree of a replica with a tagged Merkle digest,
+   * hashing its chunks in parallel, and save it if it matches.
+   *
+   * @return the untagged digest of the tree
+   */
+  private byte[] rebuildMerkleTree(FileChannel ch, int chunkSize,
+      int segmentSize) throws IOException {
+    BlockMerkleTree tree = BlockDigest.merkleTree(ch, getNumBytes(),
+        chunkSize, segmentSize, getNimbleHashPool());
+    if (tree.matches(getChecksum(), getNumBytes())) {
+      try {
+        saveMerkleTree(tree);
+      } catch (IOException e) {
+        LOG.warn("Could not save Merkle tree of {}", this, e);
+      }
+    }
+    return tree.getDigest();
   }
 
+  /**
+   * Hash the whole replica for both the flat digest and a Merkle tree.
+   * If the tree matches the expected digest it is saved as the new sidecar.
+   *
+   * @return whichever digest matches, or the flat one if neither does
+   */
+  private byte[] rebuildMerkleTree(InputStream ins, int chunkSize)
+      throws IOException {
+    MessageDigest flat = NimbleUtils._checksum();
+    BlockMerkleTree.Builder builder = new BlockMerkleTree.Builder(chunkSize);
+    byte[] buffer = new byte[(int) Math.max(1,
+        Math.min(getNumBytes(), 64 * 1024))];
+    long remaining = getNumBytes();
+    while (remaining > 0) {
+      int count = ins.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+      if (count < 0) {
+        throw new EOFException("Replica " + this + " ended " + remaining
+            + " bytes early");
+      }
+      flat.update(buffer, 0, count);
+      builder.update(buffer, 0, count);
+      remaining -= count;
+    }
+
+    BlockMerkleTree tree = builder.build();
+    byte[] treeDigest = tree.getDigest();
+    if (!tree.matches(getChecksum(), getNumBytes())) {
+      return flat.digest();
+    }
+    try {
+      saveMerkleTree(tree);
+    } catch (IOException e) {
+      LOG.warn("Could not save Merkle tree of {}", this, e);
+    }
+    return treeDigest;
+  }
+
+  /**
+   * Load the Merkle tree sidecar of this replica.
+   *
+   * @return the tree, or null if the replica has none
+   */
+  public BlockMerkleTree loadMerkleTree() {
+    return null;
+  }
+
+  /**
+   * Store the Merkle tree sidecar of this replica, if the replica
+   * supports one.
+   */
+  public void saveMerkleTree(BlockMerkleTree tree) throws IOException {
+  }
 
   /**
    * Set the volume where this replica is located on disk.
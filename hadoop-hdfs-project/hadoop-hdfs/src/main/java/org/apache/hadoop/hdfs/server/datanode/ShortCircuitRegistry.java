@@ -254,6 +254,42 @@ public synchronized void processBlockInvalidation(ExtendedBlockId blockId) {
     }
   }
 
+  /**
+   * Mark any slots associated with this blockId as verified against the
+   * Nimble digest of the replica, for the given generation stamp.
+   *
+   * @param blockId        The block ID.
+   * @param genStamp       The generation stamp that was verified.
+   */
+  public synchronized void processBlockVerified(ExtendedBlockId blockId,
+      long genStamp) {
+    if (!enabled) return;
+    Set<Slot> affectedSlots = slots.get(blockId);
+    for (Slot slot : affectedSlots) {
+      slot.makeVerified(genStamp);
+    }
+  }
+
+  /**
+   * Revoke the Nimble verification of any slots associated with this
+   * blockId, because the replica no longer matches its digest.  Clients
+   * stop reading through those slots and fail over to another replica.
+   *
+   * @param blockId        The block ID.
+   */
+  public synchronized void processBlockUnverified(ExtendedBlockId blockId) {
+    if (!enabled) return;
+    final Set<Slot> affectedSlots = slots.get(blockId);
+    if (!affectedSlots.isEmpty()) {
+      LOG.warn("Block {} does not match its Nimble digest.  Revoking the " +
+          "verification of {} short-circuit slot(s).", blockId,
+          affectedSlots.size());
+      for (Slot slot : affectedSlots) {
+        slot.makeUnverified();
+      }
+    }
+  }
+
   public synchronized String getClientNames(ExtendedBlockId blockId) {
     if (!enabled) return "";
     final HashSet<String> clientNames = new HashSet<String>();
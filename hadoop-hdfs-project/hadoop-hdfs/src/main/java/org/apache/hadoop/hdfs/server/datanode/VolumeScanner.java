@@ -440,10 +440,16 @@ private long scanBlock(ExtendedBlock cblock, long bytesPerSec) {
     LOG.debug("start scanning block {}", block);
     BlockSender blockSender = null;
     try {
+      throttler.setBandwidth(bytesPerSec);
+      if (conf.nimbleScan) {
+        // Check the Nimble digest at the same throttled rate first. Reads,
+        // including the BlockSender below, then trust the replica for a while
+        // instead of rehashing it.
+        volume.getDataset().verifyNimbleDigest(block, throttler);
+      }
       blockSender = new BlockSender(block, 0, -1,
           false, true, true, datanode, null,
           CachingStrategy.newDropBehind());
-      throttler.setBandwidth(bytesPerSec);
       long bytesRead = blockSender.sendBlock(nullStream, null, throttler);
       resultHandler.handle(block, null);
       metrics.incrBlocksVerified();
@@ -79,6 +79,9 @@ public class DataNodeVolumeMetrics {
   private MutableRate nativeCopyIoRate;
   private MutableQuantiles[] nativeCopyIoLatencyQuantiles;
 
+  @Metric("number of bytes hashed for Nimble digests")
+  private MutableCounterLong nimbleBytesHashed;
+
   @Metric("number of file io errors")
   private MutableCounterLong totalFileIoErrors;
   @Metric("file io error rate")
@@ -346,6 +349,14 @@ public void addNativeCopyIoLatency(final long latency) {
     }
   }
 
+  public long getNimbleBytesHashed() {
+    return nimbleBytesHashed.value();
+  }
+
+  public void incrNimbleBytesHashed(final long bytes) {
+    nimbleBytesHashed.incr(bytes);
+  }
+
   public void addFileIoError(final long latency) {
     totalFileIoErrors.incr();
     fileIoErrorRate.add(latency);
@@ -60,6 +60,7 @@
 import org.apache.hadoop.hdfs.server.protocol.ReplicaRecoveryInfo;
 import org.apache.hadoop.hdfs.server.protocol.StorageReport;
 import org.apache.hadoop.hdfs.server.protocol.VolumeFailureSummary;
+import org.apache.hadoop.hdfs.util.DataTransferThrottler;
 import org.apache.hadoop.util.ReflectionUtils;
 
 /**
@@ -301,6 +302,30 @@ LengthInputStream getMetaDataInputStream(ExtendedBlock b
   InputStream getBlockInputStream(ExtendedBlock b, long seekOffset)
             throws IOException;
 
+  /**
+   * Returns an input stream over the whole of the specified block, for
+   * passing its file descriptor to a short-circuit reader. The replica is
+   * checked against its Nimble digest before it is returned, since the
+   * reader bypasses the checks of getBlockInputStream.
+   * @param b block
+   * @return an input stream over the raw contents of the block
+   * @throws IOException if the replica does not match, or cannot be read
+   */
+  InputStream getShortCircuitInputStream(ExtendedBlock b) throws IOException;
+
+  /**
+   * Check a finalized replica against its Nimble digest for the volume
+   * scanner, reading it through the throttler. Reads may then skip
+   * rehashing the replica for a while.
+   * @param b block
+   * @param throttler throttler of the scanner
+   * @return false if the replica was not checked, e.g. if it is not
+   *  finalized or the dataset keeps no digests
+   * @throws IOException if the replica does not match, or cannot be read
+   */
+  boolean verifyNimbleDigest(ExtendedBlock b, DataTransferThrottler throttler)
+      throws IOException;
+
   /**
    * Returns an input stream at specified offset of the specified block.
    * The block is still in the tmp directory and is not finalized
@@ -23,6 +23,7 @@
 import java.net.URI;
 import java.nio.channels.ClosedChannelException;
 import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -445,4 +446,10 @@ class VolumeCheckContext {
   FileIoProvider getFileIoProvider();
 
   DataNodeVolumeMetrics getMetrics();
+
+  /**
+   * @return the pool that hashes the Nimble digests of replicas on this
+   * volume, or null to hash them on the calling thread
+   */
+  ForkJoinPool getNimbleHashPool();
 }
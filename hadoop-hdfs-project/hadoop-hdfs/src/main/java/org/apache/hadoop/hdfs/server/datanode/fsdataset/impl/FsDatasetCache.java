@@ -54,6 +54,8 @@
 import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
 import org.apache.hadoop.hdfs.server.datanode.DNConf;
 import org.apache.hadoop.hdfs.server.datanode.DatanodeUtil;
+import org.apache.hadoop.hdfs.server.datanode.ReplicaInfo;
+import org.apache.hadoop.hdfs.server.nimble.NimbleError;
 import org.apache.hadoop.util.Time;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -62,6 +64,12 @@
  * Manages caching for an FsDatasetImpl by using the mmap(2) and mlock(2)
  * system calls to lock blocks into memory. Block checksums are verified upon
  * entry into the cache.
+ *
+ * So is the Nimble digest of the cached copy, while its pages are resident.
+ * Reads of a verified cached block are then served without rehashing it:
+ * from the locked block file, or from persistent memory. Blocks recovered
+ * from persistent memory on restart were not verified, and are read from
+ * their block file until they are cached again.
  */
 @InterfaceAudience.Private
 @InterfaceStability.Unstable
@@ -72,10 +80,18 @@ public class FsDatasetCache {
   private static final class Value {
     final State state;
     final MappableBlock mappableBlock;
+    /** State of the replica when its cached copy was verified, or null. */
+    final ReplicaInfo.NimbleScan verified;
 
     Value(MappableBlock mappableBlock, State state) {
+      this(mappableBlock, state, null);
+    }
+
+    Value(MappableBlock mappableBlock, State state,
+        ReplicaInfo.NimbleScan verified) {
       this.mappableBlock = mappableBlock;
       this.state = state;
+      this.verified = verified;
     }
   }
 
@@ -184,6 +200,7 @@ public FsDatasetCache(FsDatasetImpl dataset) throws IOException {
         this.getDnConf());
     // Both lazy writer and read cache are sharing this statistics.
     this.memCacheStats = cacheLoader.initialize(this.getDnConf());
+    cacheLoader.initializeNimble(dataset.datanode.getConf());
   }
 
   /**
@@ -248,6 +265,17 @@ long getCacheAddress(String bpid, long blockId) {
     return mappableBlock.getAddress();
   }
 
+  /**
+   * @return the state of the replica when its cached copy was checked
+   *         against its Nimble digest, or null if the block is not cached
+   *         or was not checked
+   */
+  synchronized ReplicaInfo.NimbleScan getVerifiedState(String bpid,
+      long blockId) {
+    Value val = mappableBlockMap.get(new ExtendedBlockId(blockId, bpid));
+    return (val != null && val.state == State.CACHED) ? val.verified : null;
+  }
+
   /**
    * @return List of cached blocks suitable for translation into a
    * {@link BlockListAsLongs} for a cache report.
@@ -414,6 +442,7 @@ public void run() {
           key.getBlockId(), length, genstamp);
       long newUsedBytes = cacheLoader.reserve(key, length);
       boolean reservedBytes = false;
+      ReplicaInfo.NimbleScan verified = null;
       try {
         if (newUsedBytes < 0) {
           LOG.warn("Failed to cache " + key + ": could not reserve " +
@@ -422,8 +451,12 @@ public void run() {
           return;
         }
         reservedBytes = true;
+        ReplicaInfo replica;
         try {
-          blockIn = (FileInputStream)dataset.getBlockInputStream(extBlk, 0);
+          // The loader checks the Nimble digest of the cached copy, so the
+          // block file is opened without checking it first.
+          replica = dataset.getReplicaInfo(extBlk);
+          blockIn = (FileInputStream) replica.getDataInputStream(0);
           metaIn = DatanodeUtil.getMetaDataInputStream(extBlk, dataset);
         } catch (ClassCastException e) {
           LOG.warn("Failed to cache " + key +
@@ -439,12 +472,18 @@ public void run() {
         }
 
         try {
+          // Taken first so that a change made while loading is not trusted
+          verified = VerifiedReplicaCache.capture(replica, Long.MAX_VALUE);
           mappableBlock = cacheLoader.load(length, blockIn, metaIn,
-              blockFileName, key);
+              blockFileName, key, replica);
         } catch (ChecksumException e) {
           // Exception message is bogus since this wasn't caused by a file read
           LOG.warn("Failed to cache " + key + ": checksum verification failed.");
           return;
+        } catch (NimbleError e) {
+          LOG.warn("Failed to cache " + key + ": Nimble digest mismatch.");
+          dataset.onNimbleDigestMismatch(key.getBlockPoolId(), replica);
+          return;
         } catch (IOException e) {
           LOG.warn("Failed to cache the block [key=" + key + "]!", e);
           return;
@@ -460,7 +499,8 @@ public void run() {
             LOG.warn("Caching of " + key + " was cancelled.");
             return;
           }
-          mappableBlockMap.put(key, new Value(mappableBlock, State.CACHED));
+          mappableBlockMap.put(key,
+              new Value(mappableBlock, State.CACHED, verified));
         }
         LOG.debug("Successfully cached {}.  We are now caching {} bytes in"
             + " total.", key, newUsedBytes);
@@ -26,6 +26,7 @@
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
@@ -42,6 +43,7 @@
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -50,8 +52,11 @@
 import javax.management.ObjectName;
 import javax.management.StandardMBean;
 
+import org.apache.hadoop.hdfs.server.nimble.BlockMerkleTree;
+import org.apache.hadoop.hdfs.server.nimble.MerkleVerifyingInputStream;
 import org.apache.hadoop.hdfs.server.nimble.NimbleError;
 import org.apache.hadoop.hdfs.server.nimble.NimbleUtils;
+import org.apache.hadoop.hdfs.util.DataTransferThrottler;
 import org.apache.hadoop.thirdparty.com.google.common.annotations.VisibleForTesting;
 
 import org.apache.hadoop.HadoopIllegalArgumentException;
@@ -89,6 +94,7 @@
 import org.apache.hadoop.hdfs.server.datanode.ReplicaInPipeline;
 import org.apache.hadoop.hdfs.server.datanode.ReplicaInfo;
 import org.apache.hadoop.hdfs.server.datanode.ReplicaNotFoundException;
+import org.apache.hadoop.hdfs.server.datanode.ShortCircuitRegistry;
 import org.apache.hadoop.hdfs.server.datanode.StorageLocation;
 import org.apache.hadoop.hdfs.server.datanode.UnexpectedReplicaStateException;
 import org.apache.hadoop.hdfs.server.datanode.fsdataset.FsDatasetSpi;
@@ -273,6 +279,14 @@ public LengthInputStream getMetaDataInputStream(ExtendedBlock b)
 
   private boolean blockPinningEnabled;
   private final int maxDataLength;
+  /** Window used to hash replicas on read; see ReplicaInfo. */
+  private final int nimbleVerifyWindow;
+  /** Bounds the number of replicas being hashed at once. */
+  private final Semaphore nimbleVerifySlots;
+  /** Chunk size of Merkle block digests, 0 if they are disabled. */
+  private final int nimbleMerkleChunkSize;
+  /** Replicas whose Nimble digest was recently verified in full. */
+  private final VerifiedReplicaCache verifiedReplicas;
 
   @VisibleForTesting
   final AutoCloseableLock datasetWriteLock;
@@ -408,6 +422,20 @@ public LengthInputStream getMetaDataInputStream(ExtendedBlock b)
     maxDataLength = conf.getInt(
         CommonConfigurationKeys.IPC_MAXIMUM_DATA_LENGTH,
         CommonConfigurationKeys.IPC_MAXIMUM_DATA_LENGTH_DEFAULT);
+    nimbleVerifyWindow = conf.getInt(
+        NimbleUtils.Conf.VERIFY_WINDOW_KEY,
+        NimbleUtils.Conf.VERIFY_WINDOW_DEFAULT);
+    nimbleVerifySlots = new Semaphore(Math.max(1, conf.getInt(
+        NimbleUtils.Conf.VERIFY_MAX_CONCURRENT_KEY,
+        NimbleUtils.Conf.VERIFY_MAX_CONCURRENT_DEFAULT)));
+    nimbleMerkleChunkSize = BlockMerkleTree.getChunkSize(conf);
+    verifiedReplicas = new VerifiedReplicaCache(
+        conf.getInt(NimbleUtils.Conf.VERIFY_CACHE_SIZE_KEY,
+            NimbleUtils.Conf.VERIFY_CACHE_SIZE_DEFAULT),
+        conf.getLong(NimbleUtils.Conf.VERIFY_CACHE_TTL_KEY,
+            NimbleUtils.Conf.VERIFY_CACHE_TTL_DEFAULT),
+        conf.getLong(NimbleUtils.Conf.SCAN_TRUST_KEY,
+            NimbleUtils.Conf.SCAN_TRUST_DEFAULT));
   }
 
   @Override
@@ -577,6 +605,7 @@ public void removeVolumes(
         new ArrayList<>(storageLocsToRemove);
     Map<String, List<ReplicaInfo>> blkToInvalidate = new HashMap<>();
     List<String> storageToRemove = new ArrayList<>();
+    verifiedReplicas.clear();
     try (AutoCloseableLock lock = datasetWriteLock.acquire()) {
       for (int idx = 0; idx < dataStorage.getNumStorageDirs(); idx++) {
         Storage.StorageDirectory sd = dataStorage.getStorageDir(idx);
@@ -845,27 +874,185 @@ public InputStream getBlockInputStream(ExtendedBlock b,
   /**
    * Check whether the replica is cached to persistent memory.
    * If so, get DataInputStream of the corresponding cache file on pmem.
+   * The cached copy is only served if its Nimble digest was verified when it
+   * was cached; so is a block locked in memory served without rehashing.
    */
   private InputStream getBlockInputStreamWithCheckingPmemCache(
       ReplicaInfo info, ExtendedBlock b, long seekOffset) throws IOException {
-    String cachePath = cacheManager.getReplicaCachePath(
+    ReplicaInfo.NimbleScan cached = cacheManager.getVerifiedState(
         b.getBlockPoolId(), b.getBlockId());
-    if (cachePath != null) {
-      long addr = cacheManager.getCacheAddress(
+    if (cached != null && VerifiedReplicaCache.unchanged(info, cached)) {
+      datanode.getMetrics().incrNimbleVerifyCachedBlockHits();
+      String cachePath = cacheManager.getReplicaCachePath(
           b.getBlockPoolId(), b.getBlockId());
-      if (addr != -1) {
-        LOG.debug("Get InputStream by cache address.");
-        return FsDatasetUtil.getDirectInputStream(
-            addr + seekOffset, info.getBlockDataLength() - seekOffset);
+      if (cachePath != null) {
+        long addr = cacheManager.getCacheAddress(
+            b.getBlockPoolId(), b.getBlockId());
+        if (addr != -1) {
+          LOG.debug("Get InputStream by cache address.");
+          return FsDatasetUtil.getDirectInputStream(
+              addr + seekOffset, info.getBlockDataLength() - seekOffset);
+        }
+        LOG.debug("Get InputStream by cache file path.");
+        return FsDatasetUtil.getInputStreamAndSeek(
+            new File(cachePath), seekOffset);
+      }
+      // Locked in memory: serve the block file, whose pages were verified
+      return info.getDataInputStream(seekOffset);
+    }
+    // Skip rehashing replicas that were verified recently and are unchanged.
+    if (isRecentlyVerified(b.getBlockPoolId(), info)) {
+      return info.getDataInputStream(seekOffset);
+    }
+
+    // Verify the Nimble digest while streaming the block file. The number of
+    // concurrent verifications is bounded so that many readers of large
+    // blocks cannot saturate the disks with hashing.
+    acquireNimbleVerifySlot(info);
+    VerifiedReplicaCache.Entry state = verifiedReplicas.prepare(info);
+    long start = Time.monotonicNow();
+    InputStream in;
+    try {
+      in = info.getVerifiedDataInputStream(seekOffset, nimbleVerifyWindow,
+          nimbleMerkleChunkSize);
+    } catch (NimbleError e) {
+      onNimbleDigestMismatch(b.getBlockPoolId(), info);
+      throw e;
+    } finally {
+      nimbleVerifySlots.release();
+    }
+    // A chunk-verified stream has not checked the whole replica yet
+    if (!(in instanceof MerkleVerifyingInputStream)) {
+      datanode.getMetrics().addNimbleVerify(Time.monotonicNow() - start);
+      datanode.getMetrics().incrNimbleBytesHashed(info.getVolume(),
+          info.getNumBytes());
+      verifiedReplicas.add(b.getBlockPoolId(), state);
+    }
+    return in;
+  }
+
+  /**
+   * Check whether the replica was verified recently and is unchanged since,
+   * by a read, the volume scanner, or when it was cached.
+   */
+  private boolean isRecentlyVerified(String bpid, ReplicaInfo info) {
+    if (verifiedReplicas.contains(bpid, info)) {
+      datanode.getMetrics().incrNimbleVerifyCacheHits();
+      return true;
+    }
+    if (verifiedReplicas.scannedRecently(info)) {
+      datanode.getMetrics().incrNimbleVerifyScanHits();
+      return true;
+    }
+    if (verifiedReplicas.isEnabled()) {
+      datanode.getMetrics().incrNimbleVerifyCacheMisses();
+    }
+    return false;
+  }
+
+  private void acquireNimbleVerifySlot(ReplicaInfo info)
+      throws InterruptedIOException {
+    try {
+      nimbleVerifySlots.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(
+          "Interrupted while waiting to verify block " + info.getBlockId());
+    }
+  }
+
+  /**
+   * Forget any verification of a replica that does not match its Nimble
+   * digest, and revoke it from the short-circuit readers of the replica.
+   */
+  void onNimbleDigestMismatch(String bpid, ReplicaInfo info) {
+    info.setNimbleScan(null);
+    verifiedReplicas.invalidate(bpid, info.getBlockId());
+    datanode.getMetrics().incrNimbleDigestMismatches();
+    ShortCircuitRegistry registry = datanode.getShortCircuitRegistry();
+    if (registry != null) {
+      registry.processBlockUnverified(
+          new ExtendedBlockId(info.getBlockId(), bpid));
+    }
+  }
+
+  /**
+   * Short-circuit readers bypass the checks of getBlockInputStream, so the
+   * whole replica is checked before its descriptor is handed out, unless it
+   * was verified recently. A Merkle digest is checked up front too, rather
+   * than chunk by chunk, since the reader is given the raw block file.
+   */
+  @Override // FsDatasetSpi
+  public InputStream getShortCircuitInputStream(ExtendedBlock b)
+      throws IOException {
+    ReplicaInfo info;
+    try (AutoCloseableLock lock = datasetReadLock.acquire()) {
+      info = volumeMap.get(b.getBlockPoolId(), b.getLocalBlock());
+    }
+    if (info == null) {
+      throw new IOException("No data exists for block " + b);
+    }
+    InputStream in = info.getDataInputStream(0);
+    if (!(in instanceof FileInputStream)) {
+      return in;
+    }
+    ReplicaInfo.NimbleScan cached = cacheManager.getVerifiedState(
+        b.getBlockPoolId(), b.getBlockId());
+    if (cached != null && VerifiedReplicaCache.unchanged(info, cached)) {
+      datanode.getMetrics().incrNimbleVerifyCachedBlockHits();
+      return in;
+    }
+    if (isRecentlyVerified(b.getBlockPoolId(), info)) {
+      return in;
+    }
+
+    acquireNimbleVerifySlot(info);
+    VerifiedReplicaCache.Entry state = verifiedReplicas.prepare(info);
+    long start = Time.monotonicNow();
+    try {
+      info.verifyNimbleDigest(((FileInputStream) in).getChannel(),
+          nimbleVerifyWindow, nimbleMerkleChunkSize);
+    } catch (IOException e) {
+      IOUtils.closeStream(in);
+      if (e instanceof NimbleError) {
+        onNimbleDigestMismatch(b.getBlockPoolId(), info);
       }
-      LOG.debug("Get InputStream by cache file path.");
-      return FsDatasetUtil.getInputStreamAndSeek(
-          new File(cachePath), seekOffset);
+      throw e;
+    } finally {
+      nimbleVerifySlots.release();
+    }
+    datanode.getMetrics().addNimbleVerify(Time.monotonicNow() - start);
+    datanode.getMetrics().incrNimbleBytesHashed(info.getVolume(),
+        info.getNumBytes());
+    verifiedReplicas.add(b.getBlockPoolId(), state);
+    return in;
+  }
+
+  @Override // FsDatasetSpi
+  public boolean verifyNimbleDigest(ExtendedBlock b,
+      DataTransferThrottler throttler) throws IOException {
+    ReplicaInfo info;
+    try (AutoCloseableLock lock = datasetReadLock.acquire()) {
+      info = volumeMap.get(b.getBlockPoolId(), b.getLocalBlock());
     }
-    // Verify correct checksum. When called from caching, it will cause a double copy.
-    // Potential for optimization!
-    LOG.info("Load block {} to memory", info.getBlockId());
-    return info.getVerifiedDataInputStream(seekOffset);
+    if (info == null || info.getState() != ReplicaState.FINALIZED) {
+      return false;
+    }
+
+    // Not bounded by nimbleVerifySlots: the throttler already limits the
+    // scanner, and it would hold a slot for the whole throttled pass.
+    ReplicaInfo.NimbleScan scan = verifiedReplicas.prepareScan(info);
+    try {
+      info.verifyNimbleDigest(throttler, nimbleMerkleChunkSize);
+    } catch (NimbleError e) {
+      onNimbleDigestMismatch(b.getBlockPoolId(), info);
+      throw e;
+    }
+    datanode.getMetrics().incrNimbleBlocksScanned();
+    datanode.getMetrics().incrNimbleBytesHashed(info.getVolume(),
+        info.getNumBytes());
+    info.setNimbleScan(scan);
+    return true;
   }
 
   /**
@@ -1299,6 +1486,7 @@ private ReplicaInPipeline append(String bpid,
       ReplicaInfo replicaInfo, long newGS, long estimateBlockLen)
       throws IOException {
     try (AutoCloseableLock lock = datasetWriteLock.acquire()) {
+      verifiedReplicas.invalidate(bpid, replicaInfo.getBlockId());
       // If the block is cached, start uncaching it.
       if (replicaInfo.getState() != ReplicaState.FINALIZED) {
         throw new IOException("Only a Finalized replica can be appended to; "
@@ -1586,6 +1774,7 @@ private ReplicaHandler recoverRbwImpl(ReplicaInPipeline rbw,
         // If the source was client and the last node in the pipeline was lost,
         // any corrupt data written after the acked length can go unnoticed.
         if (bytesOnDisk > bytesAcked) {
+          verifiedReplicas.invalidate(b.getBlockPoolId(), b.getBlockId());
           rbw.getReplicaInfo().truncateBlock(bytesAcked);
           rbw.setNumBytes(bytesAcked);
           rbw.setLastChecksumAndDataLen(bytesAcked, null);
@@ -2181,6 +2370,7 @@ private void invalidate(String bpid, Block[] invalidBlks, boolean async)
 
       // If the block is cached, start uncaching it.
       cacheManager.uncacheBlock(bpid, invalidBlks[i].getBlockId());
+      verifiedReplicas.invalidate(bpid, invalidBlks[i].getBlockId());
 
       try {
         if (async) {
@@ -2329,6 +2519,9 @@ public boolean contains(final ExtendedBlock block) {
   @Override // FsDatasetSpi
   public void handleVolumeFailures(Set<FsVolumeSpi> failedVolumes) {
     volumes.handleVolumeFailures(failedVolumes);
+    for (FsVolumeSpi volume : failedVolumes) {
+      verifiedReplicas.invalidate(volume);
+    }
   }
     
 
@@ -2825,6 +3018,7 @@ private ReplicaInfo updateReplicaUnderRecovery(
     if (rur.getNumBytes() > newlength) {
       if(!copyOnTruncate) {
         rur.breakHardLinksIfNeeded();
+        verifiedReplicas.invalidate(bpid, rur.getBlockId());
         rur.truncateBlock(newlength);
         // update RUR with the new length
         rur.setNumBytes(newlength);
@@ -36,6 +36,8 @@
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -73,6 +75,7 @@
 import org.apache.hadoop.hdfs.server.datanode.fsdataset.FsVolumeSpi;
 import org.apache.hadoop.hdfs.server.datanode.fsdataset.impl.RamDiskReplicaTracker.RamDiskReplica;
 import org.apache.hadoop.hdfs.server.protocol.DatanodeStorage;
+import org.apache.hadoop.hdfs.server.nimble.NimbleUtils;
 import org.apache.hadoop.util.CloseableReferenceCount;
 import org.apache.hadoop.util.DataChecksum;
 import org.apache.hadoop.util.DiskChecker.DiskErrorException;
@@ -143,6 +146,12 @@ public class FsVolumeImpl implements FsVolumeSpi {
    */
   protected ThreadPoolExecutor cacheExecutor;
 
+  /**
+   * Per-volume pool that hashes the Nimble digests of replicas, shared by
+   * all of them and bounded by fs.nimble.hash.threadsPerVolume.
+   */
+  private final ForkJoinPool nimbleHashPool;
+
   FsVolumeImpl(FsDatasetImpl dataset, String storageID, StorageDirectory sd,
       FileIoProvider fileIoProvider, Configuration conf) throws IOException {
     // outside tests, usage created in ReservedSpaceCalculator.Builder
@@ -182,10 +191,12 @@ public class FsVolumeImpl implements FsVolumeSpi {
     if (currentDir != null) {
       File parent = currentDir.getParentFile();
       cacheExecutor = initializeCacheExecutor(parent);
+      nimbleHashPool = initializeNimbleHashPool(parent);
       this.metrics = DataNodeVolumeMetrics.create(conf, parent.getPath());
       this.baseURI = new File(currentDir.getParent()).toURI();
     } else {
       cacheExecutor = null;
+      nimbleHashPool = null;
       this.metrics = null;
     }
     this.conf = conf;
@@ -219,6 +230,24 @@ protected ThreadPoolExecutor initializeCacheExecutor(File parent) {
     return executor;
   }
 
+  private ForkJoinPool initializeNimbleHashPool(File parent) {
+    if (dataset.datanode == null) {
+      // FsVolumeImpl is used in test.
+      return null;
+    }
+
+    final int numThreads = Math.max(1, dataset.datanode.getConf().getInt(
+        NimbleUtils.Conf.HASH_THREADS_KEY,
+        NimbleUtils.Conf.HASH_THREADS_DEFAULT));
+    final String name = "NimbleHasher-" + parent;
+    return new ForkJoinPool(numThreads, pool -> {
+      ForkJoinWorkerThread worker =
+          ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+      worker.setName(name + "-" + worker.getPoolIndex());
+      return worker;
+    }, null, false);
+  }
+
   private void printReferenceTraceInfo(String op) {
     StackTraceElement[] stack = Thread.currentThread().getStackTrace();
     for (StackTraceElement ste : stack) {
@@ -992,6 +1021,11 @@ Executor getCacheExecutor() {
     return cacheExecutor;
   }
 
+  @Override
+  public ForkJoinPool getNimbleHashPool() {
+    return nimbleHashPool;
+  }
+
   @Override
   public VolumeCheckResult check(VolumeCheckContext ignored)
       throws DiskErrorException {
@@ -1031,6 +1065,9 @@ void shutdown() {
     if (cacheExecutor != null) {
       cacheExecutor.shutdown();
     }
+    if (nimbleHashPool != null) {
+      nimbleHashPool.shutdown();
+    }
     Set<Entry<String, BlockPoolSlice>> set = bpSlices.entrySet();
     for (Entry<String, BlockPoolSlice> entry : set) {
       entry.getValue().shutdown(null);
@@ -1297,7 +1334,8 @@ public ReplicaInPipeline updateRURCopyOnTruncate(ReplicaInfo rur,
     File blockFile = copiedReplicaFiles[1];
     File metaFile = copiedReplicaFiles[0];
     byte[] newChecksum = LocalReplica.truncateBlock(rur.getVolume(), blockFile, metaFile,
-        rur.getNumBytes(), newlength, rur.getChecksum(), fileIoProvider);
+        rur.getNumBytes(), newlength, rur.getChecksum(), rur.loadMerkleTree(),
+        fileIoProvider);
 
     // TODO: Set checksum correctly
     LocalReplicaInPipeline newReplicaInfo = new ReplicaBuilder(ReplicaState.RBW)
@@ -24,7 +24,11 @@
 import org.apache.hadoop.classification.InterfaceStability;
 import org.apache.hadoop.hdfs.ExtendedBlockId;
 import org.apache.hadoop.hdfs.server.datanode.BlockMetadataHeader;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hdfs.server.datanode.DNConf;
+import org.apache.hadoop.hdfs.server.datanode.ReplicaInfo;
+import org.apache.hadoop.hdfs.server.nimble.BlockMerkleTree;
+import org.apache.hadoop.hdfs.server.nimble.NimbleUtils;
 import org.apache.hadoop.util.DataChecksum;
 
 import java.io.BufferedInputStream;
@@ -41,16 +45,29 @@
 @InterfaceAudience.Private
 @InterfaceStability.Unstable
 public abstract class MappableBlockLoader {
+  /** Window to hash cached copies with; see ReplicaInfo. */
+  private int nimbleVerifyWindow = NimbleUtils.Conf.VERIFY_WINDOW_DEFAULT;
+  /** Chunk size of Merkle block digests, 0 if they are disabled. */
+  private int nimbleMerkleChunkSize;
 
   /**
    * Initialize a specific MappableBlockLoader.
    */
   abstract CacheStats initialize(DNConf dnConf) throws IOException;
 
+  /**
+   * Configure how cached copies are checked against Nimble digests.
+   */
+  void initializeNimble(Configuration conf) {
+    nimbleVerifyWindow = conf.getInt(NimbleUtils.Conf.VERIFY_WINDOW_KEY,
+        NimbleUtils.Conf.VERIFY_WINDOW_DEFAULT);
+    nimbleMerkleChunkSize = BlockMerkleTree.getChunkSize(conf);
+  }
+
   /**
    * Load the block.
    *
-   * Map the block, and then verify its checksum.
+   * Map the block, and then verify its checksum and its Nimble digest.
    *
    * @param length         The current length of the block.
    * @param blockIn        The block input stream. Should be positioned at the
@@ -59,15 +76,17 @@ public abstract class MappableBlockLoader {
    *                       the start. The caller must close this.
    * @param blockFileName  The block file name, for logging purposes.
    * @param key            The extended block ID.
+   * @param replica        The replica, whose Nimble digest the cached copy
+   *                       is checked against.
    *
    * @throws IOException   If mapping block to cache region fails or checksum
-   *                       fails.
+   *                       fails. A NimbleError if the digest does not match.
    *
    * @return               The Mappable block.
    */
   abstract MappableBlock load(long length, FileInputStream blockIn,
-      FileInputStream metaIn, String blockFileName, ExtendedBlockId key)
-      throws IOException;
+      FileInputStream metaIn, String blockFileName, ExtendedBlockId key,
+      ReplicaInfo replica) throws IOException;
 
   /**
    * Try to reserve some given bytes.
@@ -177,6 +196,17 @@ protected void verifyChecksum(long length, FileInputStream metaIn,
     }
   }
 
+  /**
+   * Verifies the cached copy of a block against the Nimble digest of its
+   * replica, while its pages are resident, so that reads served from the
+   * cache need not rehash it.
+   */
+  protected void verifyNimbleDigest(ReplicaInfo replica, FileChannel cached)
+      throws IOException {
+    replica.verifyNimbleDigest(cached, nimbleVerifyWindow,
+        nimbleMerkleChunkSize);
+  }
+
   /**
    * Reads bytes into a buffer until EOF or the buffer's limit is reached.
    */
@@ -23,6 +23,7 @@
 import org.apache.hadoop.classification.InterfaceStability;
 import org.apache.hadoop.hdfs.ExtendedBlockId;
 import org.apache.hadoop.hdfs.server.datanode.DNConf;
+import org.apache.hadoop.hdfs.server.datanode.ReplicaInfo;
 import org.apache.hadoop.io.nativeio.NativeIO;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -53,7 +54,9 @@ CacheStats initialize(DNConf dnConf) throws IOException {
   /**
    * Load the block.
    *
-   * mmap and mlock the block, and then verify its checksum.
+   * mmap and mlock the block, and then verify its checksum and its Nimble
+   * digest. The digest is hashed from the locked pages, so the block is
+   * read from disk only once.
    *
    * @param length         The current length of the block.
    * @param blockIn        The block input stream. Should be positioned at the
@@ -62,6 +65,8 @@ CacheStats initialize(DNConf dnConf) throws IOException {
    *                       the start. The caller must close this.
    * @param blockFileName  The block file name, for logging purposes.
    * @param key            The extended block ID.
+   * @param replica        The replica, whose Nimble digest the cached copy
+   *                       is checked against.
    *
    * @throws IOException   If mapping block to memory fails or checksum fails.
 
@@ -69,8 +74,8 @@ CacheStats initialize(DNConf dnConf) throws IOException {
    */
   @Override
   MappableBlock load(long length, FileInputStream blockIn,
-      FileInputStream metaIn, String blockFileName, ExtendedBlockId key)
-      throws IOException {
+      FileInputStream metaIn, String blockFileName, ExtendedBlockId key,
+      ReplicaInfo replica) throws IOException {
     MemoryMappedBlock mappableBlock = null;
     MappedByteBuffer mmap = null;
     FileChannel blockChannel = null;
@@ -82,6 +87,7 @@ MappableBlock load(long length, FileInputStream blockIn,
       mmap = blockChannel.map(FileChannel.MapMode.READ_ONLY, 0, length);
       NativeIO.POSIX.getCacheManipulator().mlock(blockFileName, mmap, length);
       verifyChecksum(length, metaIn, blockChannel, blockFileName);
+      verifyNimbleDigest(replica, blockChannel);
       mappableBlock = new MemoryMappedBlock(mmap, length);
     } finally {
       IOUtils.closeQuietly(blockChannel);
@@ -25,6 +25,7 @@
 import org.apache.hadoop.hdfs.ExtendedBlockId;
 import org.apache.hadoop.hdfs.server.datanode.BlockMetadataHeader;
 import org.apache.hadoop.hdfs.server.datanode.DNConf;
+import org.apache.hadoop.hdfs.server.datanode.ReplicaInfo;
 import org.apache.hadoop.io.nativeio.NativeIO;
 import org.apache.hadoop.io.nativeio.NativeIO.POSIX;
 import org.apache.hadoop.util.DataChecksum;
@@ -38,6 +39,8 @@
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 /**
  * Map block to persistent memory with native PMDK libs.
@@ -56,7 +59,8 @@ CacheStats initialize(DNConf dnConf) throws IOException {
   /**
    * Load the block.
    *
-   * Map the block and verify its checksum.
+   * Map the block and verify its checksum, and the Nimble digest of the
+   * cached copy.
    *
    * The block will be mapped to PmemDir/BlockPoolId/subdir#/subdir#/BlockId,
    * in which PmemDir is a persistent memory volume chosen by PmemVolumeManager.
@@ -68,6 +72,8 @@ CacheStats initialize(DNConf dnConf) throws IOException {
    *                       the start. The caller must close this.
    * @param blockFileName  The block file name, for logging purposes.
    * @param key            The extended block ID.
+   * @param replica        The replica, whose Nimble digest the cached copy
+   *                       is checked against.
    *
    * @throws IOException   If mapping block to persistent memory fails or
    *                       checksum fails.
@@ -77,7 +83,7 @@ CacheStats initialize(DNConf dnConf) throws IOException {
   @Override
   public MappableBlock load(long length, FileInputStream blockIn,
       FileInputStream metaIn, String blockFileName,
-      ExtendedBlockId key)
+      ExtendedBlockId key, ReplicaInfo replica)
       throws IOException {
     NativePmemMappedBlock mappableBlock = null;
     POSIX.PmemMappedRegion region = null;
@@ -99,6 +105,10 @@ public MappableBlock load(long length, FileInputStream blockIn,
       }
       verifyChecksumAndMapBlock(region, length, metaIn, blockChannel,
           blockFileName);
+      try (FileChannel cached = FileChannel.open(Paths.get(filePath),
+          StandardOpenOption.READ)) {
+        verifyNimbleDigest(replica, cached);
+      }
       mappableBlock = new NativePmemMappedBlock(region.getAddress(),
           region.getLength(), key);
       LOG.info("Successfully cached one replica:{} into persistent memory"
@@ -23,6 +23,7 @@
 import org.apache.hadoop.classification.InterfaceStability;
 import org.apache.hadoop.hdfs.ExtendedBlockId;
 import org.apache.hadoop.hdfs.server.datanode.DNConf;
+import org.apache.hadoop.hdfs.server.datanode.ReplicaInfo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -61,7 +62,8 @@ CacheStats initialize(DNConf dnConf) throws IOException {
   /**
    * Load the block.
    *
-   * Map the block and verify its checksum.
+   * Map the block and verify its checksum, and the Nimble digest of the
+   * cached copy.
    *
    * The block will be mapped to PmemDir/BlockPoolId/subdir#/subdir#/BlockId,
    * in which PmemDir is a persistent memory volume chosen by PmemVolumeManager.
@@ -73,6 +75,8 @@ CacheStats initialize(DNConf dnConf) throws IOException {
    *                       the start. The caller must close this.
    * @param blockFileName  The block file name, for logging purposes.
    * @param key            The extended block ID.
+   * @param replica        The replica, whose Nimble digest the cached copy
+   *                       is checked against.
    *
    * @throws IOException   If mapping block fails or checksum fails.
    *
@@ -80,8 +84,8 @@ CacheStats initialize(DNConf dnConf) throws IOException {
    */
   @Override
   MappableBlock load(long length, FileInputStream blockIn,
-      FileInputStream metaIn, String blockFileName, ExtendedBlockId key)
-      throws IOException {
+      FileInputStream metaIn, String blockFileName, ExtendedBlockId key,
+      ReplicaInfo replica) throws IOException {
     PmemMappedBlock mappableBlock = null;
     String cachePath = null;
 
@@ -100,6 +104,7 @@ MappableBlock load(long length, FileInputStream blockIn,
       // The file channel should be repositioned.
       cacheFile.getChannel().position(0);
       verifyChecksum(length, metaIn, cacheFile.getChannel(), blockFileName);
+      verifyNimbleDigest(replica, cacheFile.getChannel());
 
       mappableBlock = new PmemMappedBlock(length, key);
       LOG.info("Successfully cached one replica:{} into persistent memory"
@@ -0,0 +1,260 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.datanode.fsdataset.impl;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.hdfs.ExtendedBlockId;
+import org.apache.hadoop.hdfs.server.datanode.LocalReplica;
+import org.apache.hadoop.hdfs.server.datanode.ReplicaInfo;
+import org.apache.hadoop.hdfs.server.datanode.fsdataset.FsVolumeSpi;
+import org.apache.hadoop.util.Time;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers replicas whose Nimble digest was recently verified in full, so
+ * that reads of hot blocks do not rehash them every time.
+ *
+ * Verifications by the volume scanner are not kept here, where they would
+ * evict the hot replicas, but as a {@link ReplicaInfo.NimbleScan} record on
+ * the replica itself, trusted for a separate TTL under the same conditions.
+ *
+ * An entry is only honoured while the replica still has the same generation
+ * stamp, length and digest, and its block file the same size, modification
+ * time and inode. Entries expire after a TTL and the least recently used
+ * entries are evicted beyond a maximum size. Appends, truncates, deletions
+ * and volume failures drop entries explicitly.
+ */
+@InterfaceAudience.Private
+class VerifiedReplicaCache {
+  static final Logger LOG = LoggerFactory.getLogger(VerifiedReplicaCache.class);
+
+  /** State of a replica when its verification started. */
+  static final class Entry {
+    private final long blockId;
+    private final long genStamp;
+    private final long numBytes;
+    private final byte[] checksum;
+    private final long fileSize;
+    private final long fileMtime;
+    private final Object fileKey;
+    private final FsVolumeSpi volume;
+    private final long expiry;
+
+    Entry(ReplicaInfo replica, BasicFileAttributes attrs, long expiry) {
+      this.blockId = replica.getBlockId();
+      this.genStamp = replica.getGenerationStamp();
+      this.numBytes = replica.getNumBytes();
+      this.checksum = replica.getChecksum();
+      this.fileSize = attrs.size();
+      this.fileMtime = attrs.lastModifiedTime().toMillis();
+      this.fileKey = attrs.fileKey();
+      this.volume = replica.getVolume();
+      this.expiry = expiry;
+    }
+
+    boolean matches(ReplicaInfo replica, BasicFileAttributes attrs) {
+      return genStamp == replica.getGenerationStamp()
+          && numBytes == replica.getNumBytes()
+          && Arrays.equals(checksum, replica.getChecksum())
+          && fileSize == attrs.size()
+          && fileMtime == attrs.lastModifiedTime().toMillis()
+          && Objects.equals(fileKey, attrs.fileKey())
+          && volume == replica.getVolume();
+    }
+  }
+
+  private final int maxEntries;
+  private final long ttlMs;
+  private final long scanTtlMs;
+  private final LinkedHashMap<ExtendedBlockId, Entry> entries; // access order
+
+  VerifiedReplicaCache(final int maxEntries, long ttlMs, long scanTtlMs) {
+    this.maxEntries = maxEntries;
+    this.ttlMs = ttlMs;
+    this.scanTtlMs = scanTtlMs;
+    this.entries = new LinkedHashMap<ExtendedBlockId, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(
+          Map.Entry<ExtendedBlockId, Entry> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  boolean isEnabled() {
+    return maxEntries > 0 && ttlMs > 0;
+  }
+
+  /**
+   * @return true if the replica was verified recently and did not change since
+   */
+  boolean contains(String bpid, ReplicaInfo replica) {
+    if (!isEnabled() || !(replica instanceof LocalReplica)) {
+      return false;
+    }
+    ExtendedBlockId key = new ExtendedBlockId(replica.getBlockId(), bpid);
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(key);
+    }
+    if (entry == null) {
+      return false;
+    }
+    if (entry.expiry > Time.monotonicNow()) {
+      BasicFileAttributes attrs = stat(replica);
+      if (attrs != null && entry.matches(replica, attrs)) {
+        return true;
+      }
+    }
+    invalidate(bpid, replica.getBlockId());
+    return false;
+  }
+
+  /**
+   * Capture the state of a replica before verifying it. The state is taken
+   * first so that a change made while the replica is hashed is not cached.
+   *
+   * @return the entry to add() once verification succeeded, or null
+   */
+  Entry prepare(ReplicaInfo replica) {
+    if (!isEnabled() || !(replica instanceof LocalReplica)) {
+      return null;
+    }
+    BasicFileAttributes attrs = stat(replica);
+    if (attrs == null) {
+      return null;
+    }
+    return new Entry(replica, attrs, Time.monotonicNow() + ttlMs);
+  }
+
+  /**
+   * Record that a replica prepared with prepare() was verified in full.
+   */
+  void add(String bpid, Entry entry) {
+    if (entry == null) {
+      return;
+    }
+    synchronized (this) {
+      entries.put(new ExtendedBlockId(entry.blockId, bpid), entry);
+    }
+  }
+
+  /**
+   * Capture the state of a replica before the volume scanner verifies it.
+   *
+   * @return the record to set on the replica once verification succeeded,
+   *         or null if scans are not trusted by reads
+   */
+  ReplicaInfo.NimbleScan prepareScan(ReplicaInfo replica) {
+    if (scanTtlMs <= 0) {
+      return null;
+    }
+    return capture(replica, Time.monotonicNow() + scanTtlMs);
+  }
+
+  /**
+   * @return true if the volume scanner verified the replica recently and
+   *         neither the replica nor its block file changed since
+   */
+  boolean scannedRecently(ReplicaInfo replica) {
+    ReplicaInfo.NimbleScan scan = replica.getNimbleScan();
+    if (scan == null) {
+      return false;
+    }
+    if (unchanged(replica, scan)) {
+      return true;
+    }
+    replica.setNimbleScan(null);
+    return false;
+  }
+
+  /**
+   * Capture the state of a replica before a background verification.
+   *
+   * @param expiry monotonic time until which the verification is trusted
+   * @return the state, or null if the replica cannot be checked for changes
+   */
+  static ReplicaInfo.NimbleScan capture(ReplicaInfo replica, long expiry) {
+    if (!(replica instanceof LocalReplica)) {
+      return null;
+    }
+    BasicFileAttributes attrs = stat(replica);
+    if (attrs == null) {
+      return null;
+    }
+    return new ReplicaInfo.NimbleScan(replica, attrs, expiry);
+  }
+
+  /**
+   * @return true if the replica and its block file still have the captured
+   *         state, and the state has not expired
+   */
+  static boolean unchanged(ReplicaInfo replica, ReplicaInfo.NimbleScan state) {
+    if (!(replica instanceof LocalReplica)) {
+      return false;
+    }
+    BasicFileAttributes attrs = stat(replica);
+    return attrs != null
+        && state.matches(replica, attrs, Time.monotonicNow());
+  }
+
+  synchronized void invalidate(String bpid, long blockId) {
+    entries.remove(new ExtendedBlockId(blockId, bpid));
+  }
+
+  /**
+   * Drop every entry of replicas on the given volume.
+   */
+  synchronized void invalidate(FsVolumeSpi volume) {
+    for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+      if (it.next().volume == volume) {
+        it.remove();
+      }
+    }
+  }
+
+  synchronized void clear() {
+    entries.clear();
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  private static BasicFileAttributes stat(ReplicaInfo replica) {
+    try {
+      return Files.readAttributes(
+          ((LocalReplica) replica).getBlockFile().toPath(),
+          BasicFileAttributes.class);
+    } catch (IOException e) {
+      LOG.debug("Cannot stat {}", replica, e);
+      return null;
+    }
+  }
+}
@@ -22,6 +22,8 @@
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.server.datanode.fsdataset.DataNodeVolumeMetrics;
+import org.apache.hadoop.hdfs.server.datanode.fsdataset.FsVolumeSpi;
 import org.apache.hadoop.hdfs.server.protocol.DataNodeUsageReport;
 import org.apache.hadoop.hdfs.server.protocol.DataNodeUsageReportUtil;
 import org.apache.hadoop.metrics2.MetricsSystem;
@@ -176,6 +178,29 @@ public class DataNodeMetrics {
   private MutableCounterLong numProcessedCommands;
   @Metric("Rate of processed commands of all BPServiceActors")
   private MutableRate processedCommandsOp;
+  @Metric("Reads of a recently verified replica that skipped the Nimble digest check")
+  private MutableCounterLong nimbleVerifyCacheHits;
+  @Metric("Reads that had to check the Nimble digest of a replica")
+  private MutableCounterLong nimbleVerifyCacheMisses;
+  @Metric("Reads of a replica the volume scanner recently verified that skipped the Nimble digest check")
+  private MutableCounterLong nimbleVerifyScanHits;
+  @Metric("Reads of a cached replica, checked when it was cached, that skipped the Nimble digest check")
+  private MutableCounterLong nimbleVerifyCachedBlockHits;
+  @Metric("Replicas the volume scanner checked against their Nimble digest")
+  private MutableCounterLong nimbleBlocksScanned;
+  @Metric("Milliseconds to check the Nimble digest of a replica before serving it")
+  private MutableRate nimbleVerify;
+  final MutableQuantiles[] nimbleVerifyMsQuantiles;
+  @Metric("Replicas that did not match their Nimble digest")
+  private MutableCounterLong nimbleDigestMismatches;
+  @Metric("Bytes hashed for Nimble digests")
+  private MutableCounterLong nimbleBytesHashed;
+  @Metric("Bytes received and queued, but not yet hashed for Nimble digests")
+  private MutableGaugeLong nimbleHashPendingBytes;
+  @Metric("Nanoseconds block receivers waited for a full Nimble hashing queue")
+  private MutableCounterLong nimbleHashQueueFullNanos;
+  @Metric("Nanoseconds finalization waited for Nimble hashing to catch up")
+  private MutableCounterLong nimbleHashJoinNanos;
 
   final MetricsRegistry registry = new MetricsRegistry("datanode");
   @Metric("Milliseconds spent on calling NN rpc")
@@ -201,6 +226,7 @@ public DataNodeMetrics(String name, String sessionId, int[] intervals,
     sendDataPacketTransferNanosQuantiles = new MutableQuantiles[len];
     ramDiskBlocksEvictionWindowMsQuantiles = new MutableQuantiles[len];
     ramDiskBlocksLazyPersistWindowMsQuantiles = new MutableQuantiles[len];
+    nimbleVerifyMsQuantiles = new MutableQuantiles[len];
 
     for (int i = 0; i < len; i++) {
       int interval = intervals[i];
@@ -229,6 +255,10 @@ public DataNodeMetrics(String name, String sessionId, int[] intervals,
           "ramDiskBlocksLazyPersistWindows" + interval + "s",
           "Time between the RamDisk block write and disk persist in ms",
           "ops", "latency", interval);
+      nimbleVerifyMsQuantiles[i] = registry.newQuantiles(
+          "nimbleVerifyMs" + interval + "s",
+          "Time to check the Nimble digest of a replica in ms",
+          "ops", "latency", interval);
     }
   }
 
@@ -632,4 +662,61 @@ public void incrNumProcessedCommands() {
   public void addNumProcessedCommands(long latency) {
     processedCommandsOp.add(latency);
   }
+
+  public void incrNimbleVerifyCacheHits() {
+    nimbleVerifyCacheHits.incr();
+  }
+
+  public void incrNimbleVerifyCacheMisses() {
+    nimbleVerifyCacheMisses.incr();
+  }
+
+  public void incrNimbleVerifyScanHits() {
+    nimbleVerifyScanHits.incr();
+  }
+
+  public void incrNimbleVerifyCachedBlockHits() {
+    nimbleVerifyCachedBlockHits.incr();
+  }
+
+  public void incrNimbleBlocksScanned() {
+    nimbleBlocksScanned.incr();
+  }
+
+  public void addNimbleVerify(long latencyMs) {
+    nimbleVerify.add(latencyMs);
+    for (MutableQuantiles q : nimbleVerifyMsQuantiles) {
+      q.add(latencyMs);
+    }
+  }
+
+  public void incrNimbleDigestMismatches() {
+    nimbleDigestMismatches.incr();
+  }
+
+  /**
+   * Count bytes hashed for Nimble digests, in the metrics of the volume they
+   * were read from or written to as well.
+   */
+  public void incrNimbleBytesHashed(FsVolumeSpi volume, long bytes) {
+    new Exception("HASHDBG " + bytes).printStackTrace(System.out);
+    nimbleBytesHashed.incr(bytes);
+    DataNodeVolumeMetrics volumeMetrics =
+        volume != null ? volume.getMetrics() : null;
+    if (volumeMetrics != null) {
+      volumeMetrics.incrNimbleBytesHashed(bytes);
+    }
+  }
+
+  public void incrNimbleHashPendingBytes(long delta) {
+    nimbleHashPendingBytes.incr(delta);
+  }
+
+  public void addNimbleHashQueueFullNanos(long nanos) {
+    nimbleHashQueueFullNanos.incr(nanos);
+  }
+
+  public void addNimbleHashJoinNanos(long nanos) {
+    nimbleHashJoinNanos.incr(nanos);
+  }
 }
@@ -104,6 +104,7 @@
 import org.apache.hadoop.hdfs.server.namenode.FSEditLogOp.NimbleFlushOp;
 import org.apache.hadoop.hdfs.server.namenode.JournalSet.JournalAndStream;
 import org.apache.hadoop.hdfs.server.namenode.metrics.NameNodeMetrics;
+import org.apache.hadoop.hdfs.server.nimble.NimbleMetrics;
 import org.apache.hadoop.hdfs.server.nimble.TMCSEditLog;
 import org.apache.hadoop.hdfs.server.protocol.NamenodeRegistration;
 import org.apache.hadoop.hdfs.server.protocol.NamespaceInfo;
@@ -188,7 +189,7 @@ private enum State {
   private final LongAdder numTransactionsBatchedInSync = new LongAdder();
   private long totalTimeTransactions;  // total time for all transactions
   private NameNodeMetrics metrics;
-  private TMCSEditLog tmcsEdits;
+  private volatile TMCSEditLog tmcsEdits;
 
   private final NNStorage storage;
   private final Configuration conf;
@@ -427,6 +428,14 @@ synchronized void close() {
           LOG.warn("Error closing journalSet", ioe);
         }
       }
+      TMCSEditLog tmcs = tmcsEdits;
+      if (tmcs != null) {
+        try {
+          tmcs.close();
+        } catch (IOException ioe) {
+          LOG.warn("Error closing TMCS edit log", ioe);
+        }
+      }
       state = State.CLOSED;
     }
   }
@@ -482,8 +491,14 @@ assert isOpenForWrite() :
       waitIfAutoSyncScheduled();
 
       beginTransaction(op);
+      boolean seal = shouldSealTMCSBatch(op);
       // check if it is time to schedule an automatic sync
       needsSync = doEditTransaction(op);
+      if (seal) {
+        FSEditLogOp sealOp = NimbleFlushOp.getInstance(cache.get());
+        beginTransaction(sealOp);
+        needsSync |= doEditTransaction(sealOp);
+      }
       if (needsSync) {
         isAutoSyncScheduled = true;
       }
@@ -495,6 +510,49 @@ assert isOpenForWrite() :
     }
   }
 
+  /**
+   * Ask the adaptive TMCS batching policy, if any, whether the current batch
+   * should be sealed right after op. The caller then logs a NimbleFlushOp so
+   * that the batch boundary is recorded in the edit log for replay.
+   */
+  boolean shouldSealTMCSBatch(final FSEditLogOp op) {
+    assert Thread.holdsLock(this);
+    TMCSEditLog tmcs = tmcsEdits;
+    if (tmcs == null || tmcs.getBatchPolicy() == null) {
+      return false;
+    }
+    // nothing may follow the end of a segment
+    if (op.opCode == FSEditLogOpCodes.OP_END_LOG_SEGMENT) {
+      return false;
+    }
+    // a NimbleFlushOp right after its start marks the segment as batched
+    // adaptively, so that it is replayed the same whatever the configuration
+    if (op.opCode == FSEditLogOpCodes.OP_START_LOG_SEGMENT) {
+      tmcs.getBatchPolicy().onAdmit(true);
+      return true;
+    }
+    return tmcs.getBatchPolicy().onAdmit(
+        op.opCode == FSEditLogOpCodes.OP_NIMBLE_FLUSH);
+  }
+
+  /**
+   * Seal the open TMCS batch by logging a NimbleFlushOp, if batches are sealed
+   * on sync, so that the ledger commit logSync waits for covers every op
+   * journalled so far.
+   */
+  private void sealTMCSBatch() {
+    assert Thread.holdsLock(this);
+    TMCSEditLog tmcs = tmcsEdits;
+    if (tmcs == null || !tmcs.sealsOnSync() || state != State.IN_SEGMENT
+        || !tmcs.canSeal()) {
+      return;
+    }
+    FSEditLogOp sealOp = NimbleFlushOp.getInstance(cache.get());
+    beginTransaction(sealOp);
+    shouldSealTMCSBatch(sealOp); // restarts the adaptive batch
+    doEditTransaction(sealOp);
+  }
+
   synchronized boolean doEditTransaction(final FSEditLogOp op) {
     LOG.debug("doEditTx() op={} txid={}", op, txid);
     assert op.hasTransactionId() :
@@ -503,7 +561,9 @@ synchronized boolean doEditTransaction(final FSEditLogOp op) {
     long start = monotonicNow();
     try {
       editLogStream.write(op);
+      long addStart = System.nanoTime();
       tmcsEdits.add(op);
+      NimbleMetrics.get().addEditLogTmcsAdd(System.nanoTime() - addStart);
     } catch (IOException ex) {
       // All journals failed, it is handled in logSync.
     } finally {
@@ -698,6 +758,9 @@ protected void logSync(long mytxid) {
             return;
           }
 
+          // with sealOnSync, the open TMCS batch is committed with the sync
+          sealTMCSBatch();
+
           // now, this thread will do the sync.  track if other edits were
           // included in the sync - ie. batched.  if this is the only edit
           // synced then the batched count is 0
@@ -758,6 +821,24 @@ protected void logSync(long mytxid) {
           terminate(1, msg);
         }
       }
+
+      // the sealed TMCS batches must reach the Nimble ledger as well
+      TMCSEditLog tmcs = tmcsEdits;
+      if (tmcs != null) {
+        try {
+          long waitStart = System.nanoTime();
+          tmcs.awaitCommitted(lastJournalledTxId);
+          NimbleMetrics.get().addEditLogCommitWait(System.nanoTime() - waitStart);
+        } catch (IOException ex) {
+          synchronized (this) {
+            final String msg =
+                "Could not commit edits to the Nimble ledger. "
+                + "Unsynced transactions: " + (txid - synctxid);
+            LOG.error(msg, ex);
+            terminate(1, msg);
+          }
+        }
+      }
       long elapsed = monotonicNow() - start;
   
       if (metrics != null) { // Metrics non-null only when used inside name node
@@ -1485,6 +1566,8 @@ public synchronized void endCurrentLogSegment(boolean writeEndTxn) {
         "Bad state: %s", state);
     
     if (writeEndTxn) {
+      // nothing may follow the end of the segment, so seal the batch before
+      sealTMCSBatch();
       logEdit(LogSegmentOp.getInstance(cache.get(), 
           FSEditLogOpCodes.OP_END_LOG_SEGMENT));
     }
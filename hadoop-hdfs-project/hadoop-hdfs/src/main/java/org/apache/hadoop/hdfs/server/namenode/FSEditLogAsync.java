@@ -28,6 +28,7 @@
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.hadoop.hdfs.server.namenode.FSEditLogOp.NimbleFlushOp;
 import org.apache.hadoop.hdfs.server.namenode.metrics.NameNodeMetrics;
 import org.apache.hadoop.util.Time;
 import org.slf4j.Logger;
@@ -126,6 +127,12 @@ void logEdit(final FSEditLogOp op) {
     synchronized(this) {
       enqueueEdit(edit);
       beginTransaction(op);
+      if (shouldSealTMCSBatch(op)) {
+        // nobody waits on the seal, the caller's edit is synced with it.
+        FSEditLogOp sealOp = NimbleFlushOp.getInstance(cache.get());
+        enqueueEdit(new SyncEdit(this, sealOp));
+        beginTransaction(sealOp);
+      }
     }
   }
 
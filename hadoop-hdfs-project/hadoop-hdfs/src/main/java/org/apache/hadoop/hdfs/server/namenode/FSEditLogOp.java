@@ -157,6 +157,17 @@ public abstract class FSEditLogOp {
   long txid;
   byte[] rpcClientId;
   int rpcCallId;
+  /**
+   * The op as last written to or read from an edit log with
+   * {@link NameNodeLayoutVersion.Feature#NIMBLE_FRAME_TAGS}, without its
+   * trailing checksum, or null. Shared with the buffer or reader and only
+   * valid until the next op is written or read.
+   */
+  private byte[] frame;
+  private int frameOffset;
+  private int frameLength;
+  /** Layout version of the edit log last written to or read from, or 0. */
+  private int logVersion;
 
   public static class OpInstanceCache {
     private static final ThreadLocal<OpInstanceCacheMap> CACHE =
@@ -211,6 +222,10 @@ final void reset() {
     txid = HdfsServerConstants.INVALID_TXID;
     rpcClientId = RpcConstants.DUMMY_CLIENT_ID;
     rpcCallId = RpcConstants.INVALID_CALL_ID;
+    frame = null;
+    frameOffset = 0;
+    frameLength = 0;
+    logVersion = 0;
     resetSubFields();
   }
 
@@ -252,6 +267,65 @@ public boolean hasTransactionId() {
   public void setTransactionId(long txid) {
     this.txid = txid;
   }
+
+  /**
+   * @return the buffer holding the serialized op, as framed by
+   *         {@link #writeFrame} at {@link #getFrameOffset()}, if it was
+   *         written to or read from an edit log with
+   *         {@link NameNodeLayoutVersion.Feature#NIMBLE_FRAME_TAGS}; null
+   *         otherwise. Only valid until the next op is written to the same
+   *         buffer or read from the same stream.
+   */
+  public byte[] getFrame() {
+    return frame;
+  }
+
+  public int getFrameOffset() {
+    return frameOffset;
+  }
+
+  public int getFrameLength() {
+    return frameLength;
+  }
+
+  /**
+   * @return the layout version of the edit log the op was last written to or
+   *         read from, or 0 if neither
+   */
+  public int getLogVersion() {
+    return logVersion;
+  }
+
+  private void setFrame(byte[] frame, int offset, int length,
+      int logVersion) {
+    this.frame = frame;
+    this.frameOffset = offset;
+    this.frameLength = length;
+    this.logVersion = logVersion;
+  }
+
+  /**
+   * Serialize this op as it is stored in an edit log: opcode, length, txid
+   * and fields, but without the trailing checksum.
+   *
+   * @return the offset of the frame in out
+   */
+  public int writeFrame(DataOutputBuffer out, int logVersion)
+      throws IOException {
+    int start = out.getLength();
+    // write the op code first to make padding and terminator verification
+    // work
+    out.writeByte(opCode.getOpCode());
+    out.writeInt(0); // write 0 for the length first
+    out.writeLong(txid);
+    writeFields(out, logVersion);
+    int end = out.getLength();
+
+    // write the length back: content of the op + 4 bytes checksum - op_code
+    int length = end - start - 1;
+    out.writeInt(length, start + 1);
+    return start;
+  }
   
   public boolean hasRpcIds() {
     return rpcClientId != RpcConstants.DUMMY_CLIENT_ID
@@ -5034,23 +5108,20 @@ public Writer(DataOutputBuffer out) {
      */
     public void writeOp(FSEditLogOp op, int logVersion)
         throws IOException {
-      int start = buf.getLength();
-      // write the op code first to make padding and terminator verification
-      // work
-      buf.writeByte(op.opCode.getOpCode());
-      buf.writeInt(0); // write 0 for the length first
-      buf.writeLong(op.txid);
-      op.writeFields(buf, logVersion);
+      int start = op.writeFrame(buf, logVersion);
       int end = buf.getLength();
-      
-      // write the length back: content of the op + 4 bytes checksum - op_code
-      int length = end - start - 1;
-      buf.writeInt(length, start + 1);
 
       checksum.reset();
       checksum.update(buf.getData(), start, end-start);
       int sum = (int)checksum.getValue();
       buf.writeInt(sum);
+      // Let the op be tagged from the bytes just written
+      if (NameNodeLayoutVersion.supports(
+          NameNodeLayoutVersion.Feature.NIMBLE_FRAME_TAGS, logVersion)) {
+        op.setFrame(buf.getData(), start, end - start, logVersion);
+      } else {
+        op.setFrame(null, 0, 0, logVersion);
+      }
     }
   }
 
@@ -5240,6 +5311,10 @@ private static class LengthPrefixedReader extends Reader {
 
     private final Checksum checksum;
 
+    /** The last op read, without its checksum. */
+    private byte[] frame = new byte[4096];
+    private int frameLength;
+
     LengthPrefixedReader(DataInputStream in, StreamLimiter limiter,
                          int logVersion) {
       super(in, limiter, logVersion);
@@ -5264,6 +5339,13 @@ public FSEditLogOp decodeOp() throws IOException {
       op.readFields(in, logVersion);
       // skip over the checksum, which we validated above.
       IOUtils.skipFully(in, CHECKSUM_LENGTH);
+      // Only edit logs with frame tags are tagged from the frame as read
+      if (NameNodeLayoutVersion.supports(
+          NameNodeLayoutVersion.Feature.NIMBLE_FRAME_TAGS, logVersion)) {
+        op.setFrame(frame, 0, frameLength, logVersion);
+      } else {
+        op.setFrame(null, 0, 0, logVersion);
+      }
       return op;
     }
 
@@ -5310,16 +5392,16 @@ private long decodeOpFrame() throws IOException {
             opLength + ", but the minimum op size is " + MIN_OP_LENGTH);
       }
       long txid = in.readLong();
-      // Verify checksum
+      // Verify checksum, keeping the bytes of the op
       in.reset();
       in.mark(maxOpSize);
-      checksum.reset();
-      for (int rem = opLength - CHECKSUM_LENGTH; rem > 0;) {
-        int toRead = Math.min(temp.length, rem);
-        IOUtils.readFully(in, temp, 0, toRead);
-        checksum.update(temp, 0, toRead);
-        rem -= toRead;
+      frameLength = opLength - CHECKSUM_LENGTH;
+      if (frame.length < frameLength) {
+        frame = new byte[Math.max(frameLength, 2 * frame.length)];
       }
+      IOUtils.readFully(in, frame, 0, frameLength);
+      checksum.reset();
+      checksum.update(frame, 0, frameLength);
       int expectedChecksum = in.readInt();
       int calculatedChecksum = (int)checksum.getValue();
       if (expectedChecksum != calculatedChecksum) {
@@ -5369,6 +5451,7 @@ public FSEditLogOp decodeOp() throws IOException {
       if (op == null) {
         throw new IOException("Read invalid opcode " + opCode);
       }
+      op.setFrame(null, 0, 0, logVersion);
       op.setTransactionId(in.readLong());
       op.readFields(in, logVersion);
       // Verify checksum
@@ -5424,6 +5507,7 @@ public FSEditLogOp decodeOp() throws IOException {
       if (op == null) {
         throw new IOException("Read invalid opcode " + opCode);
       }
+      op.setFrame(null, 0, 0, logVersion);
       if (NameNodeLayoutVersion.supports(
             LayoutVersion.Feature.STORED_TXIDS, logVersion)) {
         op.setTransactionId(in.readLong());
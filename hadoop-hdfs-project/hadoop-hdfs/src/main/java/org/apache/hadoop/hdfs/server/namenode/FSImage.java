@@ -24,7 +24,6 @@
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URI;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -983,7 +982,11 @@ private void loadFSImage(File curFile, MD5Hash expectedMd5,
           " but expecting " + expectedMd5);
     }
 
-    // Verify NimbleFSImageInfo
+    // Verify NimbleFSImageInfo, with the digest taken along with the MD5
+    byte[] nimbleDigest = loader.getLoadedImageNimbleDigest();
+    if (nimbleDigest != null) {
+      NimbleUtils.recordFSImageDigest(curFile, nimbleDigest);
+    }
     if (!NimbleUtils.verifyFSImageInfo(curFile))
       throw new NimbleError("Verification failed for FSImage: " + curFile);
     else
@@ -1018,13 +1021,9 @@ void saveFSImage(SaveNamespaceContext context, StorageDirectory sd,
     MD5FileUtils.saveMD5File(dstFile, saver.getSavedDigest());
     storage.setMostRecentCheckpointInfo(txid, Time.now());
 
-    // Save nimble metadata
-    try {
-      NimbleUtils.saveFSImageInfo(newFile);
-    } catch (NoSuchAlgorithmException e) {
-      LOG.error("nimble failure: " + e);
-      e.printStackTrace();
-    }
+    // Save nimble metadata, with the digest taken while writing the image
+    NimbleUtils.saveFSImageInfo(newFile, saver.getSavedNimbleDigest(),
+        TMCS.getInstance(NimbleUtils.getShard(conf)));
   }
 
   /**
@@ -1280,7 +1279,7 @@ private synchronized void saveFSImageInAllDirs(FSNamesystem source,
       renameCheckpoint(txid, NameNodeFile.IMAGE_NEW, nnf, false);
 
       // Increment TMCS (for new FSImage)
-      TMCS tmcs = TMCS.getInstance();
+      TMCS tmcs = TMCS.getInstance(NimbleUtils.getShard(conf));
       NimbleUtils.NimbleFSImageInfo info =
               NimbleUtils.getFSImageInfo(this.getStorage().getFsImageName(txid));
       if (tmcs.expectedCounter() != info.counter) {
@@ -212,6 +212,16 @@ public long getLoadedImageTxId() {
       return impl.getLoadedImageTxId();
     }
 
+    /**
+     * @return the Nimble SHA-256 computed while loading the image, or null
+     *         if the image was in the legacy format
+     */
+    public byte[] getLoadedImageNimbleDigest() {
+      return (impl instanceof FSImageFormatProtobuf.Loader) ?
+          ((FSImageFormatProtobuf.Loader) impl).getLoadedImageNimbleDigest() :
+          null;
+    }
+
     public void load(File file, boolean requireSameLayoutVersion)
         throws IOException {
       Preconditions.checkState(impl == null, "Image already loaded!");
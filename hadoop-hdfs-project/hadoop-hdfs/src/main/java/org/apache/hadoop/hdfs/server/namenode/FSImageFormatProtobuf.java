@@ -31,6 +31,8 @@
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.DigestInputStream;
 import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.util.ArrayList;
@@ -70,7 +72,8 @@
 import org.apache.hadoop.hdfs.server.namenode.startupprogress.StartupProgress.Counter;
 import org.apache.hadoop.hdfs.server.namenode.startupprogress.Step;
 import org.apache.hadoop.hdfs.server.namenode.startupprogress.StepType;
-import org.apache.hadoop.hdfs.util.MD5FileUtils;
+import org.apache.hadoop.hdfs.server.nimble.NimbleUtils;
+import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.MD5Hash;
 import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.util.LimitInputStream;
@@ -147,6 +150,8 @@ public static final class Loader implements FSImageFormat.AbstractLoader {
     private final LoaderContext ctx;
     /** The MD5 sum of the loaded file */
     private MD5Hash imgDigest;
+    /** The Nimble SHA-256 of the loaded file */
+    private byte[] imgNimbleDigest;
     /** The transaction ID of the last edit represented by the loaded file */
     private long imgTxId;
     /**
@@ -171,6 +176,10 @@ public MD5Hash getLoadedImageMd5() {
       return imgDigest;
     }
 
+    public byte[] getLoadedImageNimbleDigest() {
+      return imgNimbleDigest;
+    }
+
     @Override
     public long getLoadedImageTxId() {
       return imgTxId;
@@ -182,7 +191,8 @@ public LoaderContext getLoaderContext() {
 
     /**
      * Thread to compute the MD5 of a file as this can be in parallel while
-     * loading the image without interfering much.
+     * loading the image without interfering much. The Nimble SHA-256 is
+     * computed in the same pass.
      */
     private static class DigestThread extends Thread {
 
@@ -196,6 +206,11 @@ private static class DigestThread extends Thread {
        */
       private volatile MD5Hash digest = null;
 
+      /**
+       * Nimble SHA-256, computed along with the MD5.
+       */
+      private volatile byte[] nimbleDigest = null;
+
       /**
        * FsImage file computed MD5.
        */
@@ -214,14 +229,27 @@ public MD5Hash getDigest() throws IOException {
         return digest;
       }
 
+      public byte[] getNimbleDigest() throws IOException {
+        if (ioe != null) {
+          throw ioe;
+        }
+        return nimbleDigest;
+      }
+
       public IOException getException() {
         return ioe;
       }
 
       @Override
       public void run() {
-        try {
-          digest = MD5FileUtils.computeMd5ForFile(file);
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+          MessageDigest md5 = MD5Hash.getDigester();
+          MessageDigest sha256 = NimbleUtils._checksum();
+          IOUtils.copyBytes(
+              new DigestInputStream(new DigestInputStream(in, md5), sha256),
+              new IOUtils.NullOutputStream(), 128 * 1024);
+          nimbleDigest = sha256.digest();
+          digest = new MD5Hash(md5.digest());
         } catch (IOException e) {
           ioe = e;
         } catch (Throwable t) {
@@ -248,6 +276,7 @@ void load(File file) throws IOException {
         try {
           dt.join();
           imgDigest = dt.getDigest();
+          imgNimbleDigest = dt.getNimbleDigest();
         } catch (InterruptedException ie) {
           throw new IOException(ie);
         }
@@ -623,6 +652,7 @@ public static final class Saver {
     private long currentOffset = FSImageUtil.MAGIC_HEADER.length;
     private long subSectionOffset = currentOffset;
     private MD5Hash savedDigest;
+    private byte[] savedNimbleDigest;
 
     private FileChannel fileChannel;
     // OutputStream for the section data
@@ -641,6 +671,13 @@ public MD5Hash getSavedDigest() {
       return savedDigest;
     }
 
+    /**
+     * @return the Nimble SHA-256 of the saved image, computed while writing it
+     */
+    public byte[] getSavedNimbleDigest() {
+      return savedNimbleDigest;
+    }
+
     public SaveNamespaceContext getContext() {
       return context;
     }
@@ -829,11 +866,12 @@ private long saveInternal(FileOutputStream fout,
         FSImageCompression compression, String filePath) throws IOException {
       StartupProgress prog = NameNode.getStartupProgress();
       MessageDigest digester = MD5Hash.getDigester();
+      MessageDigest nimbleDigester = NimbleUtils._checksum();
       int layoutVersion =
           context.getSourceNamesystem().getEffectiveLayoutVersion();
 
-      underlyingOutputStream = new DigestOutputStream(new BufferedOutputStream(
-          fout), digester);
+      underlyingOutputStream = new DigestOutputStream(new DigestOutputStream(
+          new BufferedOutputStream(fout), digester), nimbleDigester);
       underlyingOutputStream.write(FSImageUtil.MAGIC_HEADER);
 
       fileChannel = fout.getChannel();
@@ -895,6 +933,7 @@ private long saveInternal(FileOutputStream fout,
       saveFileSummary(underlyingOutputStream, summary);
       underlyingOutputStream.close();
       savedDigest = new MD5Hash(digester.digest());
+      savedNimbleDigest = nimbleDigester.digest();
       return numErrors;
     }
 
@@ -292,6 +292,8 @@
 import org.apache.hadoop.hdfs.server.namenode.top.TopConf;
 import org.apache.hadoop.hdfs.server.namenode.top.metrics.TopMetrics;
 import org.apache.hadoop.hdfs.server.namenode.top.window.RollingWindowManager;
+import org.apache.hadoop.hdfs.server.nimble.TMCSBatchPolicy;
+import org.apache.hadoop.hdfs.server.nimble.TMCSEditLog;
 import org.apache.hadoop.hdfs.server.protocol.BlocksWithLocations;
 import org.apache.hadoop.hdfs.server.protocol.DatanodeCommand;
 import org.apache.hadoop.hdfs.server.protocol.DatanodeRegistration;
@@ -513,6 +515,8 @@ private void logAuditEvent(boolean succeeded,
 
   Daemon nnEditLogRoller = null; // NameNodeEditLogRoller thread
 
+  Daemon nimbleBatchSealer = null; // NimbleBatchSealer thread
+
   // A daemon to periodically clean up corrupt lazyPersist files
   // from the name space.
   Daemon lazyPersistFileScrubber = null;
@@ -1411,6 +1415,13 @@ void startActiveServices() throws IOException {
           editLogRollerThreshold, editLogRollerInterval));
       nnEditLogRoller.start();
 
+      TMCSEditLog tmcsEdits = editLog.getTMCSEdits();
+      if (tmcsEdits != null && tmcsEdits.getBatchPolicy() != null) {
+        nimbleBatchSealer = new Daemon(new NimbleBatchSealer(
+            tmcsEdits.getBatchPolicy()));
+        nimbleBatchSealer.start();
+      }
+
       if (lazyPersistFileScrubIntervalSec > 0) {
         lazyPersistFileScrubber = new Daemon(new LazyPersistFileScrubber(
             lazyPersistFileScrubIntervalSec));
@@ -1481,6 +1492,10 @@ void stopActiveServices() {
         ((NameNodeEditLogRoller)nnEditLogRoller.getRunnable()).stop();
         nnEditLogRoller.interrupt();
       }
+      if (nimbleBatchSealer != null) {
+        ((NimbleBatchSealer) nimbleBatchSealer.getRunnable()).stop();
+        nimbleBatchSealer.interrupt();
+      }
       if (lazyPersistFileScrubber != null) {
         ((LazyPersistFileScrubber) lazyPersistFileScrubber.getRunnable()).stop();
         lazyPersistFileScrubber.interrupt();
@@ -1880,12 +1895,22 @@ public boolean isInStandbyState() {
    */
   public BlocksWithLocations getBlocks(DatanodeID datanode, long size, long
       minimumBlockSize) throws IOException {
+    return getBlocks(datanode, size, minimumBlockSize, false);
+  }
+
+  /**
+   * @param internalBlocks whether to list the internal blocks of block groups
+   *        stored on the datanode, rather than the groups
+   * @see #getBlocks(DatanodeID, long, long)
+   */
+  public BlocksWithLocations getBlocks(DatanodeID datanode, long size, long
+      minimumBlockSize, boolean internalBlocks) throws IOException {
     checkOperation(OperationCategory.READ);
     readLock();
     try {
       checkOperation(OperationCategory.READ);
       return getBlockManager().getBlocksWithLocations(datanode, size,
-          minimumBlockSize);
+          minimumBlockSize, internalBlocks);
     } finally {
       readUnlock("getBlocks");
     }
@@ -4468,6 +4493,57 @@ public void stop() {
     }
   }
 
+  /**
+   * Daemon to seal an adaptive TMCS batch whose oldest op has waited longer
+   * than the latency bound, when no new op arrives to seal it.
+   */
+  class NimbleBatchSealer implements Runnable {
+    private volatile boolean shouldRun = true;
+    private final TMCSBatchPolicy policy;
+
+    NimbleBatchSealer(TMCSBatchPolicy policy) {
+      this.policy = policy;
+    }
+
+    @Override
+    public void run() {
+      final String operationName = "nimbleBatchSeal";
+      while (fsRunning && shouldRun) {
+        try {
+          if (policy.isStale()) {
+            boolean logged = false;
+            writeLock();
+            try {
+              if (getEditLog().isOpenForWrite()) {
+                getEditLog().logNimbleFlush();
+                logged = true;
+              }
+            } finally {
+              writeUnlock(operationName);
+            }
+            if (logged) {
+              getEditLog().logSync();
+            }
+          }
+        } catch (Exception e) {
+          FSNamesystem.LOG.error("Swallowing exception in "
+              + NimbleBatchSealer.class.getSimpleName() + ":", e);
+        }
+        try {
+          Thread.sleep(Math.max(1, policy.getMaxDelayMs() / 2));
+        } catch (InterruptedException e) {
+          FSNamesystem.LOG.info(NimbleBatchSealer.class.getSimpleName()
+              + " was interrupted, exiting");
+          break;
+        }
+      }
+    }
+
+    public void stop() {
+      shouldRun = false;
+    }
+  }
+
   /**
    * Daemon to periodically scan the namespace for lazyPersist files
    * with missing blocks and unlink them.
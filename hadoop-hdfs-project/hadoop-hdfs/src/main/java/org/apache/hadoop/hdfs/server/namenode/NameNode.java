@@ -17,6 +17,8 @@
  */
 package org.apache.hadoop.hdfs.server.namenode;
 
+import org.apache.hadoop.hdfs.server.nimble.NimbleMetrics;
+import org.apache.hadoop.hdfs.server.nimble.NimbleUtils;
 import org.apache.hadoop.hdfs.server.nimble.TMCS;
 import org.apache.hadoop.thirdparty.com.google.common.annotations.VisibleForTesting;
 import org.apache.hadoop.thirdparty.com.google.common.base.Joiner;
@@ -308,6 +310,7 @@ public enum OperationCategory {
     DFS_NAMENODE_KERBEROS_INTERNAL_SPNEGO_PRINCIPAL_KEY,
     DFS_HA_FENCE_METHODS_KEY,
     DFS_HA_ZKFC_PORT_KEY,
+    NimbleUtils.Conf.SHARD_KEY,
   };
   
   /**
@@ -479,6 +482,7 @@ public void queueExternalCall(ExternalCall<?> extCall)
 
   public static void initMetrics(Configuration conf, NamenodeRole role) {
     metrics = NameNodeMetrics.create(conf, role);
+    NimbleMetrics.create(conf);
   }
 
   public static NameNodeMetrics getNameNodeMetrics() {
@@ -90,7 +90,8 @@ public enum Feature implements LayoutFeature {
     QUOTA_BY_STORAGE_TYPE(-63, -61, "Support quota for specific storage types"),
     ERASURE_CODING(-64, -61, "Support erasure coding"),
     EXPANDED_STRING_TABLE(-65, -61, "Support expanded string table in fsimage"),
-    SNAPSHOT_MODIFICATION_TIME(-66, -61, "Support modification time for snapshot");
+    SNAPSHOT_MODIFICATION_TIME(-66, -61, "Support modification time for snapshot"),
+    NIMBLE_FRAME_TAGS(-67, -61, "Tag edit log ops for Nimble as framed in the edit log");
 
     private final FeatureInfo info;
 
@@ -1594,7 +1594,9 @@ public BlocksWithLocations getBlocksForDatanode(DatanodeInfo datanode, long size
     checkNNStartup();
     namesystem.checkSuperuserPrivilege();
     namesystem.checkNameNodeSafeMode("Cannot execute getBlocks");
-    return namesystem.getBlocks(datanode, size, minBlockSize);
+    // The datanode looks up its replicas, which of a block group are the
+    // internal blocks, each with its own digest
+    return namesystem.getBlocks(datanode, size, minBlockSize, true);
   }
 
   @Override // DatanodeProtocol
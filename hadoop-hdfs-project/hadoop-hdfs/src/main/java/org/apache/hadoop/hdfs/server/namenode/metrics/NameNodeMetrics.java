@@ -87,6 +87,12 @@ public class NameNodeMetrics {
   MutableCounterLong blockOpsBatched;
   @Metric("Number of pending edits")
   MutableGaugeInt pendingEditsCount;
+  @Metric("Target number of ops in a TMCS edit log batch")
+  MutableGaugeInt tmcsBatchSize;
+  @Metric("Number of TMCS batches sealed on reaching the target size")
+  MutableCounterLong tmcsBatchesSealedBySize;
+  @Metric("Number of TMCS batches sealed on reaching the latency bound")
+  MutableCounterLong tmcsBatchesSealedByLatency;
   @Metric("Number of delete blocks Queued")
   MutableGaugeInt deleteBlocksQueued;
   @Metric("Number of pending deletion blocks")
@@ -358,6 +364,18 @@ public void setPendingEditsCount(int size) {
     pendingEditsCount.set(size);
   }
 
+  public void setTMCSBatchSize(int size) {
+    tmcsBatchSize.set(size);
+  }
+
+  public void incrTMCSBatchesSealedBySize() {
+    tmcsBatchesSealedBySize.incr();
+  }
+
+  public void incrTMCSBatchesSealedByLatency() {
+    tmcsBatchesSealedByLatency.incr();
+  }
+
   public void addTransaction(long latency) {
     transactions.add(latency);
   }
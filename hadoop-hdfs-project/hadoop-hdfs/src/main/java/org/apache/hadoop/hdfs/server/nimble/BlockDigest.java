@@ -0,0 +1,228 @@
+package org.apache.hadoop.hdfs.server.nimble;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.io.nativeio.NativeIO;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Algorithms of the Nimble block digest, and the tagged form of Block.checksum that records
+ * which algorithm a digest was made with.
+ *
+ * A digest of Block.CHECKSUM_LENGTH bytes is untagged, as written before algorithms were
+ * recorded: a flat SHA-256, or a BlockMerkleTree root on DataNodes with Merkle digests enabled.
+ * Readers of an untagged digest try both. New digests are tagged: the id of the algorithm,
+ * followed by the 32 byte digest. Block reports, the edit log and the fsimage all carry the
+ * checksum as length-prefixed bytes, so the tag travels with the digest without a layout change.
+ *
+ * The algorithm of new replicas is chosen with "fs.nimble.digest.algorithm". Merkle digests of
+ * whole replicas are computed in parallel: the chunks are independent, so their leaves are hashed
+ * one mapped segment per task, on the bounded hash pool of the replica's volume.
+ */
+public final class BlockDigest {
+    public enum Algorithm {
+        /** SHA-256 over the whole replica */
+        SHA256((byte) 1, "sha256"),
+        /** Root of a BlockMerkleTree, whose leaves can be hashed in parallel */
+        MERKLE((byte) 2, "merkle");
+
+        private final byte id;
+        private final String name;
+
+        Algorithm(byte id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        public byte getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public static Algorithm forId(byte id) throws NimbleError {
+            for (Algorithm a : values()) {
+                if (a.id == id)
+                    return a;
+            }
+            throw new NimbleError("Unknown block digest algorithm id " + id);
+        }
+
+        public static Algorithm forName(String name) {
+            for (Algorithm a : values()) {
+                if (a.name.equalsIgnoreCase(name))
+                    return a;
+            }
+            throw new IllegalArgumentException("Unknown block digest algorithm " + name
+                    + ", expected " + Arrays.toString(values()));
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private BlockDigest() {
+    }
+
+    /**
+     * Algorithm to digest new replicas with. Without "fs.nimble.digest.algorithm", Merkle digests
+     * are used if "fs.nimble.merkle.enabled" is set, as before algorithms could be chosen.
+     */
+    public static Algorithm getAlgorithm(Configuration conf) {
+        String name = conf.getTrimmed(NimbleUtils.Conf.DIGEST_ALGORITHM_KEY, "");
+        if (!name.isEmpty())
+            return Algorithm.forName(name);
+        return conf.getBoolean(NimbleUtils.Conf.MERKLE_ENABLED_KEY, NimbleUtils.Conf.MERKLE_ENABLED_DEFAULT)
+                ? Algorithm.MERKLE : Algorithm.SHA256;
+    }
+
+    /**
+     * Chunk size of Merkle digests, whether or not new replicas use them.
+     */
+    public static int getMerkleChunkSize(Configuration conf) {
+        return Math.max(1, conf.getInt(NimbleUtils.Conf.MERKLE_CHUNK_SIZE_KEY, NimbleUtils.Conf.MERKLE_CHUNK_SIZE_DEFAULT));
+    }
+
+    /**
+     * @return the algorithm a digest is tagged with, or null if it is untagged
+     */
+    public static Algorithm algorithmOf(byte[] digest) throws NimbleError {
+        if (digest == null || digest.length != Block.TAGGED_CHECKSUM_LENGTH)
+            return null;
+        return Algorithm.forId(digest[0]);
+    }
+
+    public static byte[] tag(Algorithm algorithm, byte[] digest) {
+        byte[] tagged = new byte[Block.TAGGED_CHECKSUM_LENGTH];
+        tagged[0] = algorithm.getId();
+        System.arraycopy(digest, 0, tagged, 1, Block.CHECKSUM_LENGTH);
+        return tagged;
+    }
+
+    /**
+     * Check a computed digest against the expected one. A tagged expected digest only matches
+     * a digest of its own algorithm; an untagged one matches either.
+     *
+     * @param expected Digest from Block.checksum, tagged or not
+     * @param algorithm Algorithm the digest was computed with
+     * @param digest Computed 32 byte digest
+     */
+    public static boolean matches(byte[] expected, Algorithm algorithm, byte[] digest) throws NimbleError {
+        if (expected == null || digest == null)
+            return false;
+        if (expected.length == Block.CHECKSUM_LENGTH)
+            return Arrays.equals(expected, digest);
+        if (algorithmOf(expected) != algorithm || digest.length != Block.CHECKSUM_LENGTH)
+            return false;
+        for (int i = 0; i < Block.CHECKSUM_LENGTH; i++) {
+            if (expected[i + 1] != digest[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Merkle tree over the first len bytes of a file channel, with the leaves hashed in parallel
+     * on the given pool, or one segment after the other on the calling thread if it is null.
+     *
+     * The file is split into segments of about segmentSize bytes, whole chunks each. Every task
+     * maps one segment, hashes its chunks and unmaps it, so neither heap nor address space grows
+     * with the size of the file.
+     */
+    public static BlockMerkleTree merkleTree(FileChannel ch, long len, int chunkSize, int segmentSize,
+            ForkJoinPool pool) throws IOException {
+        if (ch.size() < len)
+            throw new EOFException("File is shorter (" + ch.size() + ") than expected length " + len);
+
+        int chunks = BlockMerkleTree.chunksFor(len, chunkSize);
+        byte[] leaves = new byte[chunks * BlockMerkleTree.HASH_SIZE];
+        if (len == 0) {
+            System.arraycopy(BlockMerkleTree.leaf(NimbleUtils._checksum(), ByteBuffer.allocate(0)), 0,
+                    leaves, 0, BlockMerkleTree.HASH_SIZE);
+        } else {
+            int chunksPerTask = Math.max(1, segmentSize / chunkSize);
+            if (pool == null) {
+                for (int lo = 0; lo < chunks; lo += chunksPerTask) {
+                    hashSegment(ch, len, chunkSize, leaves, lo, Math.min(chunks, lo + chunksPerTask));
+                }
+            } else {
+                try {
+                    pool.invoke(new LeafTask(ch, len, chunkSize, leaves, 0, chunks, chunksPerTask));
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+            }
+        }
+        return BlockMerkleTree.fromLeaves(chunkSize, len, leaves);
+    }
+
+    /* Hashes the leaves of chunks [lo, hi) */
+    private static class LeafTask extends RecursiveAction {
+        private final FileChannel ch;
+        private final long len;
+        private final int chunkSize;
+        private final byte[] leaves;
+        private final int lo;
+        private final int hi;
+        private final int chunksPerTask;
+
+        LeafTask(FileChannel ch, long len, int chunkSize, byte[] leaves, int lo, int hi, int chunksPerTask) {
+            this.ch = ch;
+            this.len = len;
+            this.chunkSize = chunkSize;
+            this.leaves = leaves;
+            this.lo = lo;
+            this.hi = hi;
+            this.chunksPerTask = chunksPerTask;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > chunksPerTask) {
+                int mid = lo + (hi - lo) / 2;
+                invokeAll(new LeafTask(ch, len, chunkSize, leaves, lo, mid, chunksPerTask),
+                        new LeafTask(ch, len, chunkSize, leaves, mid, hi, chunksPerTask));
+                return;
+            }
+            try {
+                hashSegment(ch, len, chunkSize, leaves, lo, hi);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /* Maps the segment of chunks [lo, hi) and hashes their leaves */
+    private static void hashSegment(FileChannel ch, long len, int chunkSize, byte[] leaves, int lo, int hi)
+            throws IOException {
+        long start = (long) lo * chunkSize;
+        long end = Math.min(len, (long) hi * chunkSize);
+        MessageDigest md = NimbleUtils._checksum();
+        MappedByteBuffer segment = ch.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        try {
+            for (int i = lo; i < hi; i++) {
+                ByteBuffer chunk = segment.duplicate();
+                int off = (int) ((long) (i - lo) * chunkSize);
+                chunk.position(off).limit((int) Math.min(off + (long) chunkSize, end - start));
+                System.arraycopy(BlockMerkleTree.leaf(md, chunk), 0,
+                        leaves, i * BlockMerkleTree.HASH_SIZE, BlockMerkleTree.HASH_SIZE);
+            }
+        } finally {
+            NativeIO.POSIX.munmap(segment);
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package org.apache.hadoop.hdfs.server.nimble;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Chunk-level Merkle tree over a replica, used as the Nimble block digest
+ * with the "merkle" BlockDigest algorithm.
+ *
+ * The replica is split into chunks of chunkSize bytes:
+ *   leaf   = SHA256(0x00 || chunk)
+ *   node   = SHA256(0x01 || left || right), an odd last node is promoted as is
+ *   digest = SHA256(0x02 || chunkSize || length || top)
+ * The digest takes the place of the flat SHA-256 in Block.checksum, tagged
+ * as BlockDigest.Algorithm.MERKLE. All levels of the tree are kept in a
+ * "blk_[id].merkle" sidecar next to the block file, which lets a reader
+ * check a single chunk against the trusted digest by hashing that chunk
+ * and walking its sibling path. The sidecar itself is untrusted: a missing,
+ * stale or tampered sidecar only means the tree is rebuilt from the data.
+ */
+public class BlockMerkleTree {
+    static Logger logger = Logger.getLogger(BlockMerkleTree.class);
+
+    public static final String SIDECAR_EXTENSION = ".merkle";
+    private static final int MAGIC = 0x4e4d4b54; // "NMKT"
+    private static final int VERSION = 1;
+    static final int HASH_SIZE = 32;
+
+    private static final byte LEAF = 0x00;
+    private static final byte NODE = 0x01;
+    private static final byte ROOT = 0x02;
+
+    private final int chunkSize;
+    private final long length;
+    private final byte[][] levels; // levels[0] holds the leaves, the last level holds the top node
+
+    private BlockMerkleTree(int chunkSize, long length, byte[][] levels) {
+        this.chunkSize = chunkSize;
+        this.length = length;
+        this.levels = levels;
+    }
+
+    /**
+     * Chunk size to digest new replicas with, or 0 if Merkle digests are disabled.
+     */
+    public static int getChunkSize(Configuration conf) {
+        if (BlockDigest.getAlgorithm(conf) != BlockDigest.Algorithm.MERKLE)
+            return 0;
+        return BlockDigest.getMerkleChunkSize(conf);
+    }
+
+    public static File sidecarFile(File blockFile) {
+        return new File(blockFile.getParentFile(), blockFile.getName() + SIDECAR_EXTENSION);
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public int getNumChunks() {
+        return levels[0].length / HASH_SIZE;
+    }
+
+    /**
+     * Block digest, as stored untagged in Block.checksum.
+     */
+    public byte[] getDigest() throws NimbleError {
+        MessageDigest md = NimbleUtils._checksum();
+        md.update(ROOT);
+        md.update(ByteBuffer.allocate(12).putInt(chunkSize).putLong(length).array());
+        md.update(levels[levels.length - 1], 0, HASH_SIZE);
+        return md.digest();
+    }
+
+    /**
+     * Check that the tree describes a replica of the given length and digest.
+     *
+     * @param expectedDigest Untagged digest, or one tagged as a Merkle digest
+     */
+    public boolean matches(byte[] expectedDigest, long expectedLength) throws NimbleError {
+        return length == expectedLength
+                && BlockDigest.matches(expectedDigest, BlockDigest.Algorithm.MERKLE, getDigest());
+    }
+
+    /**
+     * Verify one chunk against the top of the tree by walking its sibling path.
+     * The caller must have checked the tree with matches() first.
+     *
+     * @param index Index of the chunk
+     * @param chunk Chunk contents, from position to limit
+     */
+    public void verifyChunk(int index, ByteBuffer chunk) throws NimbleError {
+        if (index < 0 || index >= getNumChunks()
+                || chunk.remaining() != Math.min(chunkSize, length - (long) index * chunkSize))
+            throw new NimbleError("Chunk " + index + " out of range for " + this);
+
+        MessageDigest md = NimbleUtils._checksum();
+        byte[] hash = leaf(md, chunk);
+        int j = index;
+        for (int l = 0; l < levels.length - 1; l++) {
+            int sibling = j ^ 1;
+            if (sibling < levels[l].length / HASH_SIZE) {
+                int left = Math.min(j, sibling), right = Math.max(j, sibling);
+                md.update(NODE);
+                if (left == j) {
+                    md.update(hash);
+                    md.update(levels[l], right * HASH_SIZE, HASH_SIZE);
+                } else {
+                    md.update(levels[l], left * HASH_SIZE, HASH_SIZE);
+                    md.update(hash);
+                }
+                hash = md.digest();
+            }
+            j >>= 1;
+        }
+        if (!Arrays.equals(hash, levels[levels.length - 1]))
+            throw new NimbleError("Merkle verification failed for chunk " + index + " of " + this);
+    }
+
+    /**
+     * Builder holding every full chunk of this tree, to continue an append.
+     * The caller feeds it the bytes of a trailing partial chunk, if any,
+     * from builder.getLength() on, which it should verifyChunk() first.
+     */
+    public Builder resume() throws NimbleError {
+        return resume((int) (length / chunkSize));
+    }
+
+    /**
+     * Builder holding the first fullChunks chunks of this tree.
+     */
+    public Builder resume(int fullChunks) throws NimbleError {
+        if (fullChunks < 0 || (long) fullChunks * chunkSize > length)
+            throw new IllegalArgumentException(fullChunks + " full chunks out of range for " + this);
+        Builder builder = new Builder(chunkSize);
+        builder.leaves.write(levels[0], 0, fullChunks * HASH_SIZE);
+        builder.length = (long) fullChunks * chunkSize;
+        return builder;
+    }
+
+    static byte[] leaf(MessageDigest md, ByteBuffer chunk) {
+        md.update(LEAF);
+        md.update(chunk);
+        return md.digest();
+    }
+
+    /**
+     * Tree over leaves hashed elsewhere, one per chunk of the replica.
+     */
+    static BlockMerkleTree fromLeaves(int chunkSize, long length, byte[] leaves) throws NimbleError {
+        if (leaves.length != chunksFor(length, chunkSize) * HASH_SIZE)
+            throw new IllegalArgumentException(leaves.length / HASH_SIZE + " leaves for "
+                    + length + " bytes in chunks of " + chunkSize);
+        return new BlockMerkleTree(chunkSize, length, buildLevels(leaves));
+    }
+
+    /* Compute the interior levels from the leaves */
+    private static byte[][] buildLevels(byte[] leaves) throws NimbleError {
+        MessageDigest md = NimbleUtils._checksum();
+        byte[][] levels = new byte[levelsFor(leaves.length / HASH_SIZE)][];
+        levels[0] = leaves;
+        for (int l = 1; l < levels.length; l++) {
+            byte[] below = levels[l - 1];
+            int n = below.length / HASH_SIZE;
+            byte[] level = new byte[((n + 1) / 2) * HASH_SIZE];
+            for (int i = 0; i + 1 < n; i += 2) {
+                md.update(NODE);
+                md.update(below, i * HASH_SIZE, 2 * HASH_SIZE);
+                System.arraycopy(md.digest(), 0, level, (i / 2) * HASH_SIZE, HASH_SIZE);
+            }
+            if (n % 2 == 1)
+                System.arraycopy(below, (n - 1) * HASH_SIZE, level, (n / 2) * HASH_SIZE, HASH_SIZE);
+            levels[l] = level;
+        }
+        return levels;
+    }
+
+    /**
+     * Write the tree to its sidecar, replacing any previous one.
+     */
+    public void save(File sidecar) throws IOException {
+        File tmp = new File(sidecar.getParentFile(), sidecar.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(chunkSize);
+            out.writeLong(length);
+            out.writeInt(getNumChunks());
+            for (byte[] level : levels)
+                out.write(level);
+        }
+        if (!tmp.renameTo(sidecar)) {
+            tmp.delete();
+            throw new IOException("Cannot rename " + tmp + " to " + sidecar);
+        }
+    }
+
+    /**
+     * Read a tree from its sidecar.
+     *
+     * @return the tree, or null if the sidecar does not exist or cannot be parsed
+     */
+    public static BlockMerkleTree load(File sidecar) {
+        if (!sidecar.exists())
+            return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("not a Merkle sidecar");
+            int chunkSize = in.readInt();
+            long length = in.readLong();
+            int count = in.readInt();
+            if (chunkSize <= 0 || length < 0 || count != chunksFor(length, chunkSize))
+                throw new IOException("inconsistent header");
+
+            byte[][] levels = new byte[levelsFor(count)][];
+            for (int l = 0, n = count; l < levels.length; l++, n = (n + 1) / 2) {
+                levels[l] = new byte[n * HASH_SIZE];
+                in.readFully(levels[l]);
+            }
+            return new BlockMerkleTree(chunkSize, length, levels);
+        } catch (IOException e) {
+            logger.warn("Ignoring unreadable Merkle sidecar " + sidecar + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    static int chunksFor(long length, int chunkSize) {
+        // An empty replica still has one (empty) leaf
+        return (int) Math.max(1, (length + chunkSize - 1) / chunkSize);
+    }
+
+    private static int levelsFor(int count) {
+        int height = 1;
+        for (int n = count; n > 1; n = (n + 1) / 2)
+            height++;
+        return height;
+    }
+
+    @Override
+    public String toString() {
+        return "BlockMerkleTree{chunkSize=" + chunkSize + ", length=" + length + ", chunks=" + getNumChunks() + '}';
+    }
+
+    /**
+     * Builds a tree incrementally as replica data streams in.
+     */
+    public static class Builder {
+        private final int chunkSize;
+        private final MessageDigest leaf;
+        private final ByteArrayOutputStream leaves = new ByteArrayOutputStream();
+        private long length;
+        private int inChunk; // bytes hashed into the current, partial leaf
+
+        public Builder(int chunkSize) throws NimbleError {
+            if (chunkSize <= 0)
+                throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+            this.chunkSize = chunkSize;
+            this.leaf = NimbleUtils._checksum();
+            this.leaf.update(LEAF);
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public void update(byte[] b, int off, int len) {
+            while (len > 0) {
+                int n = Math.min(len, chunkSize - inChunk);
+                leaf.update(b, off, n);
+                off += n;
+                len -= n;
+                inChunk += n;
+                length += n;
+                if (inChunk == chunkSize)
+                    closeLeaf();
+            }
+        }
+
+        public void update(ByteBuffer b) {
+            while (b.hasRemaining()) {
+                int n = Math.min(b.remaining(), chunkSize - inChunk);
+                ByteBuffer slice = b.duplicate();
+                slice.limit(slice.position() + n);
+                leaf.update(slice);
+                b.position(b.position() + n);
+                inChunk += n;
+                length += n;
+                if (inChunk == chunkSize)
+                    closeLeaf();
+            }
+        }
+
+        private void closeLeaf() {
+            leaves.write(leaf.digest(), 0, HASH_SIZE);
+            leaf.update(LEAF);
+            inChunk = 0;
+        }
+
+        /**
+         * Tree over everything written so far. The builder can keep going afterwards.
+         */
+        public BlockMerkleTree build() throws NimbleError {
+            ByteArrayOutputStream all = new ByteArrayOutputStream(leaves.size() + HASH_SIZE);
+            all.write(leaves.toByteArray(), 0, leaves.size());
+            if (inChunk > 0 || length == 0) {
+                try {
+                    all.write(((MessageDigest) leaf.clone()).digest(), 0, HASH_SIZE);
+                } catch (CloneNotSupportedException e) {
+                    throw new NimbleError("Cloning checksum is not supported. Cannot build Merkle tree.");
+                }
+            }
+            return new BlockMerkleTree(chunkSize, length, buildLevels(all.toByteArray()));
+        }
+    }
+}
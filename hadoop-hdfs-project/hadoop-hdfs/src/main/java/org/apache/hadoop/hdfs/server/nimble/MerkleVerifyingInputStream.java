@@ -0,0 +1,96 @@
+package org.apache.hadoop.hdfs.server.nimble;
+
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a replica through its BlockMerkleTree, checking each chunk the first
+ * time it is touched. A range read therefore only hashes the chunks it
+ * overlaps plus their sibling paths, instead of the whole replica.
+ *
+ * Data is only handed out after the chunk holding it has been verified.
+ */
+public class MerkleVerifyingInputStream extends InputStream {
+    private final FileInputStream in;
+    private final FileChannel channel;
+    private final BlockMerkleTree tree;
+    private final ByteBuffer chunk;
+    private int chunkIndex = -1; // chunk currently held in the buffer
+    private long position;
+
+    /**
+     * @param in       Stream over the block file; owned by this stream from now on
+     * @param tree     Tree that was already checked against the block digest
+     * @param position Offset to start reading at
+     */
+    public MerkleVerifyingInputStream(FileInputStream in, BlockMerkleTree tree, long position) {
+        this.in = in;
+        this.channel = in.getChannel();
+        this.tree = tree;
+        this.chunk = ByteBuffer.allocate((int) Math.min(tree.getChunkSize(), Math.max(1, tree.getLength())));
+        this.position = Math.min(position, tree.getLength());
+    }
+
+    /* Load the chunk holding the current position, if not yet loaded */
+    private boolean fill() throws IOException {
+        if (position >= tree.getLength())
+            return false;
+        int index = (int) (position / tree.getChunkSize());
+        if (index != chunkIndex) {
+            long start = (long) index * tree.getChunkSize();
+            chunk.clear();
+            chunk.limit((int) Math.min(tree.getChunkSize(), tree.getLength() - start));
+            while (chunk.hasRemaining()) {
+                if (channel.read(chunk, start + chunk.position()) < 0)
+                    throw new EOFException("Block file ended inside chunk " + index);
+            }
+            chunk.flip();
+            chunkIndex = -1;
+            tree.verifyChunk(index, chunk.duplicate());
+            chunkIndex = index;
+        }
+        chunk.position((int) (position - (long) chunkIndex * tree.getChunkSize()));
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill())
+            return -1;
+        position++;
+        return chunk.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (!fill())
+            return -1;
+        int n = Math.min(len, chunk.remaining());
+        chunk.get(b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) {
+        long skipped = Math.max(0, Math.min(n, tree.getLength() - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, tree.getLength() - position);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -1,43 +1,93 @@
 package org.apache.hadoop.hdfs.server.nimble;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.util.JsonSerialization;
+import org.apache.hadoop.thirdparty.com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.*;
+import org.apache.http.config.SocketConfig;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
 
 import javax.ws.rs.core.UriBuilder;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
-import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.InvalidParameterSpecException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.*;
 
+/**
+ * REST client for NimbleLedger.
+ *
+ * Connections are pooled and kept alive across requests, and bodies are
+ * written and parsed with the Jackson streaming API. The client is thread-safe:
+ * requests for different handles may be issued concurrently, either directly
+ * or through the *Async variants, up to "fs.nimble.http.maxConnections" at a time.
+ */
 public class NimbleAPI implements Closeable {
     static  Logger logger = Logger.getLogger(NimbleAPI.class);
 
     private URI                 nimble_rest_uri;
     private CloseableHttpClient httpClient;
+    private PoolingHttpClientConnectionManager connectionManager;
+    private ExecutorService     executor; // for the *Async variants, created lazily
+    private final int           maxConnections;
+    private volatile boolean    batchSupported = true; // cleared if the ledger lacks the batch endpoint
     final public Configuration       conf;
 
     public NimbleAPI(Configuration conf) {
         this.conf = conf;
         this.nimble_rest_uri = URI.create(conf.get(NimbleUtils.Conf.NIMBLE_LEDGER_URI_KEY, NimbleUtils.Conf.NIMBLE_LEDGER_URI_DEFAULT));
+        this.maxConnections = Math.max(1, conf.getInt(NimbleUtils.Conf.HTTP_MAX_CONNECTIONS_KEY, NimbleUtils.Conf.HTTP_MAX_CONNECTIONS_DEFAULT));
+        int timeout = conf.getInt(NimbleUtils.Conf.HTTP_TIMEOUT_KEY, NimbleUtils.Conf.HTTP_TIMEOUT_DEFAULT);
+
+        // All requests go to a single ledger endpoint, so the route limit is the pool limit
+        this.connectionManager = new PoolingHttpClientConnectionManager(
+                conf.getLong(NimbleUtils.Conf.HTTP_KEEPALIVE_KEY, NimbleUtils.Conf.HTTP_KEEPALIVE_DEFAULT),
+                TimeUnit.MILLISECONDS);
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        connectionManager.setValidateAfterInactivity(1000);
+        connectionManager.setDefaultSocketConfig(SocketConfig.custom()
+                .setTcpNoDelay(true)
+                .setSoKeepAlive(true)
+                .setSoTimeout(timeout)
+                .build());
+
         this.httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(timeout)
+                        .setConnectionRequestTimeout(timeout)
+                        .setSocketTimeout(timeout)
+                        .build())
                 .disableRedirectHandling()
+                .disableCookieManagement()
+                .disableAuthCaching()
                 .build();
     }
 
     public synchronized void close() throws IOException {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
         try {
             httpClient.close();
         } catch (IOException e) {
@@ -52,17 +102,47 @@ private URI getCounterURI(String handle) {
                 .build();
     }
 
-    private Map<?,?> parseJSON(HttpEntity entity) throws IOException {
+    private NimbleResponse parseJSON(HttpEntity entity) throws IOException {
         // Ensure JSON content
-        String contentType = entity.getContentType().getValue();
-        if (!contentType.equalsIgnoreCase("application/json")) {
+        ContentType contentType = ContentType.get(entity);
+        if (contentType == null || !contentType.getMimeType().equalsIgnoreCase("application/json")) {
+            EntityUtils.consume(entity);
             throw new NimbleError("expected JSON Content-Type");
         }
 
-        // Parse JSON
-        String responseBody = EntityUtils.toString(entity, StandardCharsets.UTF_8);
-        Map<?, ?> json = JsonSerialization.mapReader().readValue(responseBody);
-        return json;
+        // Parse JSON from the stream; closing it releases the connection back to the pool
+        try (InputStream in = entity.getContent()) {
+            return NimbleResponse.parse(in);
+        }
+    }
+
+    private URI getBatchURI(String handle) {
+        return UriBuilder
+                .fromUri(nimble_rest_uri)
+                .path("/counters/" + handle + "/batch")
+                .build();
+    }
+
+    /**
+     * Build a JSON request body: { "Tag": "[tag]" [, "ExpectedCounter": [expected]] }
+     */
+    private static ByteArrayEntity jsonBody(byte[] tag, int expected) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(128);
+        try (JsonGenerator g = NimbleResponse.JSON.createGenerator(body)) {
+            g.writeStartObject();
+            g.writeStringField("Tag", NimbleUtils.URLEncode(tag));
+            if (expected >= 0)
+                g.writeNumberField("ExpectedCounter", expected);
+            g.writeEndObject();
+        }
+        return new ByteArrayEntity(body.toByteArray(), ContentType.APPLICATION_JSON);
+    }
+
+    private void checkStatus(CloseableHttpResponse response, String what) throws IOException {
+        if (response.getStatusLine().getStatusCode() != 200) {
+            EntityUtils.consume(response.getEntity());
+            throw new NimbleError("Failed " + what + ": " + response.getStatusLine());
+        }
     }
 
     public boolean verifyServiceID(NimbleServiceID with) {
@@ -92,8 +172,8 @@ public NimbleServiceID getServiceID() throws IOException, NoSuchAlgorithmExcepti
 
         // Execute HTTP request
         try (CloseableHttpResponse response = httpClient.execute(request)) {
-            Map<?, ?> json = parseJSON(response.getEntity());
-            return new NimbleServiceID((String) json.get("Identity"), (String) json.get("PublicKey"), null);
+            NimbleResponse json = parseJSON(response.getEntity());
+            return new NimbleServiceID(json.identity, json.publicKey, null, null, null);
         }
     }
 
@@ -103,28 +183,24 @@ public NimbleServiceID getServiceID() throws IOException, NoSuchAlgorithmExcepti
      * Response Body: { "Signature": "..." }
      */
     public NimbleOpNewCounter newCounter(NimbleServiceID id, byte[] tag) throws IOException {
-        String handle_str = NimbleUtils.URLEncode(id.handle),
-                tag_str    = NimbleUtils.URLEncode(tag);
+        String handle_str = NimbleUtils.URLEncode(id.handle);
         URI uri = getCounterURI(handle_str);
 
         // Build HTTP request
         HttpPut request = new HttpPut(uri);
-        byte[] body = String
-                .format("{\"Tag\": \"%s\"}", tag_str)
-                .getBytes();
-        request.setEntity(new ByteArrayEntity(body));
-        request.setHeader("Content-type", "application/json");
+        request.setEntity(jsonBody(tag, -1));
 
         // Execute HTTP request
         try (CloseableHttpResponse response = httpClient.execute(request)) {
-            switch (response.getStatusLine().getStatusCode()) {
-                case 200: break;
-                case 409: throw new NimbleError("Conflict Handle=" + handle_str);
-                default: throw new NimbleError("Failed newCounter: " + response.getStatusLine());
+            if (response.getStatusLine().getStatusCode() == 409) {
+                EntityUtils.consume(response.getEntity());
+                throw new NimbleError("Conflict Handle=" + handle_str);
             }
+            checkStatus(response, "newCounter");
 
-            Map<?, ?> json = parseJSON(response.getEntity());
-            logger.debug(String.format("NewCounter response: %s", json.toString()));
+            NimbleResponse json = parseJSON(response.getEntity());
+            if (logger.isDebugEnabled())
+                logger.debug(String.format("NewCounter response: %s", json));
             return new NimbleOpNewCounter(id, id.handle, tag, json);
         }
     }
@@ -148,13 +224,11 @@ public NimbleOpReadLatest readLatest(NimbleServiceID id) throws IOException {
 
         // Execute HTTP request
         try (CloseableHttpResponse response = httpClient.execute(request)) {
-            switch (response.getStatusLine().getStatusCode()) {
-                case 200: break;
-                default: throw new NimbleError("Failed readLatest: " + response.getStatusLine());
-            }
+            checkStatus(response, "readLatest");
 
-            Map<?, ?> json = parseJSON(response.getEntity());
-            logger.debug(String.format("ReadLatest response: %s", json.toString()));
+            NimbleResponse json = parseJSON(response.getEntity());
+            if (logger.isDebugEnabled())
+                logger.debug(String.format("ReadLatest response: %s", json));
             return new NimbleOpReadLatest(id, id.handle, nonce, json);
         }
     }
@@ -165,28 +239,117 @@ public NimbleOpReadLatest readLatest(NimbleServiceID id) throws IOException {
      * Response Body: { "Signature": "..." }
      */
     public NimbleOpIncrementCounter incrementCounter(NimbleServiceID id, byte[] tag, int expected) throws IOException {
-        String handle_str = NimbleUtils.URLEncode(id.handle),
-                tag_str   = NimbleUtils.URLEncode(tag);
+        String handle_str = NimbleUtils.URLEncode(id.handle);
         URI uri = getCounterURI(handle_str);
 
         // Build HTTP request
         HttpPost request = new HttpPost(uri);
-        byte[] body = String
-                .format("{\"Tag\": \"%s\", \"ExpectedCounter\": %d}", tag_str, expected)
-                .getBytes();
-        request.setEntity(new ByteArrayEntity(body));
-        request.setHeader("Content-type", "application/json");
+        request.setEntity(jsonBody(tag, expected));
 
         // Execute HTTP request
         try (CloseableHttpResponse response = httpClient.execute(request)) {
-            switch (response.getStatusLine().getStatusCode()) {
-                case 200: break;
-                default: throw new NimbleError("Failed readLatest: " + response.getStatusLine());
-            }
+            checkStatus(response, "incrementCounter");
 
-            Map<?, ?> json = parseJSON(response.getEntity());
-            logger.debug(String.format("IncrementCounter response: %s", json.toString()));
+            NimbleResponse json = parseJSON(response.getEntity());
+            if (logger.isDebugEnabled())
+                logger.debug(String.format("IncrementCounter response: %s", json));
             return new NimbleOpIncrementCounter(id, id.handle, tag, expected, json);
         }
     }
+
+    /**
+     * True unless the ledger has answered a batch request with 404/405.
+     */
+    public boolean supportsBatch() {
+        return batchSupported;
+    }
+
+    /**
+     * POST: /counters/[handle]/batch
+     * Request Body: { "Increments": [ { "Tag": "[tag]", "ExpectedCounter": [expected] }, ... ] }
+     * Response Body: { "Signatures": [ "...", ... ] }
+     *
+     * The ledger applies the increments in order, the i-th one expecting firstExpected+i.
+     * The returned ops carry one signature each and still have to be verified.
+     */
+    public List<NimbleOpIncrementCounter> incrementCounterBatch(NimbleServiceID id, List<byte[]> tags, int firstExpected) throws IOException {
+        String handle_str = NimbleUtils.URLEncode(id.handle);
+        URI uri = getBatchURI(handle_str);
+
+        // Build HTTP request
+        ByteArrayOutputStream body = new ByteArrayOutputStream(64 + 128 * tags.size());
+        try (JsonGenerator g = NimbleResponse.JSON.createGenerator(body)) {
+            g.writeStartObject();
+            g.writeArrayFieldStart("Increments");
+            for (int i = 0; i < tags.size(); i++) {
+                g.writeStartObject();
+                g.writeStringField("Tag", NimbleUtils.URLEncode(tags.get(i)));
+                g.writeNumberField("ExpectedCounter", firstExpected + i);
+                g.writeEndObject();
+            }
+            g.writeEndArray();
+            g.writeEndObject();
+        }
+        HttpPost request = new HttpPost(uri);
+        request.setEntity(new ByteArrayEntity(body.toByteArray(), ContentType.APPLICATION_JSON));
+
+        // Execute HTTP request
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            int status = response.getStatusLine().getStatusCode();
+            if (status == 404 || status == 405) {
+                batchSupported = false;
+                logger.warn("NimbleLedger has no batch endpoint, falling back to single increments");
+            }
+            checkStatus(response, "incrementCounterBatch");
+
+            NimbleResponse json = parseJSON(response.getEntity());
+            if (json.signatures == null || json.signatures.size() != tags.size())
+                throw new NimbleError(String.format("Expected %d signatures in batch response: %s", tags.size(), json));
+
+            List<NimbleOpIncrementCounter> ops = new ArrayList<>(tags.size());
+            NimbleResponse single = new NimbleResponse();
+            for (int i = 0; i < tags.size(); i++) {
+                single.signature = json.signatures.get(i);
+                ops.add(new NimbleOpIncrementCounter(id, id.handle, tags.get(i), firstExpected + i, single));
+            }
+            return ops;
+        }
+    }
+
+    /**
+     * Issue readLatest() on a pooled connection without blocking the caller.
+     */
+    public CompletableFuture<NimbleOpReadLatest> readLatestAsync(NimbleServiceID id) {
+        return submit(() -> readLatest(id));
+    }
+
+    /**
+     * Issue incrementCounter() on a pooled connection without blocking the caller.
+     * Increments for the same handle must still reach the ledger in counter order.
+     */
+    public CompletableFuture<NimbleOpIncrementCounter> incrementCounterAsync(NimbleServiceID id, byte[] tag, int expected) {
+        return submit(() -> incrementCounter(id, tag, expected));
+    }
+
+    private <T> CompletableFuture<T> submit(Callable<T> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        getExecutor().execute(() -> {
+            try {
+                result.complete(call.call());
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+        return result;
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(maxConnections, new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("NimbleAPI-%d")
+                    .build());
+        }
+        return executor;
+    }
 }
@@ -0,0 +1,134 @@
+package org.apache.hadoop.hdfs.server.nimble;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.metrics2.MetricsCollector;
+import org.apache.hadoop.metrics2.MetricsSource;
+import org.apache.hadoop.metrics2.MetricsSystem;
+import org.apache.hadoop.metrics2.lib.DefaultMetricsSystem;
+import org.apache.hadoop.metrics2.lib.MetricsRegistry;
+import org.apache.hadoop.metrics2.lib.MutableCounterLong;
+import org.apache.hadoop.metrics2.lib.MutableQuantiles;
+import org.apache.hadoop.metrics2.lib.MutableRate;
+import org.apache.hadoop.metrics2.lib.MutableStat;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metrics of the NameNode's use of NimbleLedger: ledger round trips, TMCS batches,
+ * time the edit log spends on TMCS, and verification of replayed edits.
+ *
+ * The source is registered as "Nimble" by NameNode#initMetrics, with quantiles for the
+ * intervals in "dfs.metrics.percentiles.intervals". Before that, and in processes that
+ * do not register it, updates go to an unregistered instance. Metrics are therefore
+ * created in the registry directly rather than through annotations.
+ */
+public class NimbleMetrics implements MetricsSource {
+    private static volatile NimbleMetrics instance = new NimbleMetrics(new int[0]);
+
+    final MetricsRegistry registry = new MetricsRegistry("Nimble").setContext("dfs");
+
+    final MutableRate ledgerNewCounter = registry.newRate("LedgerNewCounter",
+            "NewCounter round trips to the ledger, in ms", false);
+    final MutableRate ledgerIncrement = registry.newRate("LedgerIncrement",
+            "IncrementCounter round trips to the ledger, single or batched, in ms", false);
+    final MutableRate ledgerReadLatest = registry.newRate("LedgerReadLatest",
+            "ReadLatest round trips to the ledger, in ms", false);
+    final MutableStat batchOps = registry.newStat("BatchOps",
+            "Ops per sealed TMCS batch", "Batches", "Ops");
+    final MutableRate editLogTmcsAddNanos = registry.newRate("EditLogTmcsAddNanos",
+            "Time FSEditLog spends adding an op to the open TMCS batch, in ns", false);
+    final MutableRate editLogCommitWait = registry.newRate("EditLogCommitWait",
+            "Time logSync waits for sealed TMCS batches to reach the ledger, in ms", false);
+    final MutableCounterLong editLogTmcsBlockedNanos = registry.newCounter("EditLogTmcsBlockedNanos",
+            "Total time edit log transactions spent on TMCS, adding ops or waiting for the ledger, in ns", 0L);
+    final MutableCounterLong verificationFailures = registry.newCounter("VerificationFailures",
+            "Ledger receipts and TMCS tags that failed verification", 0L);
+
+    final MutableQuantiles[] ledgerIncrementQuantiles;
+    final MutableQuantiles[] ledgerReadLatestQuantiles;
+    final MutableQuantiles[] editLogCommitWaitQuantiles;
+
+    NimbleMetrics(int[] intervals) {
+        final int len = intervals.length;
+        ledgerIncrementQuantiles = new MutableQuantiles[len];
+        ledgerReadLatestQuantiles = new MutableQuantiles[len];
+        editLogCommitWaitQuantiles = new MutableQuantiles[len];
+        for (int i = 0; i < len; i++) {
+            int interval = intervals[i];
+            ledgerIncrementQuantiles[i] = registry.newQuantiles(
+                    "ledgerIncrement" + interval + "s",
+                    "IncrementCounter round trip in ms", "ops", "latency", interval);
+            ledgerReadLatestQuantiles[i] = registry.newQuantiles(
+                    "ledgerReadLatest" + interval + "s",
+                    "ReadLatest round trip in ms", "ops", "latency", interval);
+            editLogCommitWaitQuantiles[i] = registry.newQuantiles(
+                    "editLogCommitWait" + interval + "s",
+                    "logSync wait for the ledger in ms", "ops", "latency", interval);
+        }
+    }
+
+    /**
+     * Register the metrics source of this process. Later updates go to the new source.
+     */
+    public static synchronized NimbleMetrics create(Configuration conf) {
+        MetricsSystem ms = DefaultMetricsSystem.instance();
+        // Percentile measurement is off by default, by watching no intervals
+        int[] intervals = conf.getInts(DFSConfigKeys.DFS_METRICS_PERCENTILES_INTERVALS_KEY);
+        instance = ms.register("Nimble", "Nimble ledger metrics", new NimbleMetrics(intervals));
+        return instance;
+    }
+
+    @Override
+    public void getMetrics(MetricsCollector collector, boolean all) {
+        registry.snapshot(collector.addRecord(registry.info()), all);
+    }
+
+    public static NimbleMetrics get() {
+        return instance;
+    }
+
+    public void addLedgerNewCounter(long latency) {
+        ledgerNewCounter.add(latency);
+    }
+
+    public void addLedgerIncrement(long latency) {
+        ledgerIncrement.add(latency);
+        for (MutableQuantiles q : ledgerIncrementQuantiles) {
+            q.add(latency);
+        }
+    }
+
+    public void addLedgerReadLatest(long latency) {
+        ledgerReadLatest.add(latency);
+        for (MutableQuantiles q : ledgerReadLatestQuantiles) {
+            q.add(latency);
+        }
+    }
+
+    public void addBatch(int ops) {
+        batchOps.add(ops);
+    }
+
+    public void addEditLogTmcsAdd(long nanos) {
+        editLogTmcsAddNanos.add(nanos);
+        editLogTmcsBlockedNanos.incr(nanos);
+    }
+
+    public void addEditLogCommitWait(long nanos) {
+        long latency = TimeUnit.NANOSECONDS.toMillis(nanos);
+        editLogCommitWait.add(latency);
+        for (MutableQuantiles q : editLogCommitWaitQuantiles) {
+            q.add(latency);
+        }
+        editLogTmcsBlockedNanos.incr(nanos);
+    }
+
+    public long getEditLogTmcsBlockedNanos() {
+        return editLogTmcsBlockedNanos.value();
+    }
+
+    public void incrVerificationFailures() {
+        verificationFailures.incr();
+    }
+}
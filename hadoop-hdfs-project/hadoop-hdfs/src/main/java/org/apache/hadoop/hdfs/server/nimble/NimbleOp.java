@@ -2,9 +2,11 @@
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /* Captures responses */
 abstract class NimbleOp {
@@ -22,11 +24,21 @@ abstract class NimbleOp {
     public static final long TYPE_INCREMENT_COUNTER = 3;
     public static final long TYPE_READ_COUNTER = 5;
 
+    // Receipt messages are built in a buffer of the calling thread
+    private static final ThreadLocal<Message> MESSAGE = ThreadLocal.withInitial(Message::new);
+
+    /**
+     * Append the fields of the message signed by the ledger, see toString().
+     */
+    abstract void writeMessage(Message m);
+
     // Verify signature
     public boolean verify() throws NimbleError {
-        String msg = this.toString();
+        Message m = MESSAGE.get();
+        m.reset();
+        writeMessage(m);
         try {
-            return id.verifySignature(signature, msg.getBytes());
+            return id.verifySignature(signature, m.buf, 0, m.len);
         } catch (InvalidKeyException e) {
             e.printStackTrace();
         } catch (SignatureException e) {
@@ -41,6 +53,87 @@ public boolean verify() throws NimbleError {
         return false;
     }
 
+    /**
+     * Message signed by the ledger: its fields, base64url encoded and separated by dots.
+     */
+    @Override
+    public String toString() {
+        Message m = new Message();
+        writeMessage(m);
+        return m.toString();
+    }
+
+    /**
+     * Builds a receipt message as bytes, in the same encoding as NimbleUtils.URLEncode.
+     */
+    static final class Message {
+        private static final byte[] ALPHABET =
+                "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+
+        private byte[] buf = new byte[256];
+        private int len;
+        private final byte[] scratch = new byte[Long.BYTES];
+
+        void reset() {
+            len = 0;
+        }
+
+        Message field(long v) {
+            for (int i = 0; i < Long.BYTES; i++) // little endian, as longToBytes()
+                scratch[i] = (byte) (v >>> (8 * i));
+            return field(scratch);
+        }
+
+        Message field(byte[] b) {
+            if (len > 0)
+                put('.');
+            if (b == null) {
+                ensure(NULL.length);
+                System.arraycopy(NULL, 0, buf, len, NULL.length);
+                len += NULL.length;
+                return this;
+            }
+
+            ensure((b.length * 4 + 2) / 3);
+            int i = 0;
+            for (; i + 3 <= b.length; i += 3) {
+                int v = (b[i] & 0xff) << 16 | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff);
+                buf[len++] = ALPHABET[v >>> 18];
+                buf[len++] = ALPHABET[(v >>> 12) & 0x3f];
+                buf[len++] = ALPHABET[(v >>> 6) & 0x3f];
+                buf[len++] = ALPHABET[v & 0x3f];
+            }
+            // No padding
+            if (b.length - i == 1) {
+                int v = (b[i] & 0xff) << 16;
+                buf[len++] = ALPHABET[v >>> 18];
+                buf[len++] = ALPHABET[(v >>> 12) & 0x3f];
+            } else if (b.length - i == 2) {
+                int v = (b[i] & 0xff) << 16 | (b[i + 1] & 0xff) << 8;
+                buf[len++] = ALPHABET[v >>> 18];
+                buf[len++] = ALPHABET[(v >>> 12) & 0x3f];
+                buf[len++] = ALPHABET[(v >>> 6) & 0x3f];
+            }
+            return this;
+        }
+
+        private void put(char c) {
+            ensure(1);
+            buf[len++] = (byte) c;
+        }
+
+        private void ensure(int n) {
+            if (len + n > buf.length)
+                buf = Arrays.copyOf(buf, Math.max(len + n, 2 * buf.length));
+        }
+
+        @Override
+        public String toString() {
+            return new String(buf, 0, len, StandardCharsets.US_ASCII);
+        }
+    }
+
     /**
      * Converts byte[]{10, 23, ...} to String("[10, 23, ...]")
      *
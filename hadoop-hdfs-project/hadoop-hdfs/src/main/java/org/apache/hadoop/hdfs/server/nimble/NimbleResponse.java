@@ -0,0 +1,77 @@
+package org.apache.hadoop.hdfs.server.nimble;
+
+import com.fasterxml.jackson.core.Base64Variants;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Typed body of a NimbleLedger REST response.
+ *
+ * Parsed with the Jackson streaming API straight from the response stream,
+ * so no intermediate String or Map is built per request. Fields that are
+ * absent from the response stay null (or -1 for the counter).
+ */
+class NimbleResponse {
+    static final JsonFactory JSON = new JsonFactory();
+
+    public byte[] identity;
+    public byte[] publicKey;
+    public byte[] tag;
+    public int counter = -1;
+    public byte[] signature;
+    public List<byte[]> signatures; // batch responses, one per op
+
+    static NimbleResponse parse(InputStream in) throws IOException {
+        NimbleResponse r = new NimbleResponse();
+        try (JsonParser p = JSON.createParser(in)) {
+            if (p.nextToken() != JsonToken.START_OBJECT)
+                throw new NimbleError("expected JSON object");
+
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String field = p.getCurrentName();
+                JsonToken value = p.nextToken();
+                switch (field) {
+                    case "Identity":  r.identity = decode(p, value); break;
+                    case "PublicKey": r.publicKey = decode(p, value); break;
+                    case "Tag":       r.tag = decode(p, value); break;
+                    case "Signature": r.signature = decode(p, value); break;
+                    case "Counter":   r.counter = p.getIntValue(); break;
+                    case "Signatures":
+                        if (value != JsonToken.START_ARRAY)
+                            throw new NimbleError("expected JSON array for Signatures");
+                        r.signatures = new ArrayList<>();
+                        while ((value = p.nextToken()) != JsonToken.END_ARRAY)
+                            r.signatures.add(decode(p, value));
+                        break;
+                    default:          p.skipChildren(); break;
+                }
+            }
+        }
+        return r;
+    }
+
+    private static byte[] decode(JsonParser p, JsonToken value) throws IOException {
+        if (value == JsonToken.VALUE_NULL || p.getTextLength() == 0)
+            return null;
+        // base64url without padding, decoded from the parser's buffer
+        return p.getBinaryValue(Base64Variants.MODIFIED_FOR_URL);
+    }
+
+    @Override
+    public String toString() {
+        return "NimbleResponse{" +
+                "identity=" + NimbleUtils.URLEncode(identity) +
+                ", publicKey=" + NimbleUtils.URLEncode(publicKey) +
+                ", tag=" + NimbleUtils.URLEncode(tag) +
+                ", counter=" + counter +
+                ", signature=" + NimbleUtils.URLEncode(signature) +
+                ", signatures=" + (signatures == null ? "null" : signatures.size()) +
+                '}';
+    }
+}
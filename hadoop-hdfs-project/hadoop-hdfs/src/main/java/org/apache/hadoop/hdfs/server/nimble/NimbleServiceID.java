@@ -11,15 +11,26 @@
 import java.security.interfaces.ECPublicKey;
 import java.security.spec.*;
 import java.util.Arrays;
-
-/* NimbleServiceID */
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * NimbleServiceID
+ *
+ * Signature engines are expensive to look up and initialize, so each thread keeps its
+ * own engines for signing tags, verifying tags and verifying ledger receipts. The keys
+ * are parsed once, when the identity is created.
+ */
 public final class NimbleServiceID {
     final String SIGN_SPEC = "secp256k1";
     final String SIGN_ALGO = "SHA256withECDSA";
+    private static final Provider BC = new BouncyCastleProvider();
+    private static volatile Provider signProvider; // provider of SIGN_ALGO, looked up once
 
     public byte[] identity;
     public byte[] publicKey;
     public byte[] handle;
+    public final Map<String, byte[]> shards = new TreeMap<>(); // handles of named ledger shards
 
     // Signing keys
     private PublicKey signPublicKey;
@@ -27,6 +38,11 @@ public final class NimbleServiceID {
 
     private PublicKey pk;
 
+    // Engines of the calling thread, created on first use
+    private final ThreadLocal<Signature> signer = new ThreadLocal<>();
+    private final ThreadLocal<Signature> tagVerifier = new ThreadLocal<>();
+    private final ThreadLocal<Signature> receiptVerifier = new ThreadLocal<>();
+
     public NimbleServiceID(byte[] identity, byte[] publicKey, byte[] handle, byte[] signPublicKey, byte[] signPrivateKey) throws NoSuchAlgorithmException, InvalidParameterSpecException, InvalidKeySpecException {
         this.identity = identity;
         this.publicKey = publicKey;
@@ -59,6 +75,26 @@ public NimbleServiceID(String identity, String publicKey, String handle, String
         }
     }
 
+    /**
+     * Identity to use for the counter of a named shard: same service and signing keys,
+     * but the shard's handle.
+     *
+     * @return the identity, or null if the shard has no handle yet
+     */
+    public NimbleServiceID forShard(String shard) {
+        byte[] h = shards.get(shard);
+        if (h == null)
+            return null;
+        try {
+            NimbleServiceID sid = new NimbleServiceID(identity, publicKey, h, null, null);
+            sid.signPublicKey = signPublicKey;
+            sid.signPrivateKey = signPrivateKey;
+            return sid;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("cannot copy Nimble identity", e);
+        }
+    }
+
     @Override
     public String toString() {
         String pub = (this.signPublicKey != null) ? NimbleUtils.URLEncode(signPublicKey.getEncoded()) : "null";
@@ -68,6 +104,7 @@ public String toString() {
                 "identity=" + NimbleUtils.URLEncode(identity) +
                 ", publicKey=" + NimbleUtils.URLEncode(publicKey) +
                 ", handle=" + NimbleUtils.URLEncode(handle) +
+                ", shards=" + shards.keySet() +
                 ", signPublicKey=" + pub +
                 ", signPrivateKey=" + priv +
                 '}';
@@ -84,12 +121,30 @@ public void generateSigningKeys() throws NoSuchAlgorithmException, InvalidAlgori
         this.signPrivateKey = pair.getPrivate();
     }
 
+    private Signature newTagEngine() throws NoSuchAlgorithmException {
+        Provider p = signProvider;
+        if (p == null) {
+            Signature sg = Signature.getInstance(SIGN_ALGO);
+            signProvider = sg.getProvider();
+            return sg;
+        }
+        return Signature.getInstance(SIGN_ALGO, p);
+    }
+
+    /**
+     * Engine of the calling thread to sign a tag with. It is reset by the next
+     * call on this thread, so sign right away and do not keep it.
+     */
     public Signature getSignature() throws NimbleError {
         if (this.signPrivateKey == null)
             throw new NimbleError("Private key for signing is not set");
 
         try {
-            Signature ecdsa = Signature.getInstance(SIGN_ALGO);
+            Signature ecdsa = signer.get();
+            if (ecdsa == null) {
+                ecdsa = newTagEngine();
+                signer.set(ecdsa);
+            }
             ecdsa.initSign(this.signPrivateKey);
             return ecdsa;
         } catch (Exception e) {
@@ -97,12 +152,36 @@ public Signature getSignature() throws NimbleError {
         }
     }
 
+    /**
+     * Engine of the calling thread to verify a tag with. It is reset by the next
+     * call on this thread; use newVerifySignature() to keep one.
+     */
     public Signature verifySignature() throws NimbleError {
         if (this.signPublicKey == null)
             throw new NimbleError("Public key for signing is not set");
 
         try {
-            Signature sg = Signature.getInstance(SIGN_ALGO);
+            Signature sg = tagVerifier.get();
+            if (sg == null) {
+                sg = newTagEngine();
+                tagVerifier.set(sg);
+            }
+            sg.initVerify(signPublicKey);
+            return sg;
+        } catch (Exception e) {
+            throw new NimbleError("Cannot verify signature on tag: " + e);
+        }
+    }
+
+    /**
+     * Engine to verify a tag with, owned by the caller.
+     */
+    public Signature newVerifySignature() throws NimbleError {
+        if (this.signPublicKey == null)
+            throw new NimbleError("Public key for signing is not set");
+
+        try {
+            Signature sg = newTagEngine();
             sg.initVerify(signPublicKey);
             return sg;
         } catch (Exception e) {
@@ -141,10 +220,15 @@ else if (this.signPrivateKey == other.signPrivateKey)  // both are null, or same
         else
             signPrivate = false;
 
+        // Compare shard handles
+        boolean sameShards = this.shards.keySet().equals(other.shards.keySet());
+        for (Map.Entry<String, byte[]> e : this.shards.entrySet())
+            sameShards &= Arrays.equals(e.getValue(), other.shards.get(e.getKey()));
+
         return Arrays.equals(this.identity, other.identity) &&
                 Arrays.equals(this.publicKey, other.publicKey) &&
                 Arrays.equals(this.handle, other.handle) &&
-                signPublic && signPrivate;
+                sameShards && signPublic && signPrivate;
     }
 
     public boolean valid() {
@@ -161,7 +245,7 @@ public static PublicKey parsePublicKey(byte[] pubKey) throws InvalidKeySpecExcep
 
         ECPoint point = ECPointUtil.decodePoint(params.getCurve(), pubKey);
         ECPublicKeySpec pubKeySpec = new ECPublicKeySpec(point, params);
-        KeyFactory kf = KeyFactory.getInstance("ECDSA", new BouncyCastleProvider());
+        KeyFactory kf = KeyFactory.getInstance("ECDSA", BC);
         ECPublicKey pk = (ECPublicKey) kf.generatePublic(pubKeySpec);
         return pk;
     }
@@ -180,20 +264,37 @@ public static PublicKey parsePublicKey(byte[] pubKey) throws InvalidKeySpecExcep
      * @throws NoSuchProviderException
      */
     public boolean verifySignature(byte[] signature, byte[] msg) throws InvalidKeyException, SignatureException, NoSuchAlgorithmException, NoSuchProviderException, InvalidKeySpecException, NimbleError {
-        // Available algorithms:
-        // https://docs.oracle.com/javase/8/docs/technotes/guides/security/StandardNames.html#KeyFactory
-        Signature sg = Signature.getInstance("SHA256withECDSA", new BouncyCastleProvider());
+        return verifySignature(signature, msg, 0, msg.length);
+    }
 
+    /**
+     * Same as above, for msg[off, off+len).
+     */
+    public boolean verifySignature(byte[] signature, byte[] msg, int off, int len) throws InvalidKeyException, SignatureException, NoSuchAlgorithmException, NoSuchProviderException, InvalidKeySpecException, NimbleError {
         if (pk == null)
             if (publicKey != null)
                 pk = parsePublicKey(publicKey);
             else
                 throw new NimbleError("No public key is set");
 
+        // Available algorithms:
+        // https://docs.oracle.com/javase/8/docs/technotes/guides/security/StandardNames.html#KeyFactory
+        // A verifier is back to its initial state after verify(), so it is initialized only once.
+        Signature sg = receiptVerifier.get();
+        if (sg == null) {
+            sg = Signature.getInstance("SHA256withECDSA", BC);
+            sg.initVerify(pk);
+            receiptVerifier.set(sg);
+        }
+
         // Verification
-        sg.initVerify(pk);
-        sg.update(msg);
-        return sg.verify(NimbleServiceID.toANS1Signature(signature));
+        try {
+            sg.update(msg, off, len);
+            return sg.verify(NimbleServiceID.toANS1Signature(signature));
+        } catch (SignatureException | RuntimeException e) {
+            receiptVerifier.remove(); // its state is undefined after an exception
+            throw e;
+        }
     }
 
     /**
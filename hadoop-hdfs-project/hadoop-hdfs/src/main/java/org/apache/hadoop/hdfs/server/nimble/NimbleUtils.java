@@ -5,18 +5,23 @@
 import org.apache.hadoop.hdfs.server.common.Storage;
 import org.apache.hadoop.hdfs.server.namenode.FSImage;
 import org.apache.hadoop.hdfs.server.namenode.NNStorage;
+import org.apache.hadoop.io.nativeio.NativeIO;
 import org.apache.hadoop.thirdparty.com.google.common.io.BaseEncoding;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
 import java.io.*;
 import java.net.InetAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.InvalidParameterSpecException;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
 
 /* Store & load configuration */
@@ -29,16 +34,61 @@ public static class Conf {
         public static final String SERVICE_PUBLIC_KEY_DEFAULT= "";
         public static final String SERVICE_HANDLE_KEY        = "fs.nimble.service.handle";
         public static final String SERVICE_HANDLE_DEFAULT    = null;
+        public static final String SHARD_KEY                 = "fs.nimble.shard";
+        public static final String SHARD_DEFAULT             = "";
+        public static final String SHARDS_KEY                = "fs.nimble.shards";
         public static final String NIMBLE_LEDGER_URI_KEY     = "fs.nimbleURI";
         public static final String NIMBLE_LEDGER_URI_DEFAULT = "http://localhost:8082/";
+        public static final String HTTP_MAX_CONNECTIONS_KEY  = "fs.nimble.http.maxConnections";
+        public static final int HTTP_MAX_CONNECTIONS_DEFAULT = 16;
+        public static final String HTTP_TIMEOUT_KEY          = "fs.nimble.http.timeoutMs";
+        public static final int HTTP_TIMEOUT_DEFAULT         = 30000;
+        public static final String HTTP_KEEPALIVE_KEY        = "fs.nimble.http.keepAliveMs";
+        public static final long HTTP_KEEPALIVE_DEFAULT      = 60000;
+        public static final String VERIFY_WINDOW_KEY         = "fs.nimble.verify.windowBytes";
+        public static final int VERIFY_WINDOW_DEFAULT        = 4 * 1024 * 1024;
+        public static final String VERIFY_MAX_CONCURRENT_KEY = "fs.nimble.verify.maxConcurrent";
+        public static final int VERIFY_MAX_CONCURRENT_DEFAULT = 8;
+        public static final String VERIFY_CACHE_SIZE_KEY     = "fs.nimble.verify.cache.maxEntries";
+        public static final int VERIFY_CACHE_SIZE_DEFAULT    = 4096;
+        public static final String VERIFY_CACHE_TTL_KEY      = "fs.nimble.verify.cache.ttlMs";
+        public static final long VERIFY_CACHE_TTL_DEFAULT    = 5 * 60 * 1000;
+        public static final String SCAN_ENABLED_KEY          = "fs.nimble.scan.enabled";
+        public static final boolean SCAN_ENABLED_DEFAULT     = true;
+        public static final String SCAN_TRUST_KEY            = "fs.nimble.scan.trustMs";
+        public static final long SCAN_TRUST_DEFAULT          = 60 * 60 * 1000;
+        public static final String DIGEST_ALGORITHM_KEY      = "fs.nimble.digest.algorithm";
+        public static final String MERKLE_ENABLED_KEY        = "fs.nimble.merkle.enabled";
+        public static final boolean MERKLE_ENABLED_DEFAULT   = false;
+        public static final String MERKLE_CHUNK_SIZE_KEY     = "fs.nimble.merkle.chunkBytes";
+        public static final int MERKLE_CHUNK_SIZE_DEFAULT    = 64 * 1024;
+        public static final String HASH_THREADS_KEY          = "fs.nimble.hash.threadsPerVolume";
+        public static final int HASH_THREADS_DEFAULT         = 4;
         public static final String BATCH_SIZE_KEY            = "fs.nimble.batchSize";
         public static final long BATCH_SIZE__DEFAULT         = 2;
+        public static final String COMMIT_ASYNC_KEY          = "fs.nimble.commit.async";
+        public static final boolean COMMIT_ASYNC_DEFAULT     = true;
+        public static final String COMMIT_MAX_PENDING_KEY    = "fs.nimble.commit.maxPending";
+        public static final int COMMIT_MAX_PENDING_DEFAULT   = 64;
+        public static final String COMMIT_SEAL_ON_SYNC_KEY   = "fs.nimble.commit.sealOnSync";
+        public static final boolean COMMIT_SEAL_ON_SYNC_DEFAULT = false;
+        public static final String BATCH_ADAPTIVE_KEY        = "fs.nimble.batch.adaptive";
+        public static final boolean BATCH_ADAPTIVE_DEFAULT   = false;
+        public static final String BATCH_MIN_SIZE_KEY        = "fs.nimble.batch.minSize";
+        public static final int BATCH_MIN_SIZE_DEFAULT       = 2;
+        public static final String BATCH_MAX_SIZE_KEY        = "fs.nimble.batch.maxSize";
+        public static final int BATCH_MAX_SIZE_DEFAULT       = 1024;
+        public static final String BATCH_MAX_DELAY_KEY       = "fs.nimble.batch.maxDelayMs";
+        public static final long BATCH_MAX_DELAY_DEFAULT     = 10;
+        public static final String HASH_MAX_PENDING_KEY      = "fs.nimble.hash.maxPendingPackets";
+        public static final int HASH_MAX_PENDING_DEFAULT     = 16;
     }
 
     // URL of NimbleLedger's REST endpoint
     // Number of EditLog operations to batch
     public static final String NIMBLE_INFO              = "NIMBLE";
     public static final String NIMBLE_FSIMAGE_EXTENSION = ".nimble";
+    private static final String SHARD_HANDLE_PREFIX     = "handle.";
     public static final boolean READABLE_LOG_OPERATIONS = true;
 
     static {
@@ -47,12 +97,22 @@ public static class Conf {
             NimbleAPI.logger.setLevel(Level.DEBUG);
             TMCS.logger.setLevel(Level.DEBUG);
             TMCSEditLog.logger.setLevel(Level.DEBUG);
+            TMCSCommitter.logger.setLevel(Level.DEBUG);
+            TMCSBatchPolicy.logger.setLevel(Level.DEBUG);
         }
     }
     public static boolean debug() {
         return logger.isDebugEnabled();
     }
 
+    /**
+     * Ledger shard that the edit log and images of this namespace are counted in,
+     * or "" for the default handle.
+     */
+    public static String getShard(Configuration conf) {
+        return conf.getTrimmed(Conf.SHARD_KEY, Conf.SHARD_DEFAULT);
+    }
+
     public static File getNimbleInfo(Storage.StorageDirectory sd) {
         if (sd.getRoot() == null) {
             return null;
@@ -153,6 +213,10 @@ public static NimbleServiceID loadNimbleInfo(Configuration conf, Storage.Storage
                 props.getProperty("signPublicKey"),
                 props.getProperty("signPrivateKey")
         );
+        for (String key : props.stringPropertyNames()) {
+            if (key.startsWith(SHARD_HANDLE_PREFIX))
+                fsID.shards.put(key.substring(SHARD_HANDLE_PREFIX.length()), URLDecode(props.getProperty(key)));
+        }
 
         NimbleServiceID confID = new NimbleServiceID(
                 conf.get(Conf.SERVICE_IDENTITY_KEY, Conf.SERVICE_IDENTITY_DEFAULT),
@@ -163,6 +227,7 @@ public static NimbleServiceID loadNimbleInfo(Configuration conf, Storage.Storage
                 props.getProperty("signPrivateKey")
         );
 
+        confID.shards.putAll(fsID.shards); // not configurable
         if (!fsID.equals(confID))
             logger.warn("Embedded Nimble identity differs from configuration! Defaulting to embedded identity.");
         else
@@ -190,6 +255,8 @@ public static void saveNimbleInfo(Storage.StorageDirectory sd, NimbleServiceID i
         props.setProperty("identity", URLEncode(id.identity));
         props.setProperty("publicKey", URLEncode(id.publicKey));
         props.setProperty("handle", URLEncode(id.handle));
+        for (Map.Entry<String, byte[]> shard : id.shards.entrySet())
+            props.setProperty(SHARD_HANDLE_PREFIX + shard.getKey(), URLEncode(shard.getValue()));
         // TODO: Store in Azure Key Vault
         props.setProperty("signPublicKey", URLEncode(id.getSignPublicKey()));
         props.setProperty("signPrivateKey", URLEncode(id.getSignPrivateKey()));
@@ -197,13 +264,69 @@ public static void saveNimbleInfo(Storage.StorageDirectory sd, NimbleServiceID i
     }
 
     /**
-     * Called from FSImageSaver to save "fsimage_###.nimble"
+     * SHA-256 of FSImages this process wrote or read in full, so that their
+     * ".nimble" files are checked without reading the image once more.
+     * An entry only holds while the image keeps the same length and
+     * modification time.
      */
-    public static void saveFSImageInfo(File fsimage) throws IOException, NoSuchAlgorithmException {
+    private static final Map<String, ImageDigest> imageDigests = new LinkedHashMap<String, ImageDigest>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ImageDigest> eldest) {
+            return size() > 16;
+        }
+    };
+
+    private static class ImageDigest {
+        final long length;
+        final long mtime;
+        final byte[] digest;
+
+        ImageDigest(File fsimage, byte[] digest) {
+            this.length = fsimage.length();
+            this.mtime = fsimage.lastModified();
+            this.digest = digest;
+        }
+
+        boolean matches(File fsimage) {
+            return length == fsimage.length() && mtime == fsimage.lastModified();
+        }
+    }
+
+    /**
+     * Remember the SHA-256 of an FSImage, computed while it was written or loaded.
+     */
+    public static void recordFSImageDigest(File fsimage, byte[] digest) {
+        synchronized (imageDigests) {
+            imageDigests.put(fsimage.getAbsolutePath(), new ImageDigest(fsimage, digest));
+        }
+    }
+
+    /**
+     * SHA-256 of an FSImage, reusing the digest of the pass that wrote or
+     * loaded it when the image has not changed since.
+     */
+    public static byte[] fsImageDigest(File fsimage) throws IOException {
+        ImageDigest cached;
+        synchronized (imageDigests) {
+            cached = imageDigests.get(fsimage.getAbsolutePath());
+        }
+        if (cached != null && cached.matches(fsimage))
+            return cached.digest;
+        logger.info("Reading " + fsimage + " to compute its digest");
+        byte[] digest = NimbleUtils.checksum(fsimage);
+        recordFSImageDigest(fsimage, digest);
+        return digest;
+    }
+
+    /**
+     * Called from FSImageSaver to save "fsimage_###.nimble" for an image whose digest was
+     * computed while saving it, counted in the given ledger shard.
+     */
+    public static void saveFSImageInfo(File fsimage, byte[] digest, TMCS tmcs) throws IOException {
+        recordFSImageDigest(fsimage, digest);
+
         // Prepare data
         Properties props = new Properties();
-        TMCS tmcs = TMCS.getInstance();
-        byte[] digest = NimbleUtils.checksum(fsimage);
         byte[] tag = getTagForFSImage(digest, tmcs.expectedCounter());
         logger.info("Signed tag for FSImage: " + URLEncode(tag));
 
@@ -237,7 +360,7 @@ public static NimbleFSImageInfo getFSImageInfo(File fsimage) throws IOException
         logger.info("getFSImageInfo for: "+fsimage);
         File nimble_info = new File(fsimage.getParentFile(), fsimage.getName() + NIMBLE_FSIMAGE_EXTENSION);
         Properties props = Storage.readPropertiesFile(nimble_info);
-        byte[] digest_curr = NimbleUtils.checksum(fsimage);
+        byte[] digest_curr = fsImageDigest(fsimage);
 
         byte[] digest_saved = URLDecode(props.getProperty("sha256sum-fsimage", ""));
         int counter_saved = Integer.parseInt(props.getProperty("counter", "-2"));
@@ -265,6 +388,13 @@ public static void renameFSImageInfo(File from, File to) throws IOException {
             String m = "failed to rename file: " + fromNimble + " to " + toNimble;
             throw new NimbleError(m);
         }
+
+        // The image was renamed already; its digest still holds
+        synchronized (imageDigests) {
+            ImageDigest cached = imageDigests.remove(from.getAbsolutePath());
+            if (cached != null && cached.matches(to))
+                imageDigests.put(to.getAbsolutePath(), cached);
+        }
     }
 
     public static byte[] getTagForFSImage(byte[] digest, int counter) throws IOException {
@@ -316,6 +446,46 @@ public static byte[] checksum(byte[] value) throws NimbleError {
         return md.digest(value);
     }
 
+    /**
+     * SHA-256 over the first len bytes of a file channel.
+     *
+     * The file is mapped one window of windowSize bytes at a time, and each
+     * window is unmapped after hashing, so neither heap nor address space
+     * grows with the size of the file.
+     */
+    public static byte[] checksum(FileChannel ch, long len, int windowSize) throws IOException {
+        if (ch.size() < len)
+            throw new EOFException("File is shorter (" + ch.size() + ") than expected length " + len);
+
+        MessageDigest md = _checksum();
+        for (long pos = 0; pos < len; pos += windowSize) {
+            MappedByteBuffer window = ch.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(windowSize, len - pos));
+            try {
+                md.update(window);
+            } finally {
+                NativeIO.POSIX.munmap(window);
+            }
+        }
+        return md.digest();
+    }
+
+    /**
+     * SHA-256 over the first len bytes of a stream, read through a buffer of at most bufferSize bytes.
+     */
+    public static byte[] checksum(InputStream in, long len, int bufferSize) throws IOException {
+        MessageDigest md = _checksum();
+        byte[] buffer = new byte[(int) Math.max(1, Math.min(bufferSize, Math.min(len, 64 * 1024)))];
+        long remaining = len;
+        while (remaining > 0) {
+            int count = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (count < 0)
+                throw new EOFException("Stream ended " + remaining + " bytes before expected length " + len);
+            md.update(buffer, 0, count);
+            remaining -= count;
+        }
+        return md.digest();
+    }
+
     public static byte[] checksum(File file) throws IOException {
         MessageDigest       md  = _checksum();
         BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file));
@@ -2,6 +2,8 @@
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hdfs.server.common.Storage;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.util.Time;
 import org.apache.log4j.Logger;
 
 import java.io.Closeable;
@@ -9,13 +11,29 @@
 import java.net.InetAddress;
 import java.nio.charset.StandardCharsets;
 import java.security.Signature;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+/**
+ * Trusted monotonic counter of the namespace, kept in NimbleLedger.
+ *
+ * Besides the default handle, the NIMBLE storage info may hold handles of named
+ * shards ("fs.nimble.shards", created by format). Each shard is an independent
+ * counter with its own instance and lock, so that namespaces counting in
+ * different shards ("fs.nimble.shard") commit to the ledger concurrently.
+ * All shards share the service identity, signing keys and REST client of the
+ * default instance, and each one is read and verified when it is first loaded.
+ */
 public class TMCS implements Closeable {
     static Logger logger = Logger.getLogger(TMCS.class);
 
     private static TMCS instance;
+    private static final Map<String, TMCS> shards = new HashMap<>(); // guarded by TMCS.class
     private NimbleServiceID id;
     private NimbleAPI api;
+    private String shard = "";
     private int counter = -1;
 
     private void _TMCS() throws NimbleError {
@@ -30,8 +48,11 @@ private void _TMCS() throws NimbleError {
         }
 
         assert id.handle != null;
+        readCounter();
+    }
 
-        // try updating the counter (if exists)
+    // try updating the counter (if exists)
+    private void readCounter() {
         try {
             NimbleOpReadLatest op = this._latest();
             counter = op.counter;
@@ -44,6 +65,12 @@ private void _TMCS() throws NimbleError {
 
     private TMCS() { }
 
+    private TMCS(TMCS base, String shard, NimbleServiceID id) {
+        this.api = base.api;
+        this.shard = shard;
+        this.id = id;
+    }
+
     /**
      * Only to be used while formatting
      */
@@ -55,6 +82,8 @@ private TMCS(Configuration conf) {
 
     @Override
     public synchronized void close() throws IOException {
+        if (!shard.isEmpty())
+            return; // the REST client belongs to the default instance
         api.close();
         api = null; // fail just in case
     }
@@ -63,6 +92,8 @@ private static TMCS _getInstance() throws NimbleError {
         if (instance == null) {
             instance = new TMCS();
             instance._TMCS(); // default constructor
+            for (String name : instance.id.shards.keySet())
+                _getShard(name);
         }
         return instance;
     }
@@ -70,10 +101,46 @@ public synchronized static TMCS getInstance() throws NimbleError {
         return _getInstance();
     }
 
+    /**
+     * Counter of a named shard, or the default counter for "".
+     */
+    public synchronized static TMCS getInstance(String shard) throws NimbleError {
+        if (shard == null || shard.isEmpty())
+            return _getInstance();
+        TMCS base = _getInstance();
+        TMCS tmcs = shards.get(shard);
+        if (tmcs == null)
+            throw new NimbleError("Unknown Nimble shard \"" + shard + "\", expecting one of " + base.id.shards.keySet());
+        return tmcs;
+    }
+
+    private static TMCS _getShard(String name) throws NimbleError {
+        TMCS tmcs = shards.get(name);
+        if (tmcs == null) {
+            NimbleServiceID sid = instance.id.forShard(name);
+            if (sid == null)
+                throw new NimbleError("No handle for Nimble shard " + name);
+            tmcs = new TMCS(instance, name, sid);
+            tmcs.readCounter();
+            shards.put(name, tmcs);
+            logger.info("Loaded Nimble shard " + name + ": counter=" + tmcs.counter);
+        }
+        return tmcs;
+    }
+
+    public String getShard() {
+        return shard;
+    }
+
     /**
      * Refresh service identity and create new ledger handle.
      */
     public synchronized static void format(Configuration conf) throws IOException {
+        if (instance != null && instance.id == null) {
+            // An earlier format never reached its ledger; use the ledger configured now
+            IOUtils.closeStream(instance);
+            instance = null;
+        }
         if (instance == null) {
             instance = new TMCS(conf);
         }
@@ -83,7 +150,20 @@ public synchronized static void format(Configuration conf) throws IOException {
             instance.id.handle = NimbleUtils.getNonce();
             instance.id.generateSigningKeys();
             // newCounter whose tag=[hostname]. We don't sign it because it is not used.
-            instance._initialize(InetAddress.getLocalHost().getHostName().getBytes(StandardCharsets.UTF_8));
+            byte[] hostname = InetAddress.getLocalHost().getHostName().getBytes(StandardCharsets.UTF_8);
+            instance._initialize(hostname);
+
+            // Same for every shard, each with a handle of its own
+            instance.id.shards.clear();
+            shards.clear();
+            Collection<String> names = (conf != null ? conf : instance.api.conf)
+                    .getTrimmedStringCollection(NimbleUtils.Conf.SHARDS_KEY);
+            for (String name : names) {
+                instance.id.shards.put(name, NimbleUtils.getNonce());
+                TMCS tmcs = new TMCS(instance, name, instance.id.forShard(name));
+                tmcs._initialize(hostname);
+                shards.put(name, tmcs);
+            }
             logger.info("Formatted TMCS: " + instance.id);
         } catch (Exception e) {
             e.printStackTrace();
@@ -91,8 +171,14 @@ public synchronized static void format(Configuration conf) throws IOException {
         }
     }
 
-    public synchronized void save(Storage.StorageDirectory sd) throws IOException {
-        NimbleUtils.saveNimbleInfo(sd, id);
+    public void save(Storage.StorageDirectory sd) throws IOException {
+        if (!shard.isEmpty()) {
+            getInstance().save(sd); // the default identity holds every shard's handle
+            return;
+        }
+        synchronized (this) {
+            NimbleUtils.saveNimbleInfo(sd, id);
+        }
     }
 
     // "counter" may be -1 due to temporary connection failure.
@@ -109,11 +195,14 @@ public synchronized void reReadCounter() throws IOException {
     }
 
     public void _initialize(byte[] tag) throws IOException {
+        long start = Time.monotonicNow();
         NimbleOp op = api.newCounter(id, tag);
+        NimbleMetrics.get().addLedgerNewCounter(Time.monotonicNow() - start);
         counter = 0;
-        if (!op.verify())
+        if (!op.verify()) {
+            NimbleMetrics.get().incrVerificationFailures();
             throw new NimbleError("Verification failed for NewCounter");
-        else
+        } else
             logger.info("Verified NewCounter");
     }
 
@@ -129,27 +218,74 @@ public Signature verifySignature() throws NimbleError {
         return id.verifySignature();
     }
 
+    public Signature newVerifySignature() throws NimbleError {
+        return id.newVerifySignature();
+    }
+
     public synchronized void increment(byte[] tag) throws IOException {
         if (counter == -1)
             throw new NimbleError("not initialized");
 
         // TODO: Sign tag
+        long start = Time.monotonicNow();
         NimbleOp op = api.incrementCounter(id, tag, counter+1);
+        NimbleMetrics.get().addLedgerIncrement(Time.monotonicNow() - start);
         counter++;
-        if (!op.verify())
+        if (!op.verify()) {
+            NimbleMetrics.get().incrVerificationFailures();
             throw new NimbleError("Verification failed for IncrementCounter");
-        else
-            logger.info("Verified IncrementCounter");
-        logger.info(String.format("increment: newCounter=%d tag=%s",
-                counter, NimbleUtils.URLEncode(tag)));
+        }
+        if (logger.isDebugEnabled())
+            logger.debug(String.format("Verified IncrementCounter: newCounter=%d tag=%s",
+                    counter, NimbleUtils.URLEncode(tag)));
+    }
+
+    /**
+     * Increment the counter once per tag, in order, with as few ledger requests as possible.
+     * Each increment's receipt is verified individually.
+     */
+    public synchronized void increment(List<byte[]> tags) throws IOException {
+        if (counter == -1)
+            throw new NimbleError("not initialized");
+        if (tags.size() == 1 || !api.supportsBatch()) {
+            for (byte[] tag : tags)
+                increment(tag);
+            return;
+        }
+
+        List<NimbleOpIncrementCounter> ops;
+        try {
+            long start = Time.monotonicNow();
+            ops = api.incrementCounterBatch(id, tags, counter+1);
+            NimbleMetrics.get().addLedgerIncrement(Time.monotonicNow() - start);
+        } catch (NimbleError e) {
+            if (api.supportsBatch())
+                throw e;
+            // The ledger has no batch endpoint; nothing was applied
+            for (byte[] tag : tags)
+                increment(tag);
+            return;
+        }
+
+        for (NimbleOpIncrementCounter op : ops) {
+            counter++;
+            if (!op.verify()) {
+                NimbleMetrics.get().incrVerificationFailures();
+                throw new NimbleError("Verification failed for IncrementCounter at counter=" + op.counter);
+            }
+        }
+        logger.debug(String.format("increment: newCounter=%d batch=%d", counter, tags.size()));
     }
 
     private NimbleOpReadLatest _latest() throws IOException {
+        long start = Time.monotonicNow();
         NimbleOpReadLatest op = api.readLatest(id);
-        if (!op.verify())
+        NimbleMetrics.get().addLedgerReadLatest(Time.monotonicNow() - start);
+        if (!op.verify()) {
+            NimbleMetrics.get().incrVerificationFailures();
             throw new NimbleError("Verification failed for ReadCounter");
-        else
-            logger.info("Verified ReadCounter");
+        }
+        logger.debug("Verified ReadCounter");
         return op;
     }
 
@@ -0,0 +1,166 @@
+package org.apache.hadoop.hdfs.server.nimble;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.server.namenode.NameNode;
+import org.apache.hadoop.hdfs.server.namenode.metrics.NameNodeMetrics;
+import org.apache.hadoop.util.Time;
+import org.apache.log4j.Logger;
+
+/**
+ * Adaptive batching for TMCSEditLog, in the spirit of group commit.
+ *
+ * The target batch size doubles while the ledger is the bottleneck (sealed batches
+ * queue up behind TMCSCommitter, or, with synchronous increments, a batch fills up
+ * faster than the ledger answers) and halves when ops arrive slower than the ledger
+ * answers. A batch is also sealed once its oldest op has waited "fs.nimble.batch.maxDelayMs".
+ *
+ * Batch boundaries must be reproducible during replay, so the policy never seals a
+ * batch by itself: FSEditLog writes an explicit NimbleFlushOp whenever onAdmit() says so,
+ * including right after the start of each segment. That one marks the segment for
+ * TMCSEditLog, which then only seals its batches on NimbleFlushOps, whatever the
+ * configuration of the NameNode that replays it.
+ */
+public class TMCSBatchPolicy {
+    static Logger logger = Logger.getLogger(TMCSBatchPolicy.class);
+
+    public enum SealReason { SIZE, LATENCY }
+
+    private final int minSize, maxSize;
+    private final long maxDelayMs;
+
+    // Guarded by "this"
+    private int target;
+    private int opsSinceSeal;
+    private long batchStart;  // admission time of the oldest unsealed op
+    private long lastFillTime; // time it took to fill the last sealed batch
+    private double rttEwma;   // ledger round trip, in ms
+    private SealReason lastSealReason;
+
+    public TMCSBatchPolicy(Configuration conf) {
+        this.minSize = Math.max(1, conf.getInt(NimbleUtils.Conf.BATCH_MIN_SIZE_KEY, NimbleUtils.Conf.BATCH_MIN_SIZE_DEFAULT));
+        this.maxSize = Math.max(minSize, conf.getInt(NimbleUtils.Conf.BATCH_MAX_SIZE_KEY, NimbleUtils.Conf.BATCH_MAX_SIZE_DEFAULT));
+        this.maxDelayMs = conf.getLong(NimbleUtils.Conf.BATCH_MAX_DELAY_KEY, NimbleUtils.Conf.BATCH_MAX_DELAY_DEFAULT);
+        long initial = conf.getLong(NimbleUtils.Conf.BATCH_SIZE_KEY, NimbleUtils.Conf.BATCH_SIZE__DEFAULT);
+        this.target = (int) Math.min(maxSize, Math.max(minSize, initial));
+        publishTarget();
+    }
+
+    public static boolean isEnabled(Configuration conf) {
+        return conf.getBoolean(NimbleUtils.Conf.BATCH_ADAPTIVE_KEY, NimbleUtils.Conf.BATCH_ADAPTIVE_DEFAULT);
+    }
+
+    /**
+     * Called for every op admitted to the edit log, in transaction order.
+     *
+     * @param flushOp The op is a NimbleFlushOp, which seals the batch anyway
+     * @return true if a NimbleFlushOp should be logged right after this op
+     */
+    public synchronized boolean onAdmit(boolean flushOp) {
+        long now = Time.monotonicNow();
+        if (flushOp) {
+            reset(now);
+            return false;
+        }
+
+        if (opsSinceSeal++ == 0)
+            batchStart = now;
+
+        if (opsSinceSeal >= target) {
+            sealed(SealReason.SIZE, now);
+            return true;
+        }
+        if (now - batchStart >= maxDelayMs) {
+            sealed(SealReason.LATENCY, now);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * True if the open batch has waited longer than the latency bound without
+     * a new op arriving to seal it.
+     */
+    public synchronized boolean isStale() {
+        return opsSinceSeal > 0 && Time.monotonicNow() - batchStart >= maxDelayMs;
+    }
+
+    /**
+     * Called by TMCSCommitter after each ledger increment.
+     *
+     * @param rttMs   Round trip of the increment
+     * @param pending Sealed batches still waiting for the ledger
+     */
+    public synchronized void onCommitted(long rttMs, int pending) {
+        updateRtt(rttMs);
+        // Batches queue behind the ledger: amortize more ops per round trip
+        resize(pending > 1, pending == 0 && lastFillTime > rttEwma, "pending=" + pending);
+    }
+
+    /**
+     * Called by TMCSEditLog after each synchronous ledger increment. Nothing queues
+     * behind the ledger then, but the edit log waits on it: a batch that fills up
+     * faster than the ledger answers should amortize more ops per round trip.
+     *
+     * @param rttMs Round trip of the increment
+     */
+    public synchronized void onCommittedInline(long rttMs) {
+        updateRtt(rttMs);
+        resize(lastFillTime < rttEwma / 2, lastFillTime > rttEwma, "fill=" + lastFillTime + "ms");
+    }
+
+    private void updateRtt(long rttMs) {
+        rttEwma = (rttEwma == 0) ? rttMs : 0.8 * rttEwma + 0.2 * rttMs;
+    }
+
+    private void resize(boolean grow, boolean shrink, String why) {
+        int previous = target;
+        if (grow) {
+            target = Math.min(maxSize, target * 2);
+        } else if (shrink) {
+            // Ops arrive slower than the ledger answers: seal sooner
+            target = Math.max(minSize, target / 2);
+        }
+        if (target != previous) {
+            logger.debug(String.format("batch size %d -> %d (rtt=%.1fms %s)",
+                    previous, target, rttEwma, why));
+            publishTarget();
+        }
+    }
+
+    public synchronized int getTargetSize() {
+        return target;
+    }
+
+    public synchronized SealReason getLastSealReason() {
+        return lastSealReason;
+    }
+
+    public long getMaxDelayMs() {
+        return maxDelayMs;
+    }
+
+    private void sealed(SealReason reason, long now) {
+        lastFillTime = now - batchStart;
+        lastSealReason = reason;
+        reset(now);
+
+        NameNodeMetrics metrics = NameNode.getNameNodeMetrics();
+        if (metrics != null) {
+            if (reason == SealReason.SIZE)
+                metrics.incrTMCSBatchesSealedBySize();
+            else
+                metrics.incrTMCSBatchesSealedByLatency();
+        }
+    }
+
+    private void reset(long now) {
+        opsSinceSeal = 0;
+        batchStart = now;
+    }
+
+    private void publishTarget() {
+        NameNodeMetrics metrics = NameNode.getNameNodeMetrics();
+        if (metrics != null)
+            metrics.setTMCSBatchSize(target);
+    }
+}
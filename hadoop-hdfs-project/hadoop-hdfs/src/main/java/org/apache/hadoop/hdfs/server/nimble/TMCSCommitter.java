@@ -0,0 +1,176 @@
+package org.apache.hadoop.hdfs.server.nimble;
+
+import org.apache.hadoop.util.Time;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Commits sealed TMCSEditLog batches to the Nimble ledger on a dedicated thread.
+ *
+ * The edit log only seals a batch (signs its tag) and queues it here, so the
+ * ledger round trip no longer happens while the FSEditLog monitor is held.
+ * Increments carry an expected counter, so the ledger must see them in order:
+ * batches are committed FIFO, and up to "fs.nimble.commit.maxPending" sealed
+ * batches may be queued before the edit log is throttled. Batches that queued
+ * up during a round trip are sent together through the ledger's batch endpoint.
+ *
+ * FSEditLog#logSync calls awaitCommitted() after flushing the journal, so a
+ * client is acknowledged only once the ledger holds every batch sealed before
+ * the sync. Ops of the batch still open are committed once it is sealed, unless
+ * "fs.nimble.commit.sealOnSync" has logSync seal it first with a NimbleFlushOp.
+ * A ledger failure is sticky and reported to every waiter.
+ */
+public class TMCSCommitter implements Closeable {
+    static Logger logger = Logger.getLogger(TMCSCommitter.class);
+
+    /* A sealed batch waiting for the ledger */
+    private static class Batch {
+        final byte[] tag;
+        final long txid; // last transaction covered by the batch
+
+        Batch(byte[] tag, long txid) {
+            this.tag = tag;
+            this.txid = txid;
+        }
+    }
+
+    private final TMCS tmcs;
+    private final TMCSBatchPolicy policy; // null unless batching is adaptive
+    private final int maxPending;
+    private final Thread thread;
+
+    // Guarded by "this". The head of the queue is being committed.
+    private final ArrayDeque<Batch> pending = new ArrayDeque<>();
+    private IOException failure;
+    private boolean running = true;
+
+    public TMCSCommitter(TMCS tmcs, int maxPending, TMCSBatchPolicy policy) {
+        this.tmcs = tmcs;
+        this.policy = policy;
+        this.maxPending = Math.max(1, maxPending);
+        this.thread = new Thread(this::run, "TMCSCommitter");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queue a sealed batch. Blocks while too many batches are pending.
+     *
+     * @param tag  Signed tag of the batch
+     * @param txid Last transaction id covered by the batch, or -1 if none
+     */
+    public synchronized void submit(byte[] tag, long txid) throws IOException {
+        checkFailure();
+        try {
+            while (pending.size() >= maxPending && failure == null && running) {
+                wait(1000);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while queueing TMCS batch");
+        }
+        checkFailure();
+        pending.addLast(new Batch(tag, txid));
+        notifyAll();
+    }
+
+    /**
+     * Wait until every queued batch covering a transaction up to txid
+     * is acknowledged by the ledger.
+     */
+    public synchronized void awaitCommitted(long txid) throws IOException {
+        try {
+            while (failure == null && !pending.isEmpty() && pending.peekFirst().txid <= txid) {
+                wait(1000);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for TMCS commit");
+        }
+        checkFailure();
+    }
+
+    /**
+     * Wait until all queued batches are acknowledged by the ledger.
+     */
+    public void awaitAll() throws IOException {
+        awaitCommitted(Long.MAX_VALUE);
+    }
+
+    public synchronized int getNumPending() {
+        return pending.size();
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null)
+            throw new NimbleError("TMCS commit failed earlier: " + failure.getMessage());
+    }
+
+    private void run() {
+        List<byte[]> tags = new ArrayList<>();
+        while (true) {
+            long lastTxId = -1;
+            tags.clear();
+            synchronized (this) {
+                while (running && pending.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        running = false;
+                    }
+                }
+                if (pending.isEmpty())
+                    return;
+                // Everything queued so far goes to the ledger in one request, if it supports batches
+                for (Batch b : pending) {
+                    tags.add(b.tag);
+                    lastTxId = b.txid;
+                }
+            }
+
+            long start = Time.monotonicNow();
+            try {
+                tmcs.increment(tags);
+            } catch (IOException e) {
+                logger.error("cannot commit TMCS batches up to txid " + lastTxId, e);
+                synchronized (this) {
+                    failure = e;
+                    running = false;
+                    notifyAll();
+                }
+                return;
+            }
+
+            int remaining;
+            synchronized (this) {
+                for (int i = 0; i < tags.size(); i++)
+                    pending.removeFirst();
+                remaining = pending.size();
+                notifyAll();
+            }
+            if (policy != null)
+                policy.onCommitted(Time.monotonicNow() - start, remaining);
+        }
+    }
+
+    /**
+     * Commit the remaining batches and stop the committer thread.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            awaitAll();
+        } finally {
+            synchronized (this) {
+                running = false;
+                notifyAll();
+            }
+        }
+    }
+}
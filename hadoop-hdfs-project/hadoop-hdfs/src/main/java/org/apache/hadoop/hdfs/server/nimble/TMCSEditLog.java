@@ -3,74 +3,64 @@
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hdfs.server.namenode.FSEditLogOp;
 import org.apache.hadoop.hdfs.server.namenode.NameNodeLayoutVersion;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.util.Time;
 import org.apache.log4j.Logger;
 
 import java.io.*;
 import java.security.Signature;
 import java.security.SignatureException;
 
+import static org.apache.hadoop.hdfs.server.namenode.FSEditLogOpCodes.OP_END_LOG_SEGMENT;
 import static org.apache.hadoop.hdfs.server.namenode.FSEditLogOpCodes.OP_NIMBLE_FLUSH;
+import static org.apache.hadoop.hdfs.server.namenode.FSEditLogOpCodes.OP_START_LOG_SEGMENT;
 
 /**
  * We aggregate EditLog ops for fixed number, or till we encounter the special NimbleOp (or just flush?).
  * Then we increment TMCS. The Tag contains the PreviousTag with ops.
  *
  * To Verify: when applying the EditLogs, we keep doing the same.
+ *
+ * Sealed batches are handed to a TMCSCommitter (unless "fs.nimble.commit.async" is off),
+ * and FSEditLog#logSync waits for them through awaitCommitted(). With "fs.nimble.commit.sealOnSync",
+ * logSync first seals the open batch with a NimbleFlushOp if canSeal(), so that every op it
+ * acknowledges is covered; otherwise ops of the open batch are acknowledged before they are committed.
+ *
+ * The bytes of the open batch are collected in a buffer and only signed when the batch
+ * is sealed. In edit logs with the NIMBLE_FRAME_TAGS layout feature, each op is tagged as
+ * framed in the edit log (opcode, length, txid, fields), copied from the frame just written
+ * to the EditsDoubleBuffer or read back from the edit log where possible, so the tag binds
+ * the bytes that are persisted. Ops of older edit logs are tagged as before, by their opcode
+ * and fields, so that their batches still verify after an upgrade.
+ *
+ * The ledger only holds the tag of the latest batch, so earlier batches cannot be checked
+ * against it. While loading, sealed batches are neither signed nor verified: the bytes of
+ * the last one are kept, and verifyState() checks them against the latest tag.
+ * Since the open batch is kept as bytes, it carries over between loadMode() and liveMode().
  */
 public class TMCSEditLog {
     static Logger logger = Logger.getLogger(TMCS.class);
 
+    // Layout that ops of edit logs without frame tags were encoded in
+    private static final int UNFRAMED_LAYOUT_VERSION =
+            NameNodeLayoutVersion.Feature.NIMBLE_FRAME_TAGS.getInfo().getLayoutVersion() + 1;
+
     private Configuration conf;
     private long aggregateFrequency;
     private NimbleUtils.NimbleFSImageInfo fsImage; // base image for all operations
     private boolean apply; // false means don't increment to TMCS (we're verifying)
     private int num, nextCounter;
-    private SignatureOutputStream tag, previousTag;
-    private DataOutputStream out; // wrapper for tag
+    private byte lastOpCode; // opcode of the last op added
+    private boolean explicitSeals; // batches of the current segment are sealed by NimbleFlushOps only
+    private long lastTxId; // last transaction recorded in the current batch
+    private DataOutputBuffer batch; // ops of the open batch
+    private DataOutputBuffer lastSealed; // last batch sealed while loading, until verifyState()
+    private boolean hasSealed; // whether lastSealed holds a batch
     private TMCS tmcs;
-
-    public static class SignatureOutputStream extends OutputStream {
-        protected Signature s, v;
-        protected boolean doVerify;
-
-        public SignatureOutputStream(Signature sign, Signature verify) {
-            this.s = sign;
-            this.v = verify;
-            this.doVerify = false;
-        }
-
-        public void setVerify(boolean b) {
-            this.doVerify = b;
-        }
-
-        public boolean verify(byte[] signature) throws IOException {
-            try {
-                return v.verify(signature);
-            } catch (SignatureException e) { throw new NimbleError(e); }
-        }
-
-        public byte[] sign() throws IOException {
-            try {
-                return s.sign();
-            } catch (SignatureException e) { throw new NimbleError(e); }
-        }
-
-        public void write(int b) throws IOException {
-            try{
-                s.update((byte) b);
-                if (doVerify)
-                    v.update((byte) b);
-            } catch (SignatureException e) { throw new NimbleError(e); }
-        }
-
-        public void write(byte[] var1, int var2, int var3) throws IOException {
-            try{
-                s.update(var1, var2, var3);
-                if (doVerify)
-                    v.update(var1, var2, var3);
-            } catch (SignatureException e) { throw new NimbleError(e); }
-        }
-    }
+    private TMCSCommitter committer; // created by the first async commit, until close()
+    private boolean commitAsync;
+    private boolean sealOnSync;
+    private TMCSBatchPolicy policy; // null when batches have a fixed size
 
     public TMCSEditLog(Configuration conf, boolean apply, File fsImageFile) throws IOException {
         this(conf, apply, NimbleUtils.getFSImageInfo(fsImageFile));
@@ -84,10 +74,17 @@ public TMCSEditLog(Configuration conf, boolean apply, NimbleUtils.NimbleFSImageI
 
         this.num = 0;
         this.nextCounter = fsImage.counter;
-        this.previousTag = null;
-        this.tmcs = TMCS.getInstance();
-        this.tag = new SignatureOutputStream(tmcs.getSignature(), tmcs.verifySignature());
-        this.out = new DataOutputStream(this.tag);
+        this.lastTxId = -1;
+        this.batch = new DataOutputBuffer();
+        this.lastSealed = new DataOutputBuffer();
+        this.tmcs = TMCS.getInstance(NimbleUtils.getShard(conf));
+        if (TMCSBatchPolicy.isEnabled(conf)) {
+            this.policy = new TMCSBatchPolicy(conf);
+        }
+        // Until a segment starts, e.g. when tailing edits from its middle
+        this.explicitSeals = policy != null;
+        this.commitAsync = conf.getBoolean(NimbleUtils.Conf.COMMIT_ASYNC_KEY, NimbleUtils.Conf.COMMIT_ASYNC_DEFAULT);
+        this.sealOnSync = conf.getBoolean(NimbleUtils.Conf.COMMIT_SEAL_ON_SYNC_KEY, NimbleUtils.Conf.COMMIT_SEAL_ON_SYNC_DEFAULT);
 
         prepareNextBatch();
     }
@@ -95,38 +92,88 @@ public TMCSEditLog(Configuration conf, boolean apply, NimbleUtils.NimbleFSImageI
     private void prepareNextBatch() throws IOException {
         nextCounter++;
         num = 0;
-
-        // Build tag
-        tag = new SignatureOutputStream(tmcs.getSignature(), tmcs.verifySignature());
+        batch.reset();
     }
 
     // Send data to EditLogs
     private void finalizeBatch() throws IOException {
         // Write counter after ops
-        out.writeInt(nextCounter);
-
-        // Update TMCS
-        this.previousTag = tag;
-        if (apply) {
-            tmcs.increment(tag.sign());
+        batch.writeInt(nextCounter);
+        NimbleMetrics.get().addBatch(num);
+
+        if (!apply) {
+            // Only the last batch can be verified against the ledger; keep its bytes
+            DataOutputBuffer sealed = lastSealed;
+            lastSealed = batch;
+            batch = sealed;
+            hasSealed = true;
+        } else {
+            byte[] tag = sign();
+            if (commitAsync) {
+                if (committer == null) {
+                    // Only a log that applies its batches needs the committer thread
+                    committer = new TMCSCommitter(tmcs,
+                            conf.getInt(NimbleUtils.Conf.COMMIT_MAX_PENDING_KEY, NimbleUtils.Conf.COMMIT_MAX_PENDING_DEFAULT),
+                            policy);
+                }
+                committer.submit(tag, lastTxId);
+            } else {
+                long start = Time.monotonicNow();
+                tmcs.increment(tag);
+                if (policy != null)
+                    policy.onCommittedInline(Time.monotonicNow() - start);
+            }
         }
 
         // Prepare for next batch
         prepareNextBatch();
     }
 
+    // Build tag
+    private byte[] sign() throws IOException {
+        try {
+            Signature s = tmcs.getSignature();
+            s.update(batch.getData(), 0, batch.getLength());
+            return s.sign();
+        } catch (SignatureException e) {
+            throw new NimbleError(e);
+        }
+    }
+
     /**
      * Record an operation
      */
     public synchronized void add(FSEditLogOp op) throws IOException {
         try {
-            out.write(op.opCode.getOpCode()); // OPCODE
-            op.writeFields(out, NameNodeLayoutVersion.CURRENT_LAYOUT_VERSION); // Fields
+            int logVersion = op.getLogVersion() != 0 ? op.getLogVersion() : NameNodeLayoutVersion.CURRENT_LAYOUT_VERSION;
+            if (!NameNodeLayoutVersion.supports(NameNodeLayoutVersion.Feature.NIMBLE_FRAME_TAGS, logVersion)) {
+                // Tagged as before frame tags, by opcode and fields
+                batch.write(op.opCode.getOpCode());
+                op.writeFields(batch, UNFRAMED_LAYOUT_VERSION);
+            } else if (op.getFrame() != null) {
+                // Tag the bytes just written to, or read from, the edit log instead of encoding the op again
+                batch.write(op.getFrame(), op.getFrameOffset(), op.getFrameLength());
+            } else {
+                op.writeFrame(batch, logVersion);
+            }
             num++;
-            logger.debug(String.format("record: opcode=%X %s", op.opCode.getOpCode(), op));
-
-            boolean flushOp = op.opCode.getOpCode() == OP_NIMBLE_FLUSH.getOpCode();
-            if (num >= aggregateFrequency || flushOp) {
+            byte opcode = op.opCode.getOpCode();
+            boolean afterSegmentStart = lastOpCode == OP_START_LOG_SEGMENT.getOpCode();
+            lastOpCode = opcode;
+            if (op.hasTransactionId())
+                lastTxId = op.getTransactionId();
+            logger.debug(String.format("record: opcode=%X %s", opcode, op));
+
+            // The seal rule comes from the log, not from the configuration, so that edits replay
+            // the same way they were written: a segment batched adaptively starts with a
+            // NimbleFlushOp right after OP_START_LOG_SEGMENT, and is then only sealed by those.
+            // Other segments are also sealed every aggregateFrequency ops.
+            boolean flushOp = opcode == OP_NIMBLE_FLUSH.getOpCode();
+            boolean segmentStart = opcode == OP_START_LOG_SEGMENT.getOpCode();
+            if (afterSegmentStart)
+                explicitSeals = flushOp;
+            boolean full = !explicitSeals && !segmentStart && num >= aggregateFrequency;
+            if (full || flushOp) {
                 if (flushOp)
                     logger.debug("NimbleFlushOp executed!");
                 finalizeBatch();
@@ -139,9 +186,62 @@ public synchronized void add(FSEditLogOp op) throws IOException {
 
     public synchronized void flush() throws IOException {
         if (num > 0) {
-            logger.info("flush " + num + " edit log operations");
+            logger.debug("flush " + num + " edit log operations");
             finalizeBatch();
         }
+        if (committer != null)
+            committer.awaitAll();
+    }
+
+    /**
+     * Whether the open batch should be sealed when the edit log is synced.
+     */
+    public boolean sealsOnSync() {
+        return sealOnSync;
+    }
+
+    /**
+     * Whether a NimbleFlushOp may be logged to seal the open batch: it holds ops, and the
+     * last one neither ends a log segment, after which nothing may be logged, nor starts
+     * one, since a NimbleFlushOp right after the start marks a segment batched adaptively.
+     */
+    public synchronized boolean canSeal() {
+        return num > 0 && lastOpCode != OP_END_LOG_SEGMENT.getOpCode()
+                && lastOpCode != OP_START_LOG_SEGMENT.getOpCode();
+    }
+
+    /**
+     * Adaptive batching policy, or null if batches have a fixed size.
+     */
+    public TMCSBatchPolicy getBatchPolicy() {
+        return policy;
+    }
+
+    /**
+     * Wait until the ledger holds every sealed batch covering transactions up to txid.
+     * Ops of the batch that is still open are committed once it is sealed.
+     */
+    public void awaitCommitted(long txid) throws IOException {
+        TMCSCommitter c;
+        synchronized (this) {
+            c = committer;
+        }
+        if (c != null)
+            c.awaitCommitted(txid);
+    }
+
+    /**
+     * Commit the sealed batches and stop the committer thread, if any.
+     * The open batch stays open.
+     */
+    public synchronized void close() throws IOException {
+        if (committer != null) {
+            try {
+                committer.close();
+            } finally {
+                committer = null;
+            }
+        }
     }
 
     /**
@@ -155,6 +255,8 @@ public synchronized void recordImage(byte[] tag) throws IOException {
             throw new NimbleError(num + " edit log operations are still not flushed");
 
         // Record new FSImage creation. Expects a signed tag.
+        if (committer != null)
+            committer.awaitAll();
         tmcs.increment(tag);
 
         // Update bookkeeping
@@ -175,14 +277,23 @@ public synchronized void verifyState() throws IOException {
             logger.warn("the last " + num + " ops will not be verified. This is likely due to unclean shutdown.");
         }
 
-        if (previousTag == null) {
+        if (!hasSealed) {
             logger.warn("No edit log ops to verify");
             return;
         }
 
-        // Verify signature. The current tag is empty if all ops were committed before shutdown.
-        if(!previousTag.verify(latest.tag))
-            throw new NimbleError("Cannot verify signature on tag");
+        // Verify signature of the last batch loaded
+        hasSealed = false;
+        try {
+            Signature v = tmcs.newVerifySignature();
+            v.update(lastSealed.getData(), 0, lastSealed.getLength());
+            if (!v.verify(latest.tag)) {
+                NimbleMetrics.get().incrVerificationFailures();
+                throw new NimbleError("Cannot verify signature on tag");
+            }
+        } catch (SignatureException e) {
+            throw new NimbleError(e);
+        }
 
         logger.debug("State verified: " + latest);
     }
@@ -190,32 +301,25 @@ public synchronized void verifyState() throws IOException {
     /**
      * When loading existing EditLogs from disk
      */
-    public synchronized void loadMode() throws IOError {
+    public synchronized void loadMode() throws IOException {
         logger.info("DO NOT APPLY mode: " + this);
         this.apply = false;
-        this.tag.setVerify(true);
     }
 
     /**
      * When writing to EditLogs
      */
-    public synchronized void liveMode() throws NimbleError {
+    public synchronized void liveMode() throws IOException {
         logger.info("LIVE mode: " + this);
         this.apply = true;
-        this.tag.setVerify(false);
     }
 
     @Override
     public String toString() {
-        byte[] tagArr;
-        try {
-            tagArr = tag.sign();
-        } catch (IOException e) {
-            tagArr = null;
-        }
         return "TMCSEditLog{" +
                 "counter=" + (nextCounter-1) +
-                ", tag=" + tagArr +
+                ", ops=" + num +
+                ", loading=" + !apply +
                 '}';
     }
 }
@@ -217,7 +217,9 @@ public void commitBlockSynchronization(ExtendedBlock block,
 
   /**
    * Get a list of blocks belonging to <code>datanode</code>
-   * whose total size equals <code>size</code>.
+   * whose total size equals <code>size</code>. Block groups are listed as
+   * the internal blocks stored on <code>datanode</code>, each with its own
+   * Nimble digest.
    *
    * @see org.apache.hadoop.hdfs.server.balancer.Balancer
    * @param datanode  a data node
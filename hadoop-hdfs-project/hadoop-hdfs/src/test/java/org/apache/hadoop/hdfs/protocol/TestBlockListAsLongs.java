@@ -29,6 +29,7 @@
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -139,6 +140,96 @@ public void testFuzz() throws InterruptedException {
     checkReport(replicas);
   }
 
+  @Test
+  public void testDigests() {
+    Random rand = new Random(0);
+    List<Replica> replicas = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      Block b = new Block(rand.nextLong(), i, i << 4);
+      if (i % 3 != 0) {
+        byte[] digest = new byte[i % 2 == 0 ?
+            Block.CHECKSUM_LENGTH : Block.TAGGED_CHECKSUM_LENGTH];
+        rand.nextBytes(digest);
+        digest[0] = (byte) (digest.length == Block.CHECKSUM_LENGTH ? 7 : 2);
+        b.setChecksum(digest);
+      }
+      replicas.add(i % 5 == 0 ? new ReplicaBeingWritten(b, null, null, null)
+          : new FinalizedReplica(b, null, null));
+    }
+    BlockListAsLongs blocks = BlockListAsLongs.encode(replicas);
+    assertTrue(blocks.hasDigests());
+    byte[] hash = blocks.getDigestsHash();
+    assertNotNull(hash);
+
+    // Decoded in place from the buffers, as the NameNode does
+    BlockListAsLongs decoded = BlockListAsLongs.decodeBuffers(
+        replicas.size(), blocks.getBlocksBuffers());
+    assertArrayEquals(hash, decoded.getDigestsHash());
+    int i = 0;
+    for (BlockReportReplica replica : decoded) {
+      Replica expected = replicas.get(i++);
+      assertEquals(expected.getBlockId(), replica.getBlockId());
+      assertEquals(expected.getState(), replica.getState());
+      assertArrayEquals(expected.getChecksum(), replica.getChecksum());
+      if (expected.getChecksum() != null) {
+        byte[] view = new byte[replica.getChecksumBuffer().remaining()];
+        replica.getChecksumBuffer().get(view);
+        assertArrayEquals(expected.getChecksum(), view);
+      }
+    }
+    // Older readers see the replicas alone
+    checkReplicas(toMap(replicas), BlockListAsLongs.decodeLongs(
+        toList(blocks.getBlockListAsLongs())));
+
+    // The hash is independent of the order of the replicas, and covers the
+    // digests, ids and generation stamps
+    List<Replica> reversed = new ArrayList<>(replicas);
+    Collections.reverse(reversed);
+    assertArrayEquals(hash, BlockListAsLongs.encode(reversed).getDigestsHash());
+    Replica changed = replicas.get(1);
+    byte[] digest = changed.getChecksum();
+    digest[digest.length - 1] ^= 1;
+    changed.setChecksum(digest);
+    assertFalse(Arrays.equals(hash,
+        BlockListAsLongs.encode(replicas).getDigestsHash()));
+
+    // Unchanged digests can be left out of the report, but not their hash
+    BlockListAsLongs stripped = decoded.withoutDigests();
+    assertFalse(stripped.hasDigests());
+    assertArrayEquals(hash, stripped.getDigestsHash());
+    assertTrue(stripped.getBlocksBuffer().size()
+        < decoded.getBlocksBuffer().size());
+    stripped = BlockListAsLongs.decodeBuffers(replicas.size(),
+        stripped.getBlocksBuffers());
+    assertArrayEquals(hash, stripped.getDigestsHash());
+    checkReplicas(toMap(replicas), stripped);
+    for (BlockReportReplica replica : stripped) {
+      assertFalse(replica.hasChecksum());
+    }
+
+    // Reports without digests are unchanged
+    BlockListAsLongs plain = BlockListAsLongs.encode(
+        Collections.singletonList(new FinalizedReplica(b1, null, null)));
+    assertFalse(plain.hasDigests());
+    assertEquals(null, plain.getDigestsHash());
+  }
+
+  private static Map<Long, Replica> toMap(List<Replica> replicas) {
+    Map<Long, Replica> map = new HashMap<>();
+    for (Replica replica : replicas) {
+      map.put(replica.getBlockId(), replica);
+    }
+    return map;
+  }
+
+  private static List<Long> toList(long[] longs) {
+    List<Long> list = new ArrayList<>(longs.length);
+    for (long value : longs) {
+      list.add(value);
+    }
+    return list;
+  }
+
   private BlockListAsLongs checkReport(Replica...replicas) {
     Map<Long, Replica> expectedReplicas = new HashMap<>();
     for (Replica replica : replicas) {
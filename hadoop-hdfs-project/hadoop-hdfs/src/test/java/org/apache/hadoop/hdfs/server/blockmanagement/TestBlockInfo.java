@@ -22,6 +22,7 @@
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Random;
@@ -33,6 +34,7 @@
 import org.slf4j.LoggerFactory;
 import org.apache.hadoop.hdfs.DFSTestUtil;
 import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocolPB.PBHelperClient;
 import org.apache.hadoop.hdfs.server.blockmanagement.DatanodeStorageInfo.AddBlockResult;
 import org.apache.hadoop.hdfs.server.common.GenerationStamp;
 import org.apache.hadoop.hdfs.server.protocol.DatanodeStorage;
@@ -61,6 +63,58 @@ public void testIsDeleted() {
     Assert.assertTrue(blockInfo.isDeleted());
   }
 
+  @Test
+  public void testDigestTable() {
+    byte[] digest = new byte[Block.CHECKSUM_LENGTH];
+    new Random(1).nextBytes(digest);
+    BlockInfo blockInfo = new BlockInfoContiguous(
+        new Block(1, 10, 1000, digest), (short) 3);
+    BlocksMap map = new BlocksMap(16);
+    BlockCollection bc = mock(BlockCollection.class);
+    when(bc.getId()).thenReturn(1000L);
+    int used = BlockInfo.DIGESTS.size();
+
+    // Stored off-heap while in the map, unchanged for readers
+    map.addBlockCollection(blockInfo, bc);
+    assertEquals(used + 1, BlockInfo.DIGESTS.size());
+    Assert.assertArrayEquals(digest, blockInfo.getChecksum());
+    Assert.assertEquals(Block.encodeChecksumBytes(digest),
+        blockInfo.getChecksumAsString());
+    Assert.assertArrayEquals(digest,
+        PBHelperClient.convert(blockInfo).getChecksum().toByteArray());
+    Assert.assertArrayEquals(digest, new Block(blockInfo).getChecksum());
+
+    // A digest tagged with its algorithm stays in the slot too
+    byte[] tagged = new byte[Block.TAGGED_CHECKSUM_LENGTH];
+    tagged[0] = 2;
+    System.arraycopy(digest, 0, tagged, 1, digest.length);
+    blockInfo.setChecksum(tagged);
+    assertEquals(used + 1, BlockInfo.DIGESTS.size());
+    Assert.assertArrayEquals(tagged, blockInfo.getChecksum());
+    Assert.assertArrayEquals(tagged,
+        PBHelperClient.convert(blockInfo).getChecksum().toByteArray());
+
+    digest[0] ^= 1;
+    blockInfo.setChecksum(digest);
+    Assert.assertArrayEquals(digest, blockInfo.getChecksum());
+
+    // Digests of block report replicas are copied in from their buffer
+    tagged[1] ^= 1;
+    blockInfo.setChecksum(ByteBuffer.wrap(tagged));
+    assertEquals(used + 1, BlockInfo.DIGESTS.size());
+    Assert.assertArrayEquals(tagged, blockInfo.getChecksum());
+    blockInfo.setChecksum(ByteBuffer.wrap(digest));
+    Assert.assertArrayEquals(digest, blockInfo.getChecksum());
+    Assert.assertFalse(blockInfo.hasOtherChecksum(ByteBuffer.wrap(digest)));
+    Assert.assertTrue(blockInfo.hasOtherChecksum(ByteBuffer.wrap(tagged)));
+
+    // Back on the heap, and the slot reused, once removed
+    blockInfo.setBlockCollectionId(INVALID_INODE_ID);
+    map.removeBlock(blockInfo);
+    assertEquals(used, BlockInfo.DIGESTS.size());
+    Assert.assertArrayEquals(digest, blockInfo.getChecksum());
+  }
+
   @Test
   public void testAddStorage() throws Exception {
     BlockInfo blockInfo = new BlockInfoContiguous((short) 3);
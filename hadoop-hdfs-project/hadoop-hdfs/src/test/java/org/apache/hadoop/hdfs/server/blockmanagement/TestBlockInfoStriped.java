@@ -26,6 +26,8 @@
 import org.apache.hadoop.hdfs.protocol.Block;
 import org.apache.hadoop.hdfs.protocol.ErasureCodingPolicy;
 import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
+import org.apache.hadoop.hdfs.server.nimble.BlockDigest;
+import org.apache.hadoop.hdfs.server.nimble.NimbleUtils;
 import org.apache.hadoop.hdfs.tools.DFSck;
 import org.apache.hadoop.test.GenericTestUtils;
 import org.apache.hadoop.test.Whitebox;
@@ -48,6 +50,8 @@
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 /**
@@ -279,6 +283,52 @@ public void testWrite() {
     assertArrayEquals(byteBuffer.array(), byteStream.toByteArray());
   }
 
+  @Test
+  public void testInternalChecksums() throws Exception {
+    BlockInfoStriped blk = new BlockInfoStriped(
+        new Block(BASE_ID, 0, 1), testECPolicy);
+    int used = BlockInfo.DIGESTS.size();
+    byte[][] digests = new byte[totalBlocks][];
+    for (int i = 0; i < totalBlocks; i++) {
+      digests[i] = BlockDigest.tag(BlockDigest.Algorithm.SHA256,
+          NimbleUtils.checksum(new byte[] {(byte) i}));
+      assertNull(blk.getInternalChecksum(i));
+      blk.setInternalChecksum(i, ByteBuffer.wrap(digests[i]));
+    }
+    assertEquals(used + totalBlocks, BlockInfo.DIGESTS.size());
+    // The group digest is not taken from the internal blocks
+    assertFalse(blk.hasChecksum());
+
+    // A reconstructed internal block conflicts only if its digest differs
+    // from the recorded one, made with the same algorithm
+    byte[] other = digests[1];
+    byte[] merkle = BlockDigest.tag(BlockDigest.Algorithm.MERKLE,
+        NimbleUtils.checksum(new byte[] {0}));
+    for (int i = 0; i < totalBlocks; i++) {
+      assertArrayEquals(digests[i], blk.getInternalChecksum(i));
+      assertFalse(blk.conflictsWithInternalChecksum(i,
+          ByteBuffer.wrap(digests[i])));
+      assertFalse(blk.conflictsWithInternalChecksum(i,
+          ByteBuffer.wrap(merkle)));
+    }
+    assertTrue(blk.conflictsWithInternalChecksum(0, ByteBuffer.wrap(other)));
+    assertFalse(blk.conflictsWithInternalChecksum(0,
+        ByteBuffer.wrap(NimbleUtils.checksum(new byte[] {1}))));
+
+    // Overwriting reuses the slot; a new generation stamp releases them all
+    blk.setInternalChecksum(0, ByteBuffer.wrap(other));
+    assertArrayEquals(other, blk.getInternalChecksum(0));
+    assertEquals(used + totalBlocks, BlockInfo.DIGESTS.size());
+    blk.setGenerationStamp(2);
+    assertNull(blk.getInternalChecksum(0));
+    assertEquals(used, BlockInfo.DIGESTS.size());
+
+    blk.setInternalChecksum(2, ByteBuffer.wrap(digests[2]));
+    blk.unpinDigest();
+    assertNull(blk.getInternalChecksum(2));
+    assertEquals(used, BlockInfo.DIGESTS.size());
+  }
+
   @Test(expected=IllegalArgumentException.class)
   public void testAddStorageWithReplicatedBlock() {
     DatanodeStorageInfo storage = DFSTestUtil.createDatanodeStorageInfo(
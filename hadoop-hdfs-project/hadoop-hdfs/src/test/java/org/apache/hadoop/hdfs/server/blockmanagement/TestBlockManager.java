@@ -1101,6 +1101,61 @@ public void testSafeModeWithProvidedStorageBR() throws Exception {
     assertEquals(1, ds1.getBlockReportCount());
   }
 
+  private static BlockListAsLongs reportWithDigest(BlockInfo block,
+      byte digestByte) {
+    byte[] digest = new byte[Block.CHECKSUM_LENGTH];
+    Arrays.fill(digest, digestByte);
+    Block replica = new Block(block);
+    replica.setChecksum(digest);
+    BlockListAsLongs.Builder builder = BlockListAsLongs.builder();
+    builder.add(new FinalizedReplica(replica, null, null));
+    return builder.build();
+  }
+
+  /**
+   * A storage whose report carries only the hash of its digests must have
+   * sent those digests, and no other replica may have changed them since.
+   */
+  @Test
+  public void testDigestsHashOfReport() throws Exception {
+    DatanodeDescriptor node0 = nodes.get(0);
+    DatanodeDescriptor node1 = nodes.get(1);
+    DatanodeStorage storage0 =
+        new DatanodeStorage(node0.getStorageInfos()[0].getStorageID());
+    DatanodeStorage storage1 =
+        new DatanodeStorage(node1.getStorageInfos()[0].getStorageID());
+    for (DatanodeDescriptor node : Arrays.asList(node0, node1)) {
+      node.setAlive(true);
+      bm.getDatanodeManager().registerDatanode(
+          new DatanodeRegistration(node, null, null, ""));
+      bm.getDatanodeManager().addDatanode(node);
+    }
+    BlockInfo block = addBlockToBM(42);
+
+    BlockListAsLongs report0 = reportWithDigest(block, (byte) 1);
+    bm.processReport(node0, storage0, report0, null);
+    DatanodeStorageInfo ds0 = node0.getStorageInfo(storage0.getStorageID());
+    assertNotNull(ds0.getDigestsHash());
+    assertTrue(block.hasChecksum());
+
+    // The same digest from another replica changes nothing
+    bm.processReport(node1, storage1, reportWithDigest(block, (byte) 1), null);
+    assertNotNull(ds0.getDigestsHash());
+    bm.processReport(node0, storage0, report0.withoutDigests(), null);
+    assertTrue(node0.isRegistered());
+
+    // Another digest does, and the hash of the first report is stale
+    BlockListAsLongs report1 = reportWithDigest(block, (byte) 2);
+    bm.processReport(node1, storage1, report1, null);
+    assertNull(ds0.getDigestsHash());
+    bm.processReport(node1, storage1, report1.withoutDigests(), null);
+    assertTrue(node1.isRegistered());
+
+    // so it has to register again, and send its digests
+    bm.processReport(node0, storage0, report0.withoutDigests(), null);
+    assertFalse(node0.isRegistered());
+  }
+
   @Test
   public void testUCBlockNotConsideredMissing() throws Exception {
     DatanodeDescriptor node = nodes.get(0);
@@ -34,6 +34,7 @@
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 
 import javax.management.NotCompliantMBeanException;
@@ -74,6 +75,7 @@
 import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.metrics2.MetricsCollector;
 import org.apache.hadoop.metrics2.util.MBeans;
+import org.apache.hadoop.hdfs.util.DataTransferThrottler;
 import org.apache.hadoop.util.DataChecksum;
 
 /**
@@ -685,6 +687,11 @@ public DataNodeVolumeMetrics getMetrics() {
       return metrics;
     }
 
+    @Override
+    public ForkJoinPool getNimbleHashPool() {
+      return null;
+    }
+
     @Override
     public VolumeCheckResult check(VolumeCheckContext context)
         throws Exception {
@@ -1205,6 +1212,19 @@ public synchronized InputStream getBlockInputStream(ExtendedBlock b,
     return result;
   }
 
+  @Override // FsDatasetSpi
+  public InputStream getShortCircuitInputStream(ExtendedBlock b)
+      throws IOException {
+    return getBlockInputStream(b, 0);
+  }
+
+  /** Simulated replicas have no Nimble digest */
+  @Override // FsDatasetSpi
+  public boolean verifyNimbleDigest(ExtendedBlock b,
+      DataTransferThrottler throttler) {
+    return false;
+  }
+
   /** Not supported */
   @Override // FsDatasetSpi
   public ReplicaInputStreams getTmpInputStreams(ExtendedBlock b, long blkoff,
@@ -0,0 +1,169 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.hadoop.hdfs.server.datanode.fsdataset.FsVolumeSpi;
+import org.apache.hadoop.hdfs.server.datanode.metrics.DataNodeMetrics;
+import org.apache.hadoop.hdfs.server.nimble.BlockMerkleTree;
+import org.apache.hadoop.hdfs.server.nimble.NimbleUtils;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Test that hashing packets on the hash pool of a volume gives the digest of
+ * hashing them inline.
+ */
+public class TestBlockHasher {
+  private static final int PACKET = 64 * 1024 + 13;
+
+  private final ForkJoinPool pool = new ForkJoinPool(1);
+
+  @After
+  public void shutdown() {
+    pool.shutdownNow();
+  }
+
+  private FsVolumeSpi volume() {
+    FsVolumeSpi volume = mock(FsVolumeSpi.class);
+    when(volume.getNimbleHashPool()).thenReturn(pool);
+    return volume;
+  }
+
+  private static byte[] data(int len) {
+    byte[] b = new byte[len];
+    new Random(len).nextBytes(b);
+    return b;
+  }
+
+  /** Feed b in packets through a reused buffer, as BlockReceiver does. */
+  private static void feed(BlockHasher hasher, byte[] b) throws IOException {
+    byte[] packet = new byte[PACKET + 7];
+    for (int off = 0; off < b.length; off += PACKET) {
+      int len = Math.min(PACKET, b.length - off);
+      System.arraycopy(b, off, packet, 7, len);
+      hasher.update(packet, 7, len);
+      Arrays.fill(packet, (byte) 0);
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testFlatDigest() throws Exception {
+    byte[] b = data(40 * PACKET + 100);
+    DataNodeMetrics metrics = mock(DataNodeMetrics.class);
+    for (int maxPending : new int[] {0, 1, 4}) {
+      MessageDigest md = NimbleUtils._checksum();
+      BlockHasher hasher = new BlockHasher(md, null, maxPending, metrics,
+          volume(), "flat-" + maxPending);
+      feed(hasher, b);
+      hasher.close();
+      hasher.finish();
+      assertArrayEquals(NimbleUtils.checksum(b), md.digest());
+    }
+    verify(metrics, atLeastOnce()).incrNimbleHashPendingBytes(anyLong());
+    verify(metrics, atLeastOnce()).incrNimbleBytesHashed(any(), anyLong());
+  }
+
+  @Test(timeout = 60000)
+  public void testMerkleTree() throws Exception {
+    byte[] b = data(25 * PACKET);
+    BlockMerkleTree.Builder inline = new BlockMerkleTree.Builder(4096);
+    inline.update(b, 0, b.length);
+
+    BlockMerkleTree.Builder tree = new BlockMerkleTree.Builder(4096);
+    BlockHasher hasher = new BlockHasher(null, tree, 2,
+        mock(DataNodeMetrics.class), volume(), "merkle");
+    feed(hasher, b);
+    hasher.finish();
+    assertArrayEquals(inline.build().getDigest(), tree.build().getDigest());
+    hasher.close();
+
+    try {
+      hasher.update(b, 0, 1);
+      fail("updated a closed hasher");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  /** Without a hash pool, packets are hashed on the receiver's thread. */
+  @Test(timeout = 60000)
+  public void testNoPool() throws Exception {
+    byte[] b = data(10 * PACKET);
+    MessageDigest md = NimbleUtils._checksum();
+    BlockHasher hasher = new BlockHasher(md, null, 4,
+        mock(DataNodeMetrics.class), mock(FsVolumeSpi.class), "nopool");
+    feed(hasher, b);
+    hasher.finish();
+    hasher.close();
+    assertArrayEquals(NimbleUtils.checksum(b), md.digest());
+  }
+
+  /**
+   * Receivers of one volume share its pool: with a single thread, each of
+   * them still gets its packets hashed in order.
+   */
+  @Test(timeout = 60000)
+  public void testSharedPool() throws Exception {
+    final int receivers = 4;
+    FsVolumeSpi volume = volume();
+    ExecutorService writers = Executors.newFixedThreadPool(receivers);
+    try {
+      Future<?>[] done = new Future<?>[receivers];
+      MessageDigest[] mds = new MessageDigest[receivers];
+      byte[][] bs = new byte[receivers][];
+      for (int i = 0; i < receivers; i++) {
+        final MessageDigest md = NimbleUtils._checksum();
+        final byte[] b = data((20 + i) * PACKET + i);
+        final BlockHasher hasher = new BlockHasher(md, null, 2,
+            mock(DataNodeMetrics.class), volume, "shared-" + i);
+        mds[i] = md;
+        bs[i] = b;
+        done[i] = writers.submit(() -> {
+          feed(hasher, b);
+          hasher.finish();
+          hasher.close();
+          return null;
+        });
+      }
+      for (int i = 0; i < receivers; i++) {
+        done[i].get();
+        assertArrayEquals(NimbleUtils.checksum(bs[i]), mds[i].digest());
+      }
+    } finally {
+      writers.shutdownNow();
+    }
+  }
+}
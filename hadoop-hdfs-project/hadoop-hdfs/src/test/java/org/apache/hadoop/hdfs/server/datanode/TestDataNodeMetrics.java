@@ -56,6 +56,8 @@
 import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
 import org.apache.hadoop.hdfs.protocol.LocatedBlock;
 import org.apache.hadoop.hdfs.server.common.HdfsServerConstants.StartupOption;
+import org.apache.hadoop.hdfs.server.datanode.fsdataset.FsDatasetSpi;
+import org.apache.hadoop.hdfs.server.datanode.fsdataset.FsVolumeSpi;
 import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.metrics2.MetricsRecordBuilder;
 import org.apache.hadoop.test.GenericTestUtils;
@@ -552,4 +554,52 @@ public void testNNRpcMetricsWithFederationAndHA() throws IOException {
     assertCounter("HeartbeatsForns1-nn1NumOps", 1L, rb);
     assertCounter("HeartbeatsNumOps", 4L, rb);
   }
+
+  @Test
+  public void testNimbleBytesHashed() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    // keep the volume scanner from hashing the replica
+    conf.setLong(DFSConfigKeys.DFS_BLOCK_SCANNER_VOLUME_BYTES_PER_SECOND, 0L);
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf).build();
+    try {
+      cluster.waitActive();
+      DistributedFileSystem fs = cluster.getFileSystem();
+      DataNode dn = cluster.getDataNodes().get(0);
+      final long len = 3 * 64 * 1024 + 100;
+      final int appended = 1000;
+      Path file = new Path("/testNimbleBytesHashed.dat");
+
+      // received packets are hashed once
+      DFSTestUtil.createFile(fs, file, len, (short) 1, 1L);
+      assertCounter("NimbleBytesHashed", len,
+          getMetrics(dn.getMetrics().name()));
+
+      // an append rereads the replica once, then hashes the new packets
+      try (FSDataOutputStream out = fs.append(file)) {
+        out.write(new byte[appended]);
+      }
+      assertCounter("NimbleBytesHashed", 2 * len + appended,
+          getMetrics(dn.getMetrics().name()));
+
+      // the first read checks the replica, the second one is cached
+      DFSTestUtil.readFile(fs, file);
+      DFSTestUtil.readFile(fs, file);
+      MetricsRecordBuilder rb = getMetrics(dn.getMetrics().name());
+      assertCounter("NimbleBytesHashed", 3 * (len + appended) - len, rb);
+      assertCounter("NimbleVerifyCacheMisses", 1L, rb);
+      assertCounter("NimbleVerifyCacheHits", 1L, rb);
+
+      // the volume counts the same bytes
+      try (FsDatasetSpi.FsVolumeReferences volumes =
+          dn.getFSDataset().getFsVolumeReferences()) {
+        long hashed = 0;
+        for (FsVolumeSpi volume : volumes) {
+          hashed += volume.getMetrics().getNimbleBytesHashed();
+        }
+        assertEquals(3 * (len + appended) - len, hashed);
+      }
+    } finally {
+      cluster.shutdown();
+    }
+  }
 }
@@ -40,6 +40,7 @@
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -1008,6 +1009,11 @@ public DataNodeVolumeMetrics getMetrics() {
       return null;
     }
 
+    @Override
+    public ForkJoinPool getNimbleHashPool() {
+      return null;
+    }
+
     @Override
     public VolumeCheckResult check(VolumeCheckContext context)
         throws Exception {
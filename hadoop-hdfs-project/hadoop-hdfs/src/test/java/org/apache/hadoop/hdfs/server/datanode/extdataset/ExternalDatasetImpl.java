@@ -23,6 +23,7 @@
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.StorageType;
+import org.apache.hadoop.hdfs.util.DataTransferThrottler;
 import org.apache.hadoop.util.AutoCloseableLock;
 import org.apache.hadoop.hdfs.protocol.Block;
 import org.apache.hadoop.hdfs.protocol.BlockListAsLongs;
@@ -132,6 +133,18 @@ public InputStream getBlockInputStream(ExtendedBlock b, long seekOffset)
     return null;
   }
 
+  @Override
+  public InputStream getShortCircuitInputStream(ExtendedBlock b)
+      throws IOException {
+    return null;
+  }
+
+  @Override
+  public boolean verifyNimbleDigest(ExtendedBlock b,
+      DataTransferThrottler throttler) throws IOException {
+    return false;
+  }
+
   @Override
   public ReplicaInputStreams getTmpInputStreams(ExtendedBlock b, long blkoff,
       long ckoff) throws IOException {
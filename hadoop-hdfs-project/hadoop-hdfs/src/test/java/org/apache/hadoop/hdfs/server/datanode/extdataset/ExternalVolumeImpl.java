@@ -23,6 +23,7 @@
 import java.net.URI;
 import java.nio.channels.ClosedChannelException;
 import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.DF;
@@ -131,6 +132,11 @@ public DataNodeVolumeMetrics getMetrics() {
     return null;
   }
 
+  @Override
+  public ForkJoinPool getNimbleHashPool() {
+    return null;
+  }
+
   @Override
   public VolumeCheckResult check(VolumeCheckContext context)
       throws Exception {
@@ -0,0 +1,188 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode.fsdataset.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.hdfs.server.datanode.FinalizedReplica;
+import org.apache.hadoop.hdfs.server.datanode.ReplicaInfo;
+import org.apache.hadoop.hdfs.server.nimble.NimbleError;
+import org.apache.hadoop.hdfs.server.nimble.NimbleUtils;
+import org.apache.hadoop.hdfs.util.DataTransferThrottler;
+import org.apache.hadoop.test.GenericTestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link VerifiedReplicaCache}.
+ */
+public class TestVerifiedReplicaCache {
+  private static final String BPID = "BP-TEST";
+  private static final byte[] DIGEST = new byte[32];
+
+  private File dir;
+
+  @Before
+  public void setUp() {
+    dir = GenericTestUtils.getTestDir("TestVerifiedReplicaCache");
+    assertTrue(dir.isDirectory() || dir.mkdirs());
+  }
+
+  @After
+  public void tearDown() {
+    FileUtil.fullyDelete(dir);
+  }
+
+  private ReplicaInfo createReplica(long blockId, int len) throws IOException {
+    return createReplica(blockId, len, DIGEST);
+  }
+
+  private ReplicaInfo createReplica(long blockId, int len, byte[] digest)
+      throws IOException {
+    FinalizedReplica replica =
+        new FinalizedReplica(blockId, len, 1000, digest, null, dir);
+    try (FileOutputStream out =
+        new FileOutputStream(replica.getBlockFile())) {
+      out.write(new byte[len]);
+    }
+    return replica;
+  }
+
+  private static void verified(VerifiedReplicaCache cache, ReplicaInfo r) {
+    cache.add(BPID, cache.prepare(r));
+  }
+
+  @Test
+  public void testHitAndInvalidate() throws Exception {
+    VerifiedReplicaCache cache = new VerifiedReplicaCache(16, 60000, 60000);
+    ReplicaInfo replica = createReplica(1, 100);
+    assertFalse(cache.contains(BPID, replica));
+
+    verified(cache, replica);
+    assertTrue(cache.contains(BPID, replica));
+    assertFalse(cache.contains("BP-OTHER", replica));
+
+    cache.invalidate(BPID, replica.getBlockId());
+    assertFalse(cache.contains(BPID, replica));
+  }
+
+  @Test
+  public void testReplicaChange() throws Exception {
+    VerifiedReplicaCache cache = new VerifiedReplicaCache(16, 60000, 60000);
+    ReplicaInfo replica = createReplica(1, 100);
+    verified(cache, replica);
+
+    // New generation stamp
+    replica.setGenerationStamp(1001);
+    assertFalse(cache.contains(BPID, replica));
+
+    // Block file rewritten behind the DataNode's back
+    verified(cache, replica);
+    assertTrue(cache.contains(BPID, replica));
+    try (FileOutputStream out =
+        new FileOutputStream(((FinalizedReplica) replica).getBlockFile(),
+            true)) {
+      out.write(1);
+    }
+    assertFalse(cache.contains(BPID, replica));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testEviction() throws Exception {
+    VerifiedReplicaCache cache = new VerifiedReplicaCache(2, 60000, 60000);
+    ReplicaInfo r1 = createReplica(1, 10);
+    ReplicaInfo r2 = createReplica(2, 10);
+    ReplicaInfo r3 = createReplica(3, 10);
+    verified(cache, r1);
+    verified(cache, r2);
+    assertTrue(cache.contains(BPID, r1));
+    verified(cache, r3);
+
+    // r2 was least recently used
+    assertEquals(2, cache.size());
+    assertTrue(cache.contains(BPID, r1));
+    assertFalse(cache.contains(BPID, r2));
+    assertTrue(cache.contains(BPID, r3));
+  }
+
+  @Test
+  public void testScan() throws Exception {
+    VerifiedReplicaCache cache = new VerifiedReplicaCache(0, 60000, 60000);
+    ReplicaInfo replica =
+        createReplica(1, 100, NimbleUtils.checksum(new byte[100]));
+    assertFalse(cache.scannedRecently(replica));
+
+    ReplicaInfo.NimbleScan scan = cache.prepareScan(replica);
+    replica.verifyNimbleDigest(new DataTransferThrottler(1 << 20), 0);
+    replica.setNimbleScan(scan);
+
+    // Trusted without the cache, and forgotten once the replica changes
+    assertTrue(cache.scannedRecently(replica));
+    assertEquals(0, cache.size());
+    replica.setGenerationStamp(1001);
+    assertFalse(cache.scannedRecently(replica));
+    assertNull(replica.getNimbleScan());
+
+    try {
+      createReplica(2, 100).verifyNimbleDigest(null, 0);
+      fail("Scanned a replica that does not match its digest");
+    } catch (NimbleError e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testCachedCopy() throws Exception {
+    ReplicaInfo replica =
+        createReplica(1, 100, NimbleUtils.checksum(new byte[100]));
+    ReplicaInfo.NimbleScan state =
+        VerifiedReplicaCache.capture(replica, Long.MAX_VALUE);
+    try (FileInputStream in = new FileInputStream(
+        ((FinalizedReplica) replica).getBlockFile())) {
+      replica.verifyNimbleDigest(in.getChannel(), 64, 0);
+    }
+    assertTrue(VerifiedReplicaCache.unchanged(replica, state));
+
+    try (FileOutputStream out = new FileOutputStream(
+        ((FinalizedReplica) replica).getBlockFile(), true)) {
+      out.write(1);
+    }
+    assertFalse(VerifiedReplicaCache.unchanged(replica, state));
+  }
+
+  @Test
+  public void testDisabled() throws Exception {
+    VerifiedReplicaCache cache = new VerifiedReplicaCache(0, 60000, 60000);
+    ReplicaInfo replica = createReplica(1, 10);
+    verified(cache, replica);
+    assertFalse(cache.isEnabled());
+    assertFalse(cache.contains(BPID, replica));
+  }
+}
@@ -22,10 +22,12 @@
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URI;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.hadoop.thirdparty.com.google.common.base.Preconditions;
 
@@ -55,6 +57,9 @@
 import org.apache.hadoop.hdfs.server.blockmanagement.BlockManagerTestUtil;
 import org.apache.hadoop.hdfs.server.datanode.DataNode;
 import org.apache.hadoop.hdfs.server.datanode.DataStorage;
+import org.apache.hadoop.hdfs.server.nimble.MockNimbleLedger;
+import org.apache.hadoop.hdfs.server.nimble.NimbleMetrics;
+import org.apache.hadoop.hdfs.server.nimble.NimbleUtils;
 import org.apache.hadoop.hdfs.server.protocol.BlockCommand;
 import org.apache.hadoop.hdfs.server.protocol.BlockReportContext;
 import org.apache.hadoop.hdfs.server.protocol.DatanodeCommand;
@@ -108,7 +113,8 @@ public class NNThroughputBenchmark implements Tool {
       LoggerFactory.getLogger(NNThroughputBenchmark.class);
   private static final int BLOCK_SIZE = 16;
   private static final String GENERAL_OPTIONS_USAGE =
-      "[-keepResults] | [-logLevel L] | [-UGCacheRefreshCount G]";
+      "[-keepResults] | [-logLevel L] | [-UGCacheRefreshCount G] | "
+      + "[-nimbleRtt R [-nimbleJitter J]]";
 
   static Configuration config;
   static NameNode nameNode;
@@ -117,6 +123,8 @@ public class NNThroughputBenchmark implements Tool {
   static DatanodeProtocol dataNodeProto;
   static RefreshUserMappingsProtocol refreshUserMappingsProto;
   static String bpid = null;
+  /** In-process ledger for -nimbleRtt, shared by the runs of this JVM. */
+  static MockNimbleLedger nimbleLedger;
 
   NNThroughputBenchmark(Configuration conf) throws IOException {
     config = conf;
@@ -178,6 +186,7 @@ abstract class OperationStatsBase {
     protected boolean keepResults = false;// don't clean base directory on exit
     protected Level logLevel;             // logging level, ERROR by default
     protected int ugcRefreshCount = 0;    // user group cache refresh count
+    protected long tmcsBlockedTime = 0;   // time ops were blocked on TMCS, ms
 
     protected List<StatsDaemon> daemons;
 
@@ -263,6 +272,7 @@ void benchmark() throws IOException {
         for(tIdx=0; tIdx < numThreads; tIdx++)
           daemons.add(new StatsDaemon(tIdx, opsPerThread[tIdx], this));
         start = Time.now();
+        tmcsBlockedTime = NimbleMetrics.get().getEditLogTmcsBlockedNanos();
         LOG.info("Starting " + numOpsRequired + " " + getOpName() + "(s).");
         for(StatsDaemon d : daemons)
           d.start();
@@ -271,6 +281,8 @@ void benchmark() throws IOException {
           // try {Thread.sleep(500);} catch (InterruptedException e) {}
         }
         elapsedTime = Time.now() - start;
+        tmcsBlockedTime = TimeUnit.NANOSECONDS.toMillis(
+            NimbleMetrics.get().getEditLogTmcsBlockedNanos() - tmcsBlockedTime);
         for(StatsDaemon d : daemons) {
           incrementStats(d.localNumOpsExecuted, d.localCumulativeTime);
           // System.out.println(d.toString() + ": ops Exec = " + d.localNumOpsExecuted);
@@ -384,6 +396,10 @@ void printStats() {
       LOG.info("Elapsed Time: " + getElapsedTime());
       LOG.info(" Ops per sec: " + getOpsPerSecond());
       LOG.info("Average Time: " + getAverageTime());
+      if (nameNode != null) {
+        // Only known for the NameNode of this process
+        LOG.info("TMCS Blocked Time: " + tmcsBlockedTime);
+      }
     }
   }
 
@@ -1486,6 +1502,25 @@ public int run(String[] aArgs) throws Exception {
     String type = args.get(1);
     boolean runAll = OperationStatsBase.OP_ALL_NAME.equals(type);
 
+    long nimbleRtt = -1;
+    long nimbleJitter = 0;
+    int rttIndex = args.indexOf("-nimbleRtt");
+    if (rttIndex >= 0) {
+      if (args.size() <= rttIndex + 1)
+        printUsage();
+      nimbleRtt = Long.parseLong(args.get(rttIndex + 1));
+      args.remove(rttIndex + 1);
+      args.remove(rttIndex);
+    }
+    int jitterIndex = args.indexOf("-nimbleJitter");
+    if (jitterIndex >= 0) {
+      if (args.size() <= jitterIndex + 1 || nimbleRtt < 0)
+        printUsage();
+      nimbleJitter = Long.parseLong(args.get(jitterIndex + 1));
+      args.remove(jitterIndex + 1);
+      args.remove(jitterIndex);
+    }
+
     final URI nnUri = FileSystem.getDefaultUri(config);
     // Start the NameNode
     String[] argv = new String[] {};
@@ -1542,6 +1577,9 @@ public int run(String[] aArgs) throws Exception {
         LOG.info("Remote NameNode is not specified. Creating one.");
         FileSystem.setDefaultUri(config, "hdfs://localhost:0");
         config.set(DFSConfigKeys.DFS_NAMENODE_HTTP_ADDRESS_KEY, "0.0.0.0:0");
+        if (nimbleRtt >= 0) {
+          startNimbleLedger(nimbleRtt, nimbleJitter);
+        }
         nameNode = NameNode.createNameNode(argv, config);
         NamenodeProtocols nnProtos = nameNode.getRpcServer();
         nameNodeProto = nnProtos;
@@ -1550,6 +1588,10 @@ public int run(String[] aArgs) throws Exception {
         refreshUserMappingsProto = nnProtos;
         bpid = nameNode.getNamesystem().getBlockPoolId();
       } else {
+        if (nimbleRtt >= 0) {
+          LOG.warn("-nimbleRtt is ignored with a remote NameNode, " +
+              "which uses the ledger it is configured with.");
+        }
         DistributedFileSystem dfs = (DistributedFileSystem)
             FileSystem.get(getConf());
         nameNodeProto = DFSTestUtil.getNamenodeProtocolProxy(config, nnUri,
@@ -1580,6 +1622,27 @@ public int run(String[] aArgs) throws Exception {
     return 0;
   }
 
+  /**
+   * Point the NameNode at an in-process ledger answering after rtt +/- jitter
+   * ms and format it there, since the ledger keeps its counters in memory.
+   */
+  private static void startNimbleLedger(long rtt, long jitter)
+      throws IOException {
+    if (nimbleLedger == null) {
+      try {
+        nimbleLedger = new MockNimbleLedger();
+      } catch (GeneralSecurityException e) {
+        throw new IOException("Cannot start the mock Nimble ledger", e);
+      }
+    }
+    nimbleLedger.setLatency(rtt, jitter);
+    LOG.info("Nimble ledger at " + nimbleLedger.getURI() + ", RTT " + rtt
+        + " +/- " + jitter + " ms");
+    config.set(NimbleUtils.Conf.NIMBLE_LEDGER_URI_KEY,
+        nimbleLedger.getURI().toString());
+    DFSTestUtil.formatNameNode(config);
+  }
+
   private void getBlockPoolId(DistributedFileSystem unused)
     throws IOException {
     final NamespaceInfo nsInfo = nameNodeProto.versionRequest();
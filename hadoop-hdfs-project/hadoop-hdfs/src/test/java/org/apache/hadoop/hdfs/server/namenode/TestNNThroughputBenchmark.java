@@ -73,6 +73,21 @@ public void testNNThroughputWithFsOption() throws Exception {
         new String[] {"-fs", "file:///", "-op", "all"});
   }
 
+  /**
+   * This test runs {@link NNThroughputBenchmark} with its own name-node,
+   * committing to an in-process Nimble ledger with a round trip time.
+   */
+  @Test(timeout = 120000)
+  public void testNNThroughputWithNimbleLedger() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    conf.setInt(DFSConfigKeys.DFS_BLOCK_SIZE_KEY, 16);
+    File nameDir = new File(MiniDFSCluster.getBaseDirectory(), "name");
+    conf.set(DFSConfigKeys.DFS_NAMENODE_NAME_DIR_KEY,
+        nameDir.getAbsolutePath());
+    NNThroughputBenchmark.runBenchmark(conf, new String[] {"-op", "create",
+        "-files", "100", "-close", "-nimbleRtt", "2", "-nimbleJitter", "1"});
+  }
+
   /**
    * This test runs {@link NNThroughputBenchmark} against a mini DFS cluster.
    */
@@ -0,0 +1,235 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.server.namenode.FSEditLogOp.LogSegmentOp;
+import org.apache.hadoop.hdfs.server.namenode.FSEditLogOp.NimbleFlushOp;
+import org.apache.hadoop.hdfs.server.namenode.FSEditLogOp.OpInstanceCache;
+import org.apache.hadoop.hdfs.server.namenode.FSEditLogOp.SetGenstampV2Op;
+import org.apache.hadoop.hdfs.server.nimble.MockNimbleLedger;
+import org.apache.hadoop.hdfs.server.nimble.NimbleError;
+import org.apache.hadoop.hdfs.server.nimble.NimbleUtils;
+import org.apache.hadoop.hdfs.server.nimble.NimbleUtils.NimbleFSImageInfo;
+import org.apache.hadoop.hdfs.server.nimble.TMCS;
+import org.apache.hadoop.hdfs.server.nimble.TMCSEditLog;
+import org.apache.hadoop.test.PathUtils;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Test that the TMCS tags of edit log ops, as written to an edit log, are
+ * reproduced when the edit log is read back.
+ */
+public class TestTMCSEditLogReplay {
+  private static final File TEST_DIR =
+      PathUtils.getTestDir(TestTMCSEditLogReplay.class);
+  /** The last layout version that tags ops by their opcode and fields. */
+  private static final int UNFRAMED_LAYOUT_VERSION =
+      NameNodeLayoutVersion.Feature.NIMBLE_FRAME_TAGS.getInfo()
+          .getLayoutVersion() + 1;
+
+  private static MockNimbleLedger ledger;
+  private Configuration conf;
+
+  @BeforeClass
+  public static void startLedger() throws Exception {
+    EditLogFileOutputStream.setShouldSkipFsyncForTesting(true);
+    ledger = new MockNimbleLedger();
+  }
+
+  @AfterClass
+  public static void stopLedger() throws IOException {
+    if (ledger != null) {
+      ledger.close();
+    }
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    conf = new Configuration();
+    conf.set(NimbleUtils.Conf.NIMBLE_LEDGER_URI_KEY,
+        ledger.getURI().toString());
+    conf.setLong(NimbleUtils.Conf.BATCH_SIZE_KEY, 3);
+    // a new counter for every test
+    TMCS.format(conf);
+  }
+
+  private TMCSEditLog newTMCSEditLog() throws IOException {
+    return newTMCSEditLog(conf);
+  }
+
+  private static TMCSEditLog newTMCSEditLog(Configuration conf)
+      throws IOException {
+    return new TMCSEditLog(conf, true, new NimbleFSImageInfo(0, null, null));
+  }
+
+  private File writeSegment(String name, int layoutVersion, TMCSEditLog tmcs,
+      long genStamp) throws IOException {
+    return writeSegment(name, layoutVersion, tmcs, genStamp, false);
+  }
+
+  /**
+   * Log a segment of genstamp ops ending with a NimbleFlushOp, adding each
+   * op to tmcs right after it is written, as FSEditLog does. If adaptive,
+   * also log a NimbleFlushOp after the start and after every other op, as
+   * FSEditLog does with an adaptive batching policy.
+   */
+  private File writeSegment(String name, int layoutVersion, TMCSEditLog tmcs,
+      long genStamp, boolean adaptive) throws IOException {
+    File file = new File(TEST_DIR, name);
+    OpInstanceCache cache = new OpInstanceCache();
+    EditLogFileOutputStream out =
+        new EditLogFileOutputStream(conf, file, 1024);
+    try {
+      out.create(layoutVersion);
+      long txid = 1;
+      write(out, tmcs, LogSegmentOp.getInstance(cache,
+          FSEditLogOpCodes.OP_START_LOG_SEGMENT), txid++, layoutVersion);
+      if (adaptive) {
+        write(out, tmcs, NimbleFlushOp.getInstance(cache), txid++,
+            layoutVersion);
+      }
+      for (int i = 0; i < 4; i++) {
+        write(out, tmcs, SetGenstampV2Op.getInstance(cache)
+            .setGenerationStamp(genStamp + i), txid++, layoutVersion);
+        if (adaptive && i == 1) {
+          write(out, tmcs, NimbleFlushOp.getInstance(cache), txid++,
+              layoutVersion);
+        }
+      }
+      write(out, tmcs, NimbleFlushOp.getInstance(cache), txid,
+          layoutVersion);
+      out.setReadyToFlush();
+      out.flushAndSync(true);
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  private static void write(EditLogFileOutputStream out, TMCSEditLog tmcs,
+      FSEditLogOp op, long txid, int layoutVersion) throws IOException {
+    op.setTransactionId(txid);
+    out.write(op);
+    assertEquals(layoutVersion, op.getLogVersion());
+    // only an edit log with frame tags hands out the frame just written
+    assertEquals(NameNodeLayoutVersion.supports(
+        NameNodeLayoutVersion.Feature.NIMBLE_FRAME_TAGS, layoutVersion),
+        op.getFrame() != null);
+    tmcs.add(op);
+    op.reset();
+  }
+
+  private void replay(File file) throws IOException {
+    replay(file, conf);
+  }
+
+  /** Replay the segment and verify it against the ledger. */
+  private static void replay(File file, Configuration conf)
+      throws IOException {
+    TMCSEditLog tmcs = newTMCSEditLog(conf);
+    tmcs.loadMode();
+    EditLogFileInputStream in = new EditLogFileInputStream(file);
+    try {
+      FSEditLogOp op;
+      while ((op = in.readOp()) != null) {
+        tmcs.add(op);
+      }
+    } finally {
+      in.close();
+    }
+    tmcs.verifyState();
+    tmcs.liveMode();
+    tmcs.close();
+  }
+
+  private void testReplayVerifies(int layoutVersion) throws IOException {
+    TMCSEditLog live = newTMCSEditLog();
+    File file = writeSegment("edits_" + (-layoutVersion), layoutVersion, live,
+        1000);
+    live.flush();
+    live.close();
+    replay(file);
+  }
+
+  @Test
+  public void testReplayVerifies() throws IOException {
+    testReplayVerifies(NameNodeLayoutVersion.CURRENT_LAYOUT_VERSION);
+  }
+
+  @Test
+  public void testReplayVerifiesUnframedLayout() throws IOException {
+    testReplayVerifies(UNFRAMED_LAYOUT_VERSION);
+  }
+
+  /**
+   * Batches are sealed as the edit log says, whether or not the NameNode
+   * replaying it batches adaptively.
+   */
+  @Test
+  public void testReplayVerifiesWithOtherBatching() throws IOException {
+    Configuration adaptive = new Configuration(conf);
+    adaptive.setBoolean(NimbleUtils.Conf.BATCH_ADAPTIVE_KEY, true);
+
+    TMCSEditLog live = newTMCSEditLog(adaptive);
+    File file = writeSegment("edits_adaptive",
+        NameNodeLayoutVersion.CURRENT_LAYOUT_VERSION, live, 1000, true);
+    live.flush();
+    live.close();
+    replay(file, conf);
+
+    TMCS.format(conf);
+    live = newTMCSEditLog();
+    file = writeSegment("edits_fixed",
+        NameNodeLayoutVersion.CURRENT_LAYOUT_VERSION, live, 1000, false);
+    live.flush();
+    live.close();
+    replay(file, adaptive);
+  }
+
+  @Test
+  public void testReplayOfOtherEditsFails() throws IOException {
+    TMCSEditLog live = newTMCSEditLog();
+    writeSegment("edits_committed", NameNodeLayoutVersion.CURRENT_LAYOUT_VERSION,
+        live, 1000);
+    live.flush();
+    live.close();
+
+    // the same ops with other genstamps, never committed to the ledger
+    TMCSEditLog other = newTMCSEditLog();
+    other.loadMode();
+    File file = writeSegment("edits_other",
+        NameNodeLayoutVersion.CURRENT_LAYOUT_VERSION, other, 2000);
+    try {
+      replay(file);
+      fail("Replayed edits that do not match the ledger");
+    } catch (NimbleError e) {
+      // expected
+    }
+  }
+}
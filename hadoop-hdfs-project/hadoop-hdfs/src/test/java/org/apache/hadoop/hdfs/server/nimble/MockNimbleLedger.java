@@ -0,0 +1,299 @@
+package org.apache.hadoop.hdfs.server.nimble;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * In-process stand-in for the NimbleLedger REST endpoint.
+ *
+ * Implements /serviceid, /counters/[handle] (PUT, GET, POST) and the
+ * /counters/[handle]/batch extension, and signs receipts with its own
+ * prime256v1 key exactly like the ledger does, so NimbleAPI and TMCS
+ * can be exercised end to end without a real ledger.
+ *
+ * setLatency() delays every response to model the round trip to a remote
+ * ledger; requests are served concurrently, so delays overlap.
+ */
+public class MockNimbleLedger implements Closeable {
+    static Logger logger = Logger.getLogger(MockNimbleLedger.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /* State of one counter */
+    private static class Counter {
+        int value;
+        byte[] tag;
+    }
+
+    private final HttpServer server;
+    private final KeyPair keys;
+    private final byte[] identity;
+    private final byte[] publicKey; // compressed point
+    private final Map<String, Counter> counters = new HashMap<>(); // guarded by "this"
+    private volatile long latencyMs;
+    private volatile long jitterMs;
+
+    public MockNimbleLedger() throws IOException, GeneralSecurityException {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("EC");
+        gen.initialize(new ECGenParameterSpec("secp256r1"), new SecureRandom());
+        this.keys = gen.generateKeyPair();
+        this.identity = NimbleUtils.checksum(keys.getPublic().getEncoded());
+        this.publicKey = compress((ECPublicKey) keys.getPublic());
+
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/serviceid", this::serviceId);
+        server.createContext("/counters/", this::counters);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    public URI getURI() {
+        return URI.create("http://localhost:" + server.getAddress().getPort() + "/");
+    }
+
+    /**
+     * Delay each response by latencyMs, plus or minus up to jitterMs drawn uniformly.
+     */
+    public void setLatency(long latencyMs, long jitterMs) {
+        this.latencyMs = Math.max(0, latencyMs);
+        this.jitterMs = Math.max(0, jitterMs);
+    }
+
+    private void delay() throws IOException {
+        long d = latencyMs;
+        if (jitterMs > 0)
+            d += ThreadLocalRandom.current().nextLong(-jitterMs, jitterMs + 1);
+        if (d <= 0)
+            return;
+        try {
+            Thread.sleep(d);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while delaying response");
+        }
+    }
+
+    public synchronized int getCounter(byte[] handle) {
+        Counter c = counters.get(NimbleUtils.URLEncode(handle));
+        return c == null ? -1 : c.value;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void serviceId(HttpExchange ex) throws IOException {
+        delay();
+        respond(ex, 200, g -> {
+            g.writeStringField("Identity", NimbleUtils.URLEncode(identity));
+            g.writeStringField("PublicKey", NimbleUtils.URLEncode(publicKey));
+        });
+    }
+
+    private void counters(HttpExchange ex) throws IOException {
+        delay();
+        try {
+            String[] path = ex.getRequestURI().getPath().split("/");
+            // ["", "counters", handle] or ["", "counters", handle, "batch"]
+            byte[] handle = NimbleUtils.URLDecode(path[2]);
+            boolean batch = path.length > 3 && path[3].equals("batch");
+            switch (ex.getRequestMethod()) {
+                case "PUT":  newCounter(ex, handle); break;
+                case "GET":  readLatest(ex, handle); break;
+                case "POST":
+                    if (batch)
+                        incrementBatch(ex, handle);
+                    else
+                        increment(ex, handle);
+                    break;
+                default: respond(ex, 405, null);
+            }
+        } catch (GeneralSecurityException e) {
+            logger.error(e);
+            respond(ex, 500, null);
+        }
+    }
+
+    private void newCounter(HttpExchange ex, byte[] handle) throws IOException, GeneralSecurityException {
+        JsonNode body = MAPPER.readTree(ex.getRequestBody());
+        byte[] tag = NimbleUtils.URLDecode(body.get("Tag").asText());
+        synchronized (this) {
+            String key = NimbleUtils.URLEncode(handle);
+            if (counters.containsKey(key)) {
+                respond(ex, 409, null);
+                return;
+            }
+            Counter c = new Counter();
+            c.tag = tag;
+            counters.put(key, c);
+        }
+        byte[] sig = sign(message(NimbleOp.TYPE_NEW_COUNTER, handle, 0, tag, null));
+        respond(ex, 200, g -> g.writeStringField("Signature", NimbleUtils.URLEncode(sig)));
+    }
+
+    private void readLatest(HttpExchange ex, byte[] handle) throws IOException, GeneralSecurityException {
+        String query = ex.getRequestURI().getQuery();
+        byte[] nonce = NimbleUtils.URLDecode(query.substring(query.indexOf("nonce=") + "nonce=".length()));
+        int value;
+        byte[] tag;
+        synchronized (this) {
+            Counter c = counters.get(NimbleUtils.URLEncode(handle));
+            if (c == null) {
+                respond(ex, 404, null);
+                return;
+            }
+            value = c.value;
+            tag = c.tag;
+        }
+        byte[] sig = sign(message(NimbleOp.TYPE_READ_COUNTER, handle, value, tag, nonce));
+        respond(ex, 200, g -> {
+            g.writeNumberField("Counter", value);
+            g.writeStringField("Tag", NimbleUtils.URLEncode(tag));
+            g.writeStringField("Signature", NimbleUtils.URLEncode(sig));
+        });
+    }
+
+    private void increment(HttpExchange ex, byte[] handle) throws IOException, GeneralSecurityException {
+        JsonNode body = MAPPER.readTree(ex.getRequestBody());
+        List<byte[]> sigs = apply(ex, handle, MAPPER.createArrayNode().add(body));
+        if (sigs != null)
+            respond(ex, 200, g -> g.writeStringField("Signature", NimbleUtils.URLEncode(sigs.get(0))));
+    }
+
+    private void incrementBatch(HttpExchange ex, byte[] handle) throws IOException, GeneralSecurityException {
+        JsonNode body = MAPPER.readTree(ex.getRequestBody());
+        List<byte[]> sigs = apply(ex, handle, body.get("Increments"));
+        if (sigs != null) {
+            respond(ex, 200, g -> {
+                g.writeArrayFieldStart("Signatures");
+                for (byte[] sig : sigs)
+                    g.writeString(NimbleUtils.URLEncode(sig));
+                g.writeEndArray();
+            });
+        }
+    }
+
+    /**
+     * Apply increments atomically and in order. Responds with 409 and returns null
+     * if any expected counter does not match.
+     */
+    private List<byte[]> apply(HttpExchange ex, byte[] handle, JsonNode increments) throws IOException, GeneralSecurityException {
+        List<byte[]> sigs = new ArrayList<>(increments.size());
+        synchronized (this) {
+            Counter c = counters.get(NimbleUtils.URLEncode(handle));
+            if (c == null) {
+                respond(ex, 404, null);
+                return null;
+            }
+            for (int i = 0; i < increments.size(); i++) {
+                if (increments.get(i).get("ExpectedCounter").asInt() != c.value + 1 + i) {
+                    respond(ex, 409, null);
+                    return null;
+                }
+            }
+            for (JsonNode inc : increments) {
+                c.value++;
+                c.tag = NimbleUtils.URLDecode(inc.get("Tag").asText());
+                sigs.add(sign(message(NimbleOp.TYPE_INCREMENT_COUNTER, handle, c.value, c.tag, null)));
+            }
+        }
+        return sigs;
+    }
+
+    /**
+     * MsgType.NimbleID.Handle.Counter.Tag[.Nonce], as verified by NimbleOp.
+     */
+    private byte[] message(long type, byte[] handle, int counter, byte[] tag, byte[] nonce) {
+        StringBuilder msg = new StringBuilder()
+                .append(NimbleUtils.URLEncode(NimbleOp.longToBytes(type))).append('.')
+                .append(NimbleUtils.URLEncode(identity)).append('.')
+                .append(NimbleUtils.URLEncode(handle)).append('.')
+                .append(NimbleUtils.URLEncode(NimbleOp.longToBytes(counter))).append('.')
+                .append(NimbleUtils.URLEncode(tag));
+        if (nonce != null)
+            msg.append('.').append(NimbleUtils.URLEncode(nonce));
+        return msg.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Sign and convert the DER signature into the raw (r, s) pair that the ledger returns.
+     */
+    private byte[] sign(byte[] msg) throws GeneralSecurityException {
+        Signature s = Signature.getInstance("SHA256withECDSA");
+        s.initSign(keys.getPrivate());
+        s.update(msg);
+        byte[] der = s.sign();
+
+        int rLen = der[3];
+        byte[] r = Arrays.copyOfRange(der, 4, 4 + rLen);
+        int sLen = der[5 + rLen];
+        byte[] sv = Arrays.copyOfRange(der, 6 + rLen, 6 + rLen + sLen);
+
+        byte[] raw = new byte[64];
+        copyUnsigned(r, raw, 0);
+        copyUnsigned(sv, raw, 32);
+        return raw;
+    }
+
+    private static void copyUnsigned(byte[] v, byte[] dst, int off) {
+        byte[] b = new BigInteger(1, v).toByteArray();
+        int skip = (b.length > 32) ? b.length - 32 : 0;
+        System.arraycopy(b, skip, dst, off + 32 - (b.length - skip), b.length - skip);
+    }
+
+    private static byte[] compress(ECPublicKey pk) {
+        byte[] x = new byte[32];
+        copyUnsigned(pk.getW().getAffineX().toByteArray(), x, 0);
+        byte[] out = new byte[33];
+        out[0] = (byte) (pk.getW().getAffineY().testBit(0) ? 0x03 : 0x02);
+        System.arraycopy(x, 0, out, 1, 32);
+        return out;
+    }
+
+    private interface Body {
+        void write(JsonGenerator g) throws IOException;
+    }
+
+    private static void respond(HttpExchange ex, int status, Body body) throws IOException {
+        if (body == null) {
+            ex.sendResponseHeaders(status, -1);
+            ex.close();
+            return;
+        }
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try (JsonGenerator g = NimbleResponse.JSON.createGenerator(buf)) {
+            g.writeStartObject();
+            body.write(g);
+            g.writeEndObject();
+        }
+        ex.getResponseHeaders().set("Content-Type", "application/json");
+        ex.sendResponseHeaders(status, buf.size());
+        try (OutputStream out = ex.getResponseBody()) {
+            buf.writeTo(out);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.apache.hadoop.hdfs.server.nimble;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.test.GenericTestUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tagged block digests, and Merkle trees built in parallel.
+ */
+public class TestBlockDigest {
+    private static final int CHUNK = 1024;
+
+    @Test
+    public void testTags() throws Exception {
+        byte[] digest = NimbleUtils.checksum("data".getBytes());
+        assertNull(BlockDigest.algorithmOf(digest));
+
+        byte[] flat = BlockDigest.tag(BlockDigest.Algorithm.SHA256, digest);
+        byte[] merkle = BlockDigest.tag(BlockDigest.Algorithm.MERKLE, digest);
+        assertEquals(Block.TAGGED_CHECKSUM_LENGTH, flat.length);
+        assertEquals(BlockDigest.Algorithm.SHA256, BlockDigest.algorithmOf(flat));
+        assertEquals(BlockDigest.Algorithm.MERKLE, BlockDigest.algorithmOf(merkle));
+
+        // Untagged digests match either algorithm, tagged ones only their own
+        assertTrue(BlockDigest.matches(digest, BlockDigest.Algorithm.MERKLE, digest));
+        assertTrue(BlockDigest.matches(flat, BlockDigest.Algorithm.SHA256, digest));
+        assertFalse(BlockDigest.matches(flat, BlockDigest.Algorithm.MERKLE, digest));
+        assertFalse(BlockDigest.matches(merkle, BlockDigest.Algorithm.MERKLE, NimbleUtils.checksum(new byte[1])));
+
+        Configuration conf = new Configuration(false);
+        assertEquals(BlockDigest.Algorithm.SHA256, BlockDigest.getAlgorithm(conf));
+        conf.setBoolean(NimbleUtils.Conf.MERKLE_ENABLED_KEY, true);
+        assertEquals(BlockDigest.Algorithm.MERKLE, BlockDigest.getAlgorithm(conf));
+        conf.set(NimbleUtils.Conf.DIGEST_ALGORITHM_KEY, "sha256");
+        assertEquals(BlockDigest.Algorithm.SHA256, BlockDigest.getAlgorithm(conf));
+        assertEquals(0, BlockMerkleTree.getChunkSize(conf));
+    }
+
+    @Test
+    public void testParallelMerkleTree() throws Exception {
+        File dir = GenericTestUtils.getTestDir("TestBlockDigest");
+        assertTrue(dir.isDirectory() || dir.mkdirs());
+        File file = new File(dir, "blk_1");
+        byte[] b = new byte[37 * CHUNK + 11];
+        new Random(37).nextBytes(b);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(b);
+        }
+
+        // Hashed on a bounded pool, as a volume does, or on the calling thread
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            for (int len : new int[] {0, 1, CHUNK, 5 * CHUNK + 3, b.length}) {
+                BlockMerkleTree.Builder builder = new BlockMerkleTree.Builder(CHUNK);
+                builder.update(b, 0, len);
+                BlockMerkleTree expected = builder.build();
+
+                for (int segment : new int[] {1, 3 * CHUNK, 1 << 20}) {
+                    for (ForkJoinPool p : new ForkJoinPool[] {pool, null}) {
+                        try (FileInputStream in = new FileInputStream(file)) {
+                            FileChannel ch = in.getChannel();
+                            BlockMerkleTree tree = BlockDigest.merkleTree(ch, len, CHUNK, segment, p);
+                            assertArrayEquals(expected.getDigest(), tree.getDigest());
+                            assertTrue(tree.matches(BlockDigest.tag(BlockDigest.Algorithm.MERKLE,
+                                    expected.getDigest()), len));
+                        }
+                    }
+                }
+            }
+            assertTrue(pool.getPoolSize() <= 2);
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package org.apache.hadoop.hdfs.server.nimble;
+
+import org.apache.hadoop.test.GenericTestUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Build, persist and verify BlockMerkleTree, and read through MerkleVerifyingInputStream.
+ */
+public class TestBlockMerkleTree {
+    private static final int CHUNK = 1024;
+
+    private static byte[] data(int len) {
+        byte[] b = new byte[len];
+        new Random(len).nextBytes(b);
+        return b;
+    }
+
+    private static BlockMerkleTree build(byte[] b, int step) throws NimbleError {
+        BlockMerkleTree.Builder builder = new BlockMerkleTree.Builder(CHUNK);
+        for (int off = 0; off < b.length; off += step)
+            builder.update(b, off, Math.min(step, b.length - off));
+        return builder.build();
+    }
+
+    @Test
+    public void testDigestIndependentOfWriteSize() throws Exception {
+        byte[] b = data(10 * CHUNK + 17);
+        byte[] digest = build(b, b.length).getDigest();
+        assertArrayEquals(digest, build(b, 1).getDigest());
+        assertArrayEquals(digest, build(b, 333).getDigest());
+        assertArrayEquals(digest, build(b, CHUNK).getDigest());
+
+        // Not the flat digest, and bound to the length
+        assertFalse(Arrays.equals(digest, NimbleUtils.checksum(b)));
+        assertFalse(Arrays.equals(digest, build(Arrays.copyOf(b, b.length - 1), 64).getDigest()));
+        assertEquals(1, build(new byte[0], 1).getNumChunks());
+    }
+
+    @Test
+    public void testVerifyChunks() throws Exception {
+        for (int len : new int[] {0, 1, CHUNK, 2 * CHUNK, 7 * CHUNK + 5}) {
+            byte[] b = data(len);
+            BlockMerkleTree tree = build(b, 500);
+            assertTrue(tree.matches(tree.getDigest(), len));
+            for (int i = 0; i < tree.getNumChunks(); i++) {
+                int end = Math.min(len, (i + 1) * CHUNK);
+                tree.verifyChunk(i, ByteBuffer.wrap(b, i * CHUNK, end - i * CHUNK));
+            }
+        }
+
+        byte[] b = data(5 * CHUNK);
+        BlockMerkleTree tree = build(b, b.length);
+        b[3 * CHUNK + 9] ^= 1;
+        tree.verifyChunk(2, ByteBuffer.wrap(b, 2 * CHUNK, CHUNK));
+        try {
+            tree.verifyChunk(3, ByteBuffer.wrap(b, 3 * CHUNK, CHUNK));
+            fail("tampered chunk verified");
+        } catch (NimbleError e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        for (int len : new int[] {0, 100, CHUNK, 3 * CHUNK + 7}) {
+            byte[] b = data(len + 2 * CHUNK + 11);
+            BlockMerkleTree tree = build(Arrays.copyOf(b, len), 300);
+
+            // Feed back the partial last chunk, then append the rest
+            BlockMerkleTree.Builder builder = tree.resume();
+            assertEquals(0, builder.getLength() % CHUNK);
+            builder.update(b, (int) builder.getLength(), b.length - (int) builder.getLength());
+            assertArrayEquals(build(b, b.length).getDigest(), builder.build().getDigest());
+        }
+    }
+
+    @Test
+    public void testTruncatePrefix() throws Exception {
+        byte[] b = data(5 * CHUNK + 300);
+        BlockMerkleTree tree = build(b, b.length);
+        for (int len : new int[] {0, 1, CHUNK, 2 * CHUNK + 5, 5 * CHUNK + 299}) {
+            // Keep the leaves of whole chunks, rehash the cut one
+            int full = len / CHUNK;
+            BlockMerkleTree.Builder builder = tree.resume(full);
+            builder.update(b, full * CHUNK, len - full * CHUNK);
+            assertArrayEquals(build(Arrays.copyOf(b, len), 128).getDigest(), builder.build().getDigest());
+        }
+        try {
+            tree.resume(6);
+            fail("resumed past the end of the tree");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSidecarAndStream() throws Exception {
+        File dir = GenericTestUtils.getTestDir("TestBlockMerkleTree");
+        assertTrue(dir.isDirectory() || dir.mkdirs());
+        File blockFile = new File(dir, "blk_1");
+        byte[] b = data(6 * CHUNK + 100);
+        try (FileOutputStream out = new FileOutputStream(blockFile)) {
+            out.write(b);
+        }
+
+        BlockMerkleTree tree = build(b, 4096);
+        File sidecar = BlockMerkleTree.sidecarFile(blockFile);
+        tree.save(sidecar);
+        BlockMerkleTree loaded = BlockMerkleTree.load(sidecar);
+        assertNotNull(loaded);
+        assertTrue(loaded.matches(tree.getDigest(), b.length));
+
+        // Range read starting inside the third chunk
+        byte[] got = new byte[CHUNK + 50];
+        try (MerkleVerifyingInputStream in =
+                     new MerkleVerifyingInputStream(new FileInputStream(blockFile), loaded, 2 * CHUNK + 30)) {
+            int n = 0;
+            while (n < got.length)
+                n += in.read(got, n, got.length - n);
+        }
+        assertArrayEquals(Arrays.copyOfRange(b, 2 * CHUNK + 30, 3 * CHUNK + 80), got);
+
+        // Corrupt the data: untouched chunks still read, the corrupt one fails
+        try (RandomAccessFile raf = new RandomAccessFile(blockFile, "rw")) {
+            raf.seek(5 * CHUNK + 1);
+            raf.write(b[5 * CHUNK + 1] ^ 1);
+        }
+        try (MerkleVerifyingInputStream in =
+                     new MerkleVerifyingInputStream(new FileInputStream(blockFile), loaded, 0)) {
+            assertEquals(b[0] & 0xff, in.read());
+            assertEquals(4 * CHUNK - 1, in.skip(4 * CHUNK - 1));
+            assertEquals(b[4 * CHUNK] & 0xff, in.read());
+            in.skip(CHUNK);
+            in.read();
+            fail("corrupt chunk was read");
+        } catch (NimbleError e) {
+            // expected
+        }
+
+        // A damaged sidecar is ignored rather than trusted
+        try (RandomAccessFile raf = new RandomAccessFile(sidecar, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        assertNull(BlockMerkleTree.load(sidecar));
+        assertNull(BlockMerkleTree.load(new File(dir, "missing")));
+    }
+}
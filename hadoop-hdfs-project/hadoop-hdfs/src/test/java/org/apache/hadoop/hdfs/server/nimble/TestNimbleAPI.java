@@ -0,0 +1,151 @@
+package org.apache.hadoop.hdfs.server.nimble;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+/**
+ * Exercise NimbleAPI against MockNimbleLedger.
+ */
+public class TestNimbleAPI {
+    private MockNimbleLedger ledger;
+    private NimbleAPI api;
+
+    @Before
+    public void setUp() throws Exception {
+        ledger = new MockNimbleLedger();
+        Configuration conf = new Configuration();
+        conf.set(NimbleUtils.Conf.NIMBLE_LEDGER_URI_KEY, ledger.getURI().toString());
+        api = new NimbleAPI(conf);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        api.close();
+        ledger.close();
+    }
+
+    private NimbleServiceID newHandle() throws Exception {
+        NimbleServiceID id = api.getServiceID();
+        id.handle = NimbleUtils.getNonce();
+        return id;
+    }
+
+    private static byte[] tag(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testCounterWorkflow() throws Exception {
+        NimbleServiceID id = newHandle();
+        assertTrue(api.verifyServiceID(id));
+
+        assertTrue(api.newCounter(id, tag("init")).verify());
+        assertTrue(api.incrementCounter(id, tag("one"), 1).verify());
+        assertTrue(api.incrementCounter(id, tag("two"), 2).verify());
+
+        NimbleOpReadLatest latest = api.readLatest(id);
+        assertTrue(latest.verify());
+        assertEquals(2, latest.counter);
+        assertArrayEquals(tag("two"), latest.tag);
+    }
+
+    @Test
+    public void testConflict() throws Exception {
+        NimbleServiceID id = newHandle();
+        api.newCounter(id, tag("init"));
+        try {
+            api.newCounter(id, tag("again"));
+            fail("expected conflict on existing handle");
+        } catch (NimbleError e) {
+            // expected
+        }
+        try {
+            api.incrementCounter(id, tag("skip"), 2);
+            fail("expected conflict on unexpected counter");
+        } catch (NimbleError e) {
+            // expected
+        }
+        assertEquals(0, ledger.getCounter(id.handle));
+    }
+
+    @Test
+    public void testBatchIncrement() throws Exception {
+        NimbleServiceID id = newHandle();
+        api.newCounter(id, tag("init"));
+        api.incrementCounter(id, tag("one"), 1);
+
+        List<byte[]> tags = Arrays.asList(tag("two"), tag("three"), tag("four"));
+        List<NimbleOpIncrementCounter> ops = api.incrementCounterBatch(id, tags, 2);
+        assertEquals(3, ops.size());
+        for (int i = 0; i < ops.size(); i++) {
+            assertEquals(2 + i, ops.get(i).counter);
+            assertTrue(ops.get(i).verify());
+        }
+        assertEquals(4, ledger.getCounter(id.handle));
+        assertArrayEquals(tag("four"), api.readLatest(id).tag);
+
+        // A stale batch is rejected as a whole
+        try {
+            api.incrementCounterBatch(id, tags, 4);
+            fail("expected conflict on stale batch");
+        } catch (NimbleError e) {
+            // expected
+        }
+        assertEquals(4, ledger.getCounter(id.handle));
+        assertTrue(api.supportsBatch());
+    }
+
+    @Test
+    public void testReceiptMessage() throws Exception {
+        NimbleServiceID id = newHandle();
+        api.newCounter(id, tag("init"));
+        NimbleOpIncrementCounter op = api.incrementCounter(id, new byte[] {(byte) 0xfb, (byte) 0xff}, 1);
+
+        // Same encoding as the ledger's, built without Strings
+        assertEquals(String.format("%s.%s.%s.%s.%s",
+                NimbleUtils.URLEncode(NimbleOp.longToBytes(NimbleOp.TYPE_INCREMENT_COUNTER)),
+                NimbleUtils.URLEncode(id.identity),
+                NimbleUtils.URLEncode(id.handle),
+                NimbleUtils.URLEncode(NimbleOp.longToBytes(1)),
+                NimbleUtils.URLEncode(op.tag)), op.toString());
+
+        // A bad receipt does not spoil the thread's verifier
+        assertTrue(op.verify());
+        op.counter = 2;
+        assertFalse(op.verify());
+        op.signature = new byte[64];
+        assertFalse(op.verify());
+        op.counter = 1;
+        assertFalse(op.verify());
+        assertTrue(api.readLatest(id).verify());
+    }
+
+    @Test
+    public void testConcurrentHandles() throws Exception {
+        List<NimbleServiceID> ids = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            NimbleServiceID id = newHandle();
+            api.newCounter(id, tag("init"));
+            ids.add(id);
+        }
+
+        List<CompletableFuture<NimbleOpIncrementCounter>> futures = new ArrayList<>();
+        for (NimbleServiceID id : ids)
+            futures.add(api.incrementCounterAsync(id, tag("one"), 1));
+        for (CompletableFuture<NimbleOpIncrementCounter> f : futures)
+            assertTrue(f.get().verify());
+
+        for (NimbleServiceID id : ids)
+            assertEquals(1, api.readLatestAsync(id).get().counter);
+    }
+}
@@ -0,0 +1,85 @@
+package org.apache.hadoop.hdfs.server.nimble;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.metrics2.MetricsRecordBuilder;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.hadoop.test.MetricsAsserts.assertCounter;
+import static org.apache.hadoop.test.MetricsAsserts.getLongCounter;
+import static org.apache.hadoop.test.MetricsAsserts.getMetrics;
+import static org.junit.Assert.*;
+
+/**
+ * Test the Nimble metrics source, on its own and as updated by TMCS.
+ */
+public class TestNimbleMetrics {
+    private static MockNimbleLedger ledger;
+
+    @BeforeClass
+    public static void startLedger() throws Exception {
+        ledger = new MockNimbleLedger();
+    }
+
+    @AfterClass
+    public static void stopLedger() {
+        if (ledger != null)
+            ledger.close();
+    }
+
+    @Test
+    public void testRecords() {
+        NimbleMetrics metrics = new NimbleMetrics(new int[] {60});
+        metrics.addLedgerNewCounter(3);
+        metrics.addLedgerIncrement(5);
+        metrics.addLedgerIncrement(7);
+        metrics.addLedgerReadLatest(2);
+        metrics.addBatch(10);
+        metrics.addBatch(30);
+        metrics.addEditLogTmcsAdd(1000);
+        metrics.addEditLogCommitWait(TimeUnit.MILLISECONDS.toNanos(4));
+        metrics.incrVerificationFailures();
+
+        MetricsRecordBuilder rb = getMetrics(metrics);
+        assertCounter("LedgerNewCounterNumOps", 1L, rb);
+        assertCounter("LedgerIncrementNumOps", 2L, rb);
+        assertCounter("LedgerReadLatestNumOps", 1L, rb);
+        assertCounter("BatchOpsNumBatches", 2L, rb);
+        assertCounter("EditLogTmcsAddNanosNumOps", 1L, rb);
+        assertCounter("EditLogCommitWaitNumOps", 1L, rb);
+        assertCounter("VerificationFailures", 1L, rb);
+        // time added to the batch and waited for the ledger both block the edit log
+        long blocked = 1000 + TimeUnit.MILLISECONDS.toNanos(4);
+        assertCounter("EditLogTmcsBlockedNanos", blocked, rb);
+        assertEquals(blocked, metrics.getEditLogTmcsBlockedNanos());
+    }
+
+    @Test
+    public void testTMCSUpdates() throws Exception {
+        Configuration conf = new Configuration();
+        conf.set(NimbleUtils.Conf.NIMBLE_LEDGER_URI_KEY, ledger.getURI().toString());
+        NimbleMetrics metrics = NimbleMetrics.get();
+        long newCounters = getLongCounter("LedgerNewCounterNumOps", getMetrics(metrics));
+        long increments = getLongCounter("LedgerIncrementNumOps", getMetrics(metrics));
+        long reads = getLongCounter("LedgerReadLatestNumOps", getMetrics(metrics));
+
+        TMCS.format(conf);
+        TMCS tmcs = TMCS.getInstance();
+        tmcs.increment("one".getBytes(StandardCharsets.UTF_8));
+        tmcs.increment(Arrays.asList("two".getBytes(StandardCharsets.UTF_8),
+                "three".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(3, tmcs.latest().counter);
+
+        MetricsRecordBuilder rb = getMetrics(metrics);
+        assertCounter("LedgerNewCounterNumOps", newCounters + 1, rb);
+        // the mock ledger has the batch endpoint: one round trip per batch
+        assertCounter("LedgerIncrementNumOps", increments + 2, rb);
+        assertCounter("LedgerReadLatestNumOps", reads + 1, rb);
+        assertCounter("VerificationFailures", 0L, rb);
+    }
+}
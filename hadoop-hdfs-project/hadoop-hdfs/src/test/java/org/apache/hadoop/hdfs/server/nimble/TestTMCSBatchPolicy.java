@@ -0,0 +1,124 @@
+package org.apache.hadoop.hdfs.server.nimble;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Exercise TMCSBatchPolicy without a ledger.
+ */
+public class TestTMCSBatchPolicy {
+    private Configuration conf;
+
+    @Before
+    public void setUp() {
+        conf = new Configuration();
+        conf.setBoolean(NimbleUtils.Conf.BATCH_ADAPTIVE_KEY, true);
+        conf.setInt(NimbleUtils.Conf.BATCH_MIN_SIZE_KEY, 2);
+        conf.setInt(NimbleUtils.Conf.BATCH_MAX_SIZE_KEY, 16);
+        conf.setLong(NimbleUtils.Conf.BATCH_SIZE_KEY, 4);
+        // Only seal by size, unless a test says otherwise
+        conf.setLong(NimbleUtils.Conf.BATCH_MAX_DELAY_KEY, 60000);
+    }
+
+    // Admit ops until the policy asks for a seal, and return how many it took
+    private static int fill(TMCSBatchPolicy policy, long sleepMs) throws InterruptedException {
+        for (int n = 1; ; n++) {
+            if (sleepMs > 0)
+                Thread.sleep(sleepMs);
+            if (policy.onAdmit(false))
+                return n;
+        }
+    }
+
+    @Test
+    public void testInitialSizeIsClamped() {
+        assertTrue(TMCSBatchPolicy.isEnabled(conf));
+        assertEquals(4, new TMCSBatchPolicy(conf).getTargetSize());
+        conf.setLong(NimbleUtils.Conf.BATCH_SIZE_KEY, 1);
+        assertEquals(2, new TMCSBatchPolicy(conf).getTargetSize());
+        conf.setLong(NimbleUtils.Conf.BATCH_SIZE_KEY, 100);
+        assertEquals(16, new TMCSBatchPolicy(conf).getTargetSize());
+    }
+
+    @Test
+    public void testSealBySize() throws Exception {
+        TMCSBatchPolicy policy = new TMCSBatchPolicy(conf);
+        assertEquals(4, fill(policy, 0));
+        assertEquals(TMCSBatchPolicy.SealReason.SIZE, policy.getLastSealReason());
+
+        // A NimbleFlushOp seals the batch anyway and starts a new one
+        policy.onAdmit(false);
+        assertFalse(policy.onAdmit(true));
+        assertEquals(4, fill(policy, 0));
+    }
+
+    @Test
+    public void testSealByLatency() throws Exception {
+        conf.setLong(NimbleUtils.Conf.BATCH_MAX_DELAY_KEY, 0);
+        TMCSBatchPolicy policy = new TMCSBatchPolicy(conf);
+        assertTrue(policy.onAdmit(false));
+        assertEquals(TMCSBatchPolicy.SealReason.LATENCY, policy.getLastSealReason());
+    }
+
+    @Test
+    public void testStale() throws Exception {
+        conf.setLong(NimbleUtils.Conf.BATCH_MAX_DELAY_KEY, 20);
+        TMCSBatchPolicy policy = new TMCSBatchPolicy(conf);
+        assertFalse(policy.isStale());
+        assertFalse(policy.onAdmit(false));
+        Thread.sleep(50);
+        assertTrue(policy.isStale());
+        policy.onAdmit(true);
+        assertFalse(policy.isStale());
+    }
+
+    @Test
+    public void testGrowWhileBatchesQueue() throws Exception {
+        TMCSBatchPolicy policy = new TMCSBatchPolicy(conf);
+        fill(policy, 0);
+        policy.onCommitted(10, 2);
+        assertEquals(8, policy.getTargetSize());
+        policy.onCommitted(10, 2);
+        policy.onCommitted(10, 2);
+        assertEquals(16, policy.getTargetSize());
+        assertEquals(16, fill(policy, 0));
+
+        // One batch in flight is a steady state
+        policy.onCommitted(10, 1);
+        assertEquals(16, policy.getTargetSize());
+    }
+
+    @Test
+    public void testShrinkWhenOpsAreSlow() throws Exception {
+        conf.setLong(NimbleUtils.Conf.BATCH_SIZE_KEY, 8);
+        TMCSBatchPolicy policy = new TMCSBatchPolicy(conf);
+        for (int i = 0; i < 3; i++) {
+            // Filling a batch takes longer than the ledger answers
+            fill(policy, 2);
+            policy.onCommitted(0, 0);
+        }
+        assertEquals(2, policy.getTargetSize());
+    }
+
+    @Test
+    public void testGrowUnderSynchronousCommits() throws Exception {
+        TMCSBatchPolicy policy = new TMCSBatchPolicy(conf);
+        // Nothing queues behind synchronous increments, so onCommitted() cannot tell
+        fill(policy, 0);
+        policy.onCommitted(1000, 0);
+        assertEquals(4, policy.getTargetSize());
+
+        // but a batch filled faster than the ledger answers
+        fill(policy, 0);
+        policy.onCommittedInline(1000);
+        assertEquals(8, policy.getTargetSize());
+
+        policy = new TMCSBatchPolicy(conf);
+        fill(policy, 2);
+        policy.onCommittedInline(0);
+        assertEquals(2, policy.getTargetSize());
+    }
+}
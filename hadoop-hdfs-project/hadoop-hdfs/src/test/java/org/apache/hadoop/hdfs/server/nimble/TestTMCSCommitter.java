@@ -0,0 +1,131 @@
+package org.apache.hadoop.hdfs.server.nimble;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Order, waiting and failures of batches committed by TMCSCommitter.
+ */
+public class TestTMCSCommitter {
+
+    private static byte[] tag(int i) {
+        return new byte[] {(byte) i};
+    }
+
+    @Test(timeout = 30000)
+    public void testFifoOrder() throws Exception {
+        TMCS tmcs = mock(TMCS.class);
+        List<Byte> committed = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> requests = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(inv -> {
+            release.await();
+            List<byte[]> tags = inv.getArgument(0);
+            requests.add(tags.size());
+            for (byte[] t : tags)
+                committed.add(t[0]);
+            return null;
+        }).when(tmcs).increment(anyList());
+
+        TMCSCommitter committer = new TMCSCommitter(tmcs, 64, null);
+        try {
+            for (int i = 0; i < 20; i++)
+                committer.submit(tag(i), i);
+            release.countDown();
+            committer.awaitAll();
+            assertEquals(0, committer.getNumPending());
+        } finally {
+            committer.close();
+        }
+
+        for (int i = 0; i < 20; i++)
+            assertEquals(i, (int) committed.get(i));
+        // Batches queued behind the first round trip go in fewer requests
+        assertTrue("requests: " + requests, requests.size() < 20);
+    }
+
+    @Test(timeout = 30000)
+    public void testAwaitCommitted() throws Exception {
+        TMCS tmcs = mock(TMCS.class);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(inv -> {
+            release.await();
+            return null;
+        }).when(tmcs).increment(anyList());
+
+        TMCSCommitter committer = new TMCSCommitter(tmcs, 64, null);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            committer.submit(tag(1), 5);
+
+            // Transactions before the queued batch are not waited for
+            committer.awaitCommitted(4);
+
+            Future<?> waiter = executor.submit(() -> {
+                committer.awaitCommitted(5);
+                return null;
+            });
+            try {
+                waiter.get(200, TimeUnit.MILLISECONDS);
+                fail("awaitCommitted returned before the ledger acknowledged the batch");
+            } catch (TimeoutException expected) {
+            }
+            assertEquals(1, committer.getNumPending());
+
+            release.countDown();
+            waiter.get();
+            assertEquals(0, committer.getNumPending());
+        } finally {
+            executor.shutdownNow();
+            committer.close();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testStickyFailure() throws Exception {
+        TMCS tmcs = mock(TMCS.class);
+        doThrow(new NimbleError("ledger down")).when(tmcs).increment(anyList());
+
+        TMCSCommitter committer = new TMCSCommitter(tmcs, 64, null);
+        committer.submit(tag(1), 1);
+        try {
+            committer.awaitCommitted(1);
+            fail("the ledger failure was not reported");
+        } catch (NimbleError e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("ledger down"));
+        }
+
+        // Every later call fails the same way, even for batches never sent
+        try {
+            committer.submit(tag(2), 2);
+            fail("submit after a ledger failure");
+        } catch (NimbleError expected) {
+        }
+        try {
+            committer.awaitCommitted(0);
+            fail("awaitCommitted after a ledger failure");
+        } catch (NimbleError expected) {
+        }
+        try {
+            committer.close();
+            fail("close after a ledger failure");
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.apache.hadoop.hdfs.server.nimble;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.server.common.Storage;
+import org.apache.hadoop.test.PathUtils;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test that named ledger shards are formatted with handles of their own, count
+ * independently, and that their handles survive the NIMBLE storage info.
+ */
+public class TestTMCSShards {
+    private static final File TEST_DIR = PathUtils.getTestDir(TestTMCSShards.class);
+
+    private static MockNimbleLedger ledger;
+    private Configuration conf;
+
+    @BeforeClass
+    public static void startLedger() throws Exception {
+        ledger = new MockNimbleLedger();
+    }
+
+    @AfterClass
+    public static void stopLedger() {
+        if (ledger != null)
+            ledger.close();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        conf = new Configuration();
+        conf.set(NimbleUtils.Conf.NIMBLE_LEDGER_URI_KEY, ledger.getURI().toString());
+        conf.set(NimbleUtils.Conf.SHARDS_KEY, "a, b");
+        TMCS.format(conf);
+        FileUtil.fullyDelete(TEST_DIR);
+    }
+
+    private static byte[] tag(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Storage.StorageDirectory storageDir(String name) {
+        File root = new File(TEST_DIR, name);
+        assertTrue(new File(root, "current").mkdirs());
+        return new Storage.StorageDirectory(root);
+    }
+
+    @Test
+    public void testFormatShards() throws Exception {
+        TMCS base = TMCS.getInstance();
+        TMCS a = TMCS.getInstance("a");
+        TMCS b = TMCS.getInstance("b");
+        assertSame(base, TMCS.getInstance(""));
+        assertSame(a, TMCS.getInstance("a"));
+        assertNotSame(a, b);
+        assertEquals("a", a.getShard());
+        assertEquals("", base.getShard());
+
+        // every counter starts at 0, and increments of one leave the others alone
+        assertEquals(1, base.expectedCounter());
+        a.increment(tag("a1"));
+        a.increment(Arrays.asList(tag("a2"), tag("a3")));
+        assertEquals(4, a.expectedCounter());
+        assertEquals(3, a.latest().counter);
+        assertEquals(1, base.expectedCounter());
+        assertEquals(0, base.latest().counter);
+        assertEquals(1, b.expectedCounter());
+        assertEquals(0, b.latest().counter);
+
+        try {
+            TMCS.getInstance("c");
+            fail("got a counter for a shard that was not formatted");
+        } catch (NimbleError e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testShardHandlesRoundTrip() throws Exception {
+        TMCS.getInstance("a").increment(tag("a1"));
+
+        // a shard saves the default identity, which holds every handle
+        Storage.StorageDirectory sd = storageDir("sd");
+        TMCS.getInstance("b").save(sd);
+        NimbleServiceID id = NimbleUtils.loadNimbleInfo(conf, sd);
+        assertEquals(Arrays.asList("a", "b"), Arrays.asList(id.shards.keySet().toArray()));
+        assertFalse(Arrays.equals(id.shards.get("a"), id.shards.get("b")));
+        assertFalse(Arrays.equals(id.handle, id.shards.get("a")));
+
+        // through every storage directory of the NameNode
+        File name1 = new File(TEST_DIR, "name1"), name2 = new File(TEST_DIR, "name2");
+        assertTrue(new File(name1, "current").mkdirs());
+        assertTrue(new File(name2, "current").mkdirs());
+        Configuration nnConf = new Configuration(conf);
+        nnConf.set(DFSConfigKeys.DFS_NAMENODE_NAME_DIR_KEY,
+                name1.toURI() + "," + name2.toURI());
+        nnConf.set(DFSConfigKeys.DFS_NAMENODE_EDITS_DIR_KEY,
+                name1.toURI() + "," + name2.toURI());
+        NimbleUtils.saveNimbleInfo(nnConf, id);
+        NimbleServiceID loaded = NimbleUtils.loadNimbleInfo(nnConf);
+        assertTrue(id.equals(loaded));
+
+        // the loaded handles still name the counters in the ledger
+        NimbleAPI api = new NimbleAPI(conf);
+        try {
+            assertEquals(1, api.readLatest(loaded.forShard("a")).counter);
+            assertEquals(0, api.readLatest(loaded.forShard("b")).counter);
+            assertEquals(0, api.readLatest(loaded).counter);
+        } finally {
+            api.close();
+        }
+        assertNull(loaded.forShard("c"));
+    }
+}